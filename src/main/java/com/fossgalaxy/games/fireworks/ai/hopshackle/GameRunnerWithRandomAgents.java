@@ -3,6 +3,7 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle;
 import com.fossgalaxy.games.fireworks.ai.Agent;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSRuleInfoSet;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.RuleGenerator;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.RuleTriggerMatrix;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StateGatherer;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StateGathererWithTarget;
 import com.fossgalaxy.games.fireworks.ai.rule.Rule;
@@ -48,6 +49,7 @@ public class GameRunnerWithRandomAgents extends GameRunner {
     public static StateGathererWithTarget stateGathererBase = new StateGathererWithTarget("2|3|4|6|7|8|9|12|13|15|18", "NN");
     public static StateGathererWithTarget stateGathererConv  = new StateGathererWithTarget("1|2|3|4|9|12|13|15|18", "YN");
     public static List<String> allFeatures = new ArrayList();
+    private static Map<String, Integer> featureIndex = new HashMap<>();
 
     static {
         allFeatures.addAll(StateGatherer.allFeatures);
@@ -58,6 +60,8 @@ public class GameRunnerWithRandomAgents extends GameRunner {
                 .map(r -> r.getClass().getSimpleName())
                 .filter(name -> !allFeatures.contains(name))
                 .collect(Collectors.toList()));
+        for (int i = 0; i < allFeatures.size(); i++)
+            featureIndex.put(allFeatures.get(i), i);
     }
 
     /**
@@ -120,15 +124,8 @@ public class GameRunnerWithRandomAgents extends GameRunner {
         GameState playerState = ((HopshackleAgentPlayer) player).getGameState();
         Map<String, Double> features = stateGathererBase.extractFeatures(playerState, nextPlayer);
         Map<String, Double> featuresConv = stateGathererConv.extractFeatures(playerState, nextPlayer);
-        List<Rule> rulesTriggeredBase = getRulesThatTriggered(rulesToTrackBase, action, playerState, nextPlayer);
-        List<Rule> rulesTriggeredConv = getRulesThatTriggered(rulesToTrackConv, action, playerState, nextPlayer);
-
-        for (Rule r : rulesToTrackBase) {
-            features.put(r.getClass().getSimpleName(), rulesTriggeredBase.contains(r) ? 1.00 : 0.00);
-        }
-        for (Rule r : rulesToTrackConv) {
-            featuresConv.put(r.getClass().getSimpleName(), rulesTriggeredConv.contains(r) ? 1.00 : 0.00);
-        }
+        addRuleFeatures(features, new RuleTriggerMatrix(rulesToTrackBase, nextPlayer, playerState), action);
+        addRuleFeatures(featuresConv, new RuleTriggerMatrix(rulesToTrackConv, nextPlayer, playerState), action);
         if (action instanceof PlayCard) features.put("PLAY_CARD", 1.00);
         if (action instanceof DiscardCard) features.put("DISCARD_CARD", 1.00);
 
@@ -152,13 +149,27 @@ public class GameRunnerWithRandomAgents extends GameRunner {
     }
 
     public static List<Rule> getRulesThatTriggered(List<Rule> allRules, Action action, GameState fromState, int agentID) {
-        return allRules.stream()
-                .filter(r -> {
-                    Action a = r.execute(agentID, fromState);
-                    if (a == null) return false;
-                    return (a.equals(action));
-                })
-                .collect(Collectors.toList());
+        return new RuleTriggerMatrix(allRules, agentID, fromState).getRulesThatTriggered(action);
+    }
+
+    /*
+    Sets the feature for each rule to 1.0 if it would have chosen action, and 0.0 otherwise
+     */
+    public static void addRuleFeatures(Map<String, Double> features, RuleTriggerMatrix triggers, Action action) {
+        List<Rule> rules = triggers.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            features.put(rules.get(i).getClass().getSimpleName(), triggers.triggered(i, action) ? 1.00 : 0.00);
+        }
+    }
+
+    /*
+    As above, but writing into features at the positions of allFeatures, starting from offset
+     */
+    public static void addRuleFeatures(double[] features, int offset, RuleTriggerMatrix triggers, Action action) {
+        List<Rule> rules = triggers.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            features[offset + featureIndex.get(rules.get(i).getClass().getSimpleName())] = triggers.triggered(i, action) ? 1.00 : 0.00;
+        }
     }
 
     protected String asCSVLine(Map<String, Double> tuple, Map<String, Double> tuple2) {
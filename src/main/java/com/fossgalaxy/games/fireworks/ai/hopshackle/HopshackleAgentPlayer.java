@@ -1,15 +1,24 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle;
 
 import com.fossgalaxy.games.fireworks.ai.*;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.HandBeliefTracker;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.UsesBeliefTracker;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.HasGameOverProcessing;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.NoLifeState;
+import com.fossgalaxy.games.fireworks.state.actions.Action;
+import com.fossgalaxy.games.fireworks.state.events.GameEvent;
+
+import java.util.List;
 
 /*
-This just adds an implementation of onGameOver(), which will update the underlying agent
+This adds an implementation of onGameOver(), which will update the underlying agent, and keeps a HandBeliefTracker
+up to date from the events we see (for any agent that wants one)
  */
 public class HopshackleAgentPlayer extends AgentPlayer {
 
+    private HandBeliefTracker beliefTracker;
+
     public HopshackleAgentPlayer(String name, Agent policy) {
         super(name, policy);
     }
@@ -23,6 +32,26 @@ public class HopshackleAgentPlayer extends AgentPlayer {
     public GameState getGameState() {
         return this.state;
     }
+
+    @Override
+    public void setID(int id, int nPlayers, String[] names) {
+        beliefTracker = new HandBeliefTracker(nPlayers);
+        if (policy instanceof UsesBeliefTracker)
+            ((UsesBeliefTracker) policy).setBeliefTracker(beliefTracker);
+        super.setID(id, nPlayers, names);
+    }
+
+    @Override
+    public void sendMessage(GameEvent msg) {
+        super.sendMessage(msg);
+        if (beliefTracker != null) beliefTracker.onEvent(msg);
+    }
+
+    @Override
+    public void resolveTurn(int actor, Action action, List<GameEvent> events) {
+        super.resolveTurn(actor, action, events);
+        if (beliefTracker != null) beliefTracker.onTurn(events);
+    }
 /*
     @Override
     public void setID(int id, int nPlayers, String[] names) {
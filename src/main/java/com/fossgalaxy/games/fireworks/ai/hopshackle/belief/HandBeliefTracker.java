@@ -0,0 +1,221 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.belief;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
+import com.fossgalaxy.games.fireworks.state.*;
+import com.fossgalaxy.games.fireworks.state.events.*;
+
+import java.util.*;
+
+/*
+Keeps track, for every player, of what they can know about each card in their hand, by following the GameEvents as
+they happen rather than by going back through the history each time.
+For each slot there is a 25-bit mask of the possible cards (bit = colour.ordinal() * 5 + value - 1, as in
+SimulationState), from the Tells received since the card was drawn. The conventions are applied in exactly the way
+ConventionUtils.bindBlindCardWithConventions() does: only Tells within the last playerCount * 3 turns count, a
+single-touch Tell means the card was playable when told, and a Red or Orange Tell means that the slot most recently
+drawn (now, not when told) was playable. So we keep a short record of the last few turns, and replay it on request.
+This only ever describes the real game - not any of the states used within a search.
+ */
+public class HandBeliefTracker {
+
+    public static final int MAX_HAND_SIZE = 5;
+    private static final int ALL_CARDS = (1 << SimulationState.CARD_TYPES) - 1;
+    private static final CardColour[] colours = CardColour.values();
+
+    /*
+    Each recent turn is packed into an int: the kind of turn, the player (told, or playing/discarding), the slots
+    touched (or the slot played/discarded), whether it was a Red or Orange Tell, and the card played
+     */
+    private static final int OTHER = 0, TELL = 1, PLAY = 2, DISCARD = 3;
+
+    private final int playerCount;
+    private final int[] possible;
+    private final int[] mostRecentSlot;
+    private final int[] table = new int[colours.length];
+    private final int[] recentTurns;
+    private int turnsSeen;
+
+    public HandBeliefTracker(int playerCount) {
+        this.playerCount = playerCount;
+        possible = new int[playerCount * MAX_HAND_SIZE];
+        mostRecentSlot = new int[playerCount];
+        Arrays.fill(mostRecentSlot, -1);
+        recentTurns = new int[playerCount * 3];
+        int handSize = playerCount > 3 ? 4 : 5;
+        for (int p = 0; p < playerCount; p++) {
+            for (int slot = 0; slot < handSize; slot++)
+                possible[index(p, slot)] = ALL_CARDS;
+        }
+    }
+
+    /*
+    To be called once for each turn, with all the events from that turn
+     */
+    public void onTurn(List<GameEvent> events) {
+        int turn = OTHER;
+        if (!events.isEmpty()) {
+            GameEvent first = events.get(0);
+            if (first instanceof CardInfo) {
+                CardInfo tell = (CardInfo) first;
+                int touched = 0;
+                for (int slot : tell.getSlots())
+                    touched |= 1 << slot;
+                boolean redOrange = tell instanceof CardInfoColour &&
+                        (((CardInfoColour) tell).getColour() == CardColour.RED || ((CardInfoColour) tell).getColour() == CardColour.ORANGE);
+                turn = pack(TELL, tell.getPlayerTold(), touched, redOrange, 0);
+            } else if (first instanceof CardPlayed) {
+                CardPlayed played = (CardPlayed) first;
+                turn = pack(PLAY, played.getPlayerId(), 1 << played.getSlotId(), false, type(played.getColour(), played.getValue()));
+            } else if (first instanceof CardDiscarded) {
+                CardDiscarded discarded = (CardDiscarded) first;
+                turn = pack(DISCARD, discarded.getPlayerId(), 1 << discarded.getSlotId(), false, 0);
+            }
+        }
+        recentTurns[turnsSeen % recentTurns.length] = turn;
+        for (GameEvent event : events)
+            onEvent(event);
+        turnsSeen++;
+    }
+
+    public void onEvent(GameEvent event) {
+        if (event instanceof CardInfoColour) {
+            CardInfoColour tell = (CardInfoColour) event;
+            int colourMask = 0;
+            for (int value = 1; value <= 5; value++)
+                colourMask |= 1 << type(tell.getColour(), value);
+            onTell(tell, colourMask);
+        } else if (event instanceof CardInfoValue) {
+            CardInfoValue tell = (CardInfoValue) event;
+            int valueMask = 0;
+            for (CardColour colour : colours)
+                valueMask |= 1 << type(colour, tell.getValue());
+            onTell(tell, valueMask);
+        } else if (event instanceof CardPlayed) {
+            CardPlayed played = (CardPlayed) event;
+            int colour = played.getColour().ordinal();
+            if (table[colour] + 1 == played.getValue())
+                table[colour] = played.getValue();
+            cardGone(played.getPlayerId(), played.getSlotId());
+        } else if (event instanceof CardDiscarded) {
+            CardDiscarded discarded = (CardDiscarded) event;
+            cardGone(discarded.getPlayerId(), discarded.getSlotId());
+        } else if (event instanceof CardDrawn) {
+            CardDrawn drawn = (CardDrawn) event;
+            possible[index(drawn.getPlayerId(), drawn.getSlotId())] = ALL_CARDS;
+        } else if (event instanceof CardReceived) {
+            CardReceived received = (CardReceived) event;
+            possible[index(received.getPlayerId(), received.getSlotId())] = ALL_CARDS;
+        }
+    }
+
+    private void onTell(CardInfo tell, int mask) {
+        int player = tell.getPlayerTold();
+        int touched = 0;
+        for (int slot : tell.getSlots())
+            touched |= 1 << slot;
+        for (int slot = 0; slot < MAX_HAND_SIZE; slot++) {
+            int i = index(player, slot);
+            if (possible[i] == 0) continue;
+            possible[i] &= (touched & (1 << slot)) != 0 ? mask : ~mask;
+        }
+    }
+
+    private void cardGone(int player, int slot) {
+        // the slot stays empty unless we see a card drawn into it
+        possible[index(player, slot)] = 0;
+        mostRecentSlot[player] = slot;
+    }
+
+    private static int pack(int kind, int player, int slots, boolean redOrange, int cardType) {
+        return kind | player << 2 | slots << 5 | (redOrange ? 1 << 10 : 0) | cardType << 11;
+    }
+
+    private static int type(CardColour colour, int value) {
+        return colour.ordinal() * 5 + value - 1;
+    }
+
+    private static int index(int player, int slot) {
+        return player * MAX_HAND_SIZE + slot;
+    }
+
+    /*
+    The masks of cards (of those in inDeck) that player can have in each slot, given the Tells they have received and
+    the conventions. As in ConventionUtils, we go back through the recent turns from the latest, undoing plays to find
+    the table at the time of each Tell, and ignoring Tells about slots that have since been played or discarded. A
+    convention only narrows a slot if it leaves at least one card possible.
+     */
+    private int[] possibleMasks(int player, Conventions conv, int inDeck) {
+        int[] retValue = new int[MAX_HAND_SIZE];
+        for (int slot = 0; slot < MAX_HAND_SIZE; slot++)
+            retValue[slot] = possible[index(player, slot)] & inDeck;
+        if (conv == null || (!conv.singleTouchIsPlayable && !conv.redYellowMeansMostRecentIsPlayable))
+            return retValue;
+        int[] tableAtTell = table.clone();
+        int slotsDrawn = 0;
+        int turns = Math.min(turnsSeen, recentTurns.length);
+        for (int t = 1; t <= turns; t++) {
+            int turn = recentTurns[(turnsSeen - t) % recentTurns.length];
+            int kind = turn & 3;
+            int turnPlayer = (turn >>> 2) & 7;
+            int slots = (turn >>> 5) & 31;
+            if (kind == TELL && turnPlayer == player) {
+                if (conv.singleTouchIsPlayable && Integer.bitCount(slots) == 1 && (slots & slotsDrawn) == 0)
+                    restrictToPlayable(retValue, Integer.numberOfTrailingZeros(slots), tableAtTell);
+                if (conv.redYellowMeansMostRecentIsPlayable && (turn & 1 << 10) != 0) {
+                    int slot = mostRecentSlot[player];
+                    if (slot != -1 && (slotsDrawn & 1 << slot) == 0)
+                        restrictToPlayable(retValue, slot, tableAtTell);
+                }
+            } else if (kind == DISCARD) {
+                if (turnPlayer == player)
+                    slotsDrawn |= slots;
+            } else if (kind == PLAY) {
+                int cardType = turn >>> 11;
+                int colour = cardType / 5;
+                if (tableAtTell[colour] == cardType % 5 + 1)
+                    tableAtTell[colour]--;
+                if (turnPlayer == player)
+                    slotsDrawn |= slots;
+            }
+        }
+        return retValue;
+    }
+
+    private static void restrictToPlayable(int[] masks, int slot, int[] tableAtTell) {
+        int playable = 0;
+        for (CardColour colour : colours) {
+            if (tableAtTell[colour.ordinal()] < 5)
+                playable |= 1 << type(colour, tableAtTell[colour.ordinal()] + 1);
+        }
+        if ((masks[slot] & playable) != 0)
+            masks[slot] &= playable;
+    }
+
+    /*
+    The same format as ConventionUtils.bindBlindCardWithConventions(), using the Cards in deck
+     */
+    public Map<Integer, List<Card>> possibleCards(int player, int handSize, List<Card> deck, Conventions conv) {
+        int inDeck = 0;
+        for (Card c : deck)
+            inDeck |= 1 << SimulationState.code(c);
+        int[] masks = possibleMasks(player, conv, inDeck);
+        Map<Integer, List<Card>> retValue = new HashMap<>();
+        for (int slot = 0; slot < handSize; slot++) {
+            List<Card> cards = new ArrayList<>();
+            for (Card c : deck) {
+                if ((masks[slot] & (1 << SimulationState.code(c))) != 0)
+                    cards.add(c);
+            }
+            retValue.put(slot, cards);
+        }
+        return retValue;
+    }
+
+    /*
+    true if we have seen every turn that has been taken in state (so state is the real game, and not one from a search)
+     */
+    public boolean isSynchronisedWith(GameState state) {
+        return state.getPlayerCount() == playerCount && state.getActionHistory().size() == turnsSeen;
+    }
+}
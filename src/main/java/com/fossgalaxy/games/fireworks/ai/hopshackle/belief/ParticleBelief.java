@@ -0,0 +1,260 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.belief;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.HandSampler;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
+import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
+import com.fossgalaxy.games.fireworks.state.*;
+import com.fossgalaxy.games.fireworks.state.actions.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+A weighted population of possible hands for the root player, that is kept from one of their turns to the next.
+Each particle is the card (coded as in SimulationState, or -1 for none) in each slot.
+At the start of each of our turns update() is called: any slot we have played or discarded from since last time is
+re-drawn; a particle is then dropped if it is no longer consistent with what we know (as one of its cards has
+been ruled out by a Tell, or there are no longer enough copies left unseen). If a ParticleLikelihood is given, the
+weight of each survivor is then multiplied by how well it explains what the other players have done.
+When the effective sample size falls below half the population, we resample by weight (or draw afresh, if nothing
+survived). Each copy of a particle after the first is rejuvenated by redrawing the card in one slot, given the others,
+so that the population does not collapse onto a few hands.
+The search then takes its root determinisations from sample(), rather than drawing a new hand every iteration.
+ */
+public class ParticleBelief {
+
+    private final int size;
+    private int[][] particles;
+    private double[] weights;
+    private double[] cumulativeWeights;
+    private int liveParticles;
+    private int lastHistorySize = -1;
+
+    public ParticleBelief(int size) {
+        this.size = size;
+    }
+
+    public void update(int rootID, GameState state, Conventions conv, HandBeliefTracker tracker) {
+        update(rootID, state, conv, tracker, null);
+    }
+
+    public void update(int rootID, GameState state, Conventions conv, HandBeliefTracker tracker, ParticleLikelihood likelihood) {
+        Hand hand = state.getHand(rootID);
+        List<Card> toChooseFrom = state.getDeck().toList();
+        for (int slot = 0; slot < hand.getSize(); slot++) {
+            if (hand.getCard(slot) != null) toChooseFrom.add(hand.getCard(slot));
+        }
+        Map<Integer, List<Card>> possibleCards = tracker != null && tracker.isSynchronisedWith(state)
+                ? tracker.possibleCards(rootID, hand.getSize(), toChooseFrom, conv)
+                : ConventionUtils.bindBlindCardWithConventions(rootID, hand, toChooseFrom, state, conv);
+        int[] possibleMasks = new int[hand.getSize()];
+        for (int slot : possibleCards.keySet()) {
+            for (Card c : possibleCards.get(slot))
+                possibleMasks[slot] |= 1 << SimulationState.code(c);
+        }
+        int[] available = new int[SimulationState.CARD_TYPES];
+        for (Card c : toChooseFrom)
+            available[SimulationState.code(c)]++;
+
+        List<HistoryEntry> history = state.getActionHistory();
+        if (particles == null || history.size() < lastHistorySize) {
+            initialise(rootID, hand, possibleCards, toChooseFrom);
+            lastHistorySize = history.size();
+            return;
+        }
+        int redrawnSlots = 0;
+        for (int i = lastHistorySize; i < history.size(); i++) {
+            HistoryEntry entry = history.get(i);
+            if (entry.playerID != rootID) continue;
+            if (entry.action instanceof PlayCard) redrawnSlots |= 1 << ((PlayCard) entry.action).slot;
+            if (entry.action instanceof DiscardCard) redrawnSlots |= 1 << ((DiscardCard) entry.action).slot;
+        }
+        lastHistorySize = history.size();
+
+        int survivors = 0;
+        for (int p = 0; p < liveParticles; p++) {
+            int[] particle = particles[p];
+            if (stillConsistent(particle, redrawnSlots, possibleMasks, available, possibleCards, toChooseFrom)) {
+                weights[survivors] = weights[p] * (likelihood == null ? 1.0 : likelihood.of(particle));
+                particles[survivors++] = particle;
+            }
+        }
+        StatsCollator.addStatistics("PARTICLE_SURVIVAL", survivors / (double) liveParticles);
+        if (survivors == 0) {
+            initialise(rootID, hand, possibleCards, toChooseFrom);
+            return;
+        }
+        liveParticles = survivors;
+        double total = 0.0, totalSquared = 0.0;
+        for (int p = 0; p < liveParticles; p++) {
+            total += weights[p];
+            totalSquared += weights[p] * weights[p];
+        }
+        if (!(total > 0.0))
+            throw new AssertionError("Particle weights must be positive: " + total);
+        // we normalise to a mean of 1, so that the weights do not drift towards under- or over-flow
+        for (int p = 0; p < liveParticles; p++)
+            weights[p] *= liveParticles / total;
+        double effectiveSize = total * total / totalSquared;
+        StatsCollator.addStatistics("PARTICLE_ESS", effectiveSize / size);
+        if (effectiveSize < size / 2.0)
+            resample(possibleMasks, available, ThreadLocalRandom.current());
+        setCumulativeWeights();
+    }
+
+    /*
+    Systematic resampling by weight, back up to the full population. The first copy of each particle is kept as it
+    is; the others are rejuvenated
+     */
+    private void resample(int[] possibleMasks, int[] available, Random rnd) {
+        double total = 0.0;
+        for (int p = 0; p < liveParticles; p++)
+            total += weights[p];
+        double step = total / size;
+        double next = rnd.nextDouble() * step;
+        double cumulative = 0.0;
+        int[][] resampled = new int[size][];
+        int count = 0;
+        for (int p = 0; p < liveParticles && count < size; p++) {
+            cumulative += weights[p];
+            boolean first = true;
+            while (next < cumulative && count < size) {
+                resampled[count] = particles[p].clone();
+                if (!first) rejuvenate(resampled[count], possibleMasks, available, rnd);
+                first = false;
+                count++;
+                next += step;
+            }
+        }
+        // rounding can leave us one short
+        for (; count < size; count++)
+            resampled[count] = resampled[count - 1].clone();
+        particles = resampled;
+        weights = new double[size];
+        Arrays.fill(weights, 1.0);
+        liveParticles = size;
+    }
+
+    /*
+    Redraws the card in one slot, picked at random from those where there is a choice, from the cards that slot could
+    hold given the rest of the particle (in proportion to how many of each are left unseen)
+     */
+    private static void rejuvenate(int[] particle, int[] possibleMasks, int[] available, Random rnd) {
+        int[] unused = available.clone();
+        for (int card : particle)
+            if (card != -1) unused[card]--;
+        int start = rnd.nextInt(particle.length);
+        for (int n = 0; n < particle.length; n++) {
+            int slot = (start + n) % particle.length;
+            if (particle[slot] == -1) continue;
+            unused[particle[slot]]++;
+            int total = 0;
+            int options = 0;
+            for (int mask = possibleMasks[slot]; mask != 0; mask &= mask - 1) {
+                int type = Integer.numberOfTrailingZeros(mask);
+                if (unused[type] > 0) {
+                    total += unused[type];
+                    options++;
+                }
+            }
+            if (options > 1) {
+                int roll = rnd.nextInt(total);
+                for (int mask = possibleMasks[slot]; mask != 0; mask &= mask - 1) {
+                    int type = Integer.numberOfTrailingZeros(mask);
+                    roll -= Math.max(unused[type], 0);
+                    if (roll < 0) {
+                        particle[slot] = type;
+                        return;
+                    }
+                }
+            }
+            unused[particle[slot]]--;
+        }
+    }
+
+    private void setCumulativeWeights() {
+        cumulativeWeights = new double[liveParticles];
+        double cumulative = 0.0;
+        for (int p = 0; p < liveParticles; p++) {
+            cumulative += weights[p];
+            cumulativeWeights[p] = cumulative;
+        }
+    }
+
+    /*
+    Drops any cards in slots that have been redrawn, checks the rest, and then draws cards for the empty slots.
+    Returns false if the particle is no longer possible
+     */
+    private boolean stillConsistent(int[] particle, int redrawnSlots, int[] possibleMasks, int[] available,
+                                    Map<Integer, List<Card>> possibleCards, List<Card> toChooseFrom) {
+        int[] used = new int[SimulationState.CARD_TYPES];
+        boolean needsCards = false;
+        for (int slot = 0; slot < particle.length; slot++) {
+            if ((redrawnSlots & (1 << slot)) != 0 || possibleMasks[slot] == 0)
+                particle[slot] = -1;
+            if (particle[slot] == -1) {
+                needsCards |= possibleMasks[slot] != 0;
+                continue;
+            }
+            if ((possibleMasks[slot] & (1 << particle[slot])) == 0) return false;
+            if (++used[particle[slot]] > available[particle[slot]]) return false;
+        }
+        if (!needsCards) return true;
+
+        // the new cards must come from those not already in the particle
+        List<Card> remaining = new ArrayList<>(toChooseFrom.size());
+        for (Card c : toChooseFrom) {
+            int type = SimulationState.code(c);
+            if (used[type] > 0)
+                used[type]--;
+            else
+                remaining.add(c);
+        }
+        Map<Integer, List<Card>> toFill = new HashMap<>();
+        for (int slot = 0; slot < particle.length; slot++) {
+            if (particle[slot] == -1 && possibleMasks[slot] != 0)
+                toFill.put(slot, possibleCards.get(slot));
+        }
+        HandSampler sampler = new HandSampler(toFill, remaining);
+        if (!sampler.isFeasible()) return false;
+        for (Map.Entry<Integer, Card> entry : sampler.sample(ThreadLocalRandom.current()).entrySet())
+            particle[entry.getKey()] = SimulationState.code(entry.getValue());
+        return true;
+    }
+
+    private void initialise(int rootID, Hand hand, Map<Integer, List<Card>> possibleCards, List<Card> toChooseFrom) {
+        HandSampler sampler = new HandSampler(possibleCards, toChooseFrom);
+        if (!sampler.isFeasible()) {
+            // as in AllPlayerDeterminiser, if the conventions rule out every hand we fall back to the grounded information
+            sampler = new HandSampler(DeckUtils.bindBlindCard(rootID, hand, toChooseFrom), toChooseFrom);
+            if (!sampler.isFeasible())
+                throw new AssertionError("No consistent set of cards for player " + rootID);
+        }
+        particles = new int[size][];
+        Random rnd = ThreadLocalRandom.current();
+        for (int p = 0; p < size; p++) {
+            int[] particle = new int[hand.getSize()];
+            Arrays.fill(particle, -1);
+            for (Map.Entry<Integer, Card> entry : sampler.sample(rnd).entrySet())
+                particle[entry.getKey()] = SimulationState.code(entry.getValue());
+            particles[p] = particle;
+        }
+        weights = new double[size];
+        Arrays.fill(weights, 1.0);
+        liveParticles = size;
+        setCumulativeWeights();
+    }
+
+    /*
+    One of the current particles, chosen at random in proportion to its weight. The array must not be changed.
+     */
+    public int[] sample(Random rnd) {
+        double roll = rnd.nextDouble() * cumulativeWeights[liveParticles - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, roll);
+        if (index < 0) index = -index - 1;
+        return particles[Math.min(index, liveParticles - 1)];
+    }
+}
@@ -0,0 +1,15 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.belief;
+
+/*
+Used by ParticleBelief to weight each particle by how well it explains what the other players have done since the
+last update; for example by how likely their opponent models are to have taken the actions they did, had the root
+player held that hand
+ */
+public interface ParticleLikelihood {
+
+    /*
+    hand gives the card in each slot (coded as in SimulationState, or -1 for none). This need only be proportional
+    to the likelihood, but must be positive
+     */
+    double of(int[] hand);
+}
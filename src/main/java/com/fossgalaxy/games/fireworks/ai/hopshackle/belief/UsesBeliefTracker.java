@@ -0,0 +1,10 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.belief;
+
+/*
+Implemented by any Agent that can make use of a HandBeliefTracker. HopshackleAgentPlayer creates one at the start of
+each game, and keeps it up to date with every event the player sees
+ */
+public interface UsesBeliefTracker {
+
+    void setBeliefTracker(HandBeliefTracker tracker);
+}
@@ -0,0 +1,143 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+Collects evaluation requests from several search threads, and passes them to the model in batches from a single
+evaluator task. Each caller blocks until its own rows have been valued. Whatever requests are waiting when the
+evaluator is ready are put into one batch (up to maxBatch rows), so while one batch is being valued, the next one
+builds up.
+One evaluator is kept by an agent for the whole game: start() is called at the beginning of each search, and stop()
+at the end. The evaluator task runs on the executor passed in, so no threads are created for each move, and it waits
+on the queue (rather than polling), so stop() returns as soon as the requests already made have been valued.
+While stopped, requests are just valued directly by the calling thread.
+The mean number of rows per batch is reported to StatsCollator as NN_BATCH_SIZE when stopped.
+ */
+public class BatchedEvaluator implements NNEvaluator {
+
+    public static final int DEFAULT_MAX_BATCH = 256;
+    // put on the queue by stop(); everything before it is valued, and then the evaluator task ends
+    private static final Request STOP = new Request(new double[0][]);
+
+    private final NNEvaluator model;
+    private final ExecutorService executor;
+    private final int maxBatch;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private Future<?> evaluatorTask;
+    // only changed by the evaluator task
+    private long batches, rowsEvaluated;
+
+    public BatchedEvaluator(NNEvaluator model, ExecutorService executor) {
+        this(model, executor, DEFAULT_MAX_BATCH);
+    }
+
+    public BatchedEvaluator(NNEvaluator model, ExecutorService executor, int maxBatch) {
+        this.model = model;
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+    }
+
+    public synchronized void start() {
+        if (evaluatorTask != null)
+            throw new AssertionError("BatchedEvaluator has already been started");
+        batches = 0;
+        rowsEvaluated = 0;
+        evaluatorTask = executor.submit(this::run);
+    }
+
+    @Override
+    public double[][] evaluate(double[][] rows) {
+        if (rows.length == 0) return new double[0][];
+        Request request = new Request(rows);
+        synchronized (this) {
+            if (evaluatorTask != null) queue.add(request);
+            else request = null;
+        }
+        if (request == null) return model.evaluate(rows);
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError("Interrupted while waiting for NN evaluation", e);
+        } catch (ExecutionException e) {
+            throw new AssertionError("NN evaluation failed", e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            Request first;
+            try {
+                first = queue.take();
+            } catch (InterruptedException e) {
+                // we only end once we reach STOP, as until then callers may be waiting on us
+                continue;
+            }
+            if (first == STOP) return;
+            batch.clear();
+            batch.add(first);
+            int total = first.rows.length;
+            Request next;
+            // we are the only thread that takes from the queue, so the head cannot change between peek and poll
+            while ((next = queue.peek()) != null && next != STOP && total + next.rows.length <= maxBatch) {
+                batch.add(queue.poll());
+                total += next.rows.length;
+            }
+            evaluateBatch(batch, total);
+        }
+    }
+
+    private void evaluateBatch(List<Request> batch, int total) {
+        try {
+            double[][] input = new double[total][];
+            int i = 0;
+            for (Request request : batch)
+                for (double[] row : request.rows)
+                    input[i++] = row;
+            double[][] output = model.evaluate(input);
+            i = 0;
+            for (Request request : batch) {
+                request.result.complete(Arrays.copyOfRange(output, i, i + request.rows.length));
+                i += request.rows.length;
+            }
+            batches++;
+            rowsEvaluated += total;
+        } catch (RuntimeException | Error e) {
+            for (Request request : batch)
+                request.result.completeExceptionally(e);
+        }
+    }
+
+    public void stop() {
+        Future<?> task;
+        synchronized (this) {
+            task = evaluatorTask;
+            if (task == null) return;
+            // no more requests can be added after this
+            evaluatorTask = null;
+            queue.add(STOP);
+        }
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new AssertionError("NN evaluator failed", e.getCause());
+        }
+        if (batches > 0)
+            StatsCollator.addStatistics("NN_BATCH_SIZE", rowsEvaluated / (double) batches);
+    }
+
+    private static final class Request {
+        final double[][] rows;
+        final CompletableFuture<double[][]> result = new CompletableFuture<>();
+
+        Request(double[][] rows) {
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+/*
+The inner loops of HopshackleNN inference (the dot product of a row of weights with the inputs, and the activation
+functions applied in place to the first length entries of an array).
+This is the Java 8 version. The jar is multi-release, and on Java 17 or later the version of this class in
+src/main/java17 is used instead, which uses the Vector API (jdk.incubator.vector) when the JVM is started with
+--add-modules jdk.incubator.vector, and otherwise falls back to these same loops.
+ */
+public final class DenseKernels {
+
+    private DenseKernels() {
+    }
+
+    public static boolean isVectorised() {
+        return false;
+    }
+
+    public static double dot(double[] weights, int offset, double[] input, int length) {
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static double dot(float[] weights, int offset, float[] input, int length) {
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static double dot(byte[] weights, int offset, float[] input, int length) {
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static void relu(double[] activations, int length) {
+        ScalarKernels.relu(activations, length);
+    }
+
+    public static void rectifiedTanh(double[] activations, int length) {
+        ScalarKernels.rectifiedTanh(activations, length);
+    }
+
+    public static void exp(double[] activations, int length) {
+        ScalarKernels.exp(activations, length);
+    }
+}
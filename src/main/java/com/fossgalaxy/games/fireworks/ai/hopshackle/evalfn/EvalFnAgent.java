@@ -1,6 +1,7 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
 
 import com.fossgalaxy.games.fireworks.ai.Agent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.HasWorkerCopy;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSRuleInfoSet;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.LegalActionFilter;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.RuleGenerator;
@@ -13,22 +14,26 @@ import com.fossgalaxy.games.fireworks.state.actions.Action;
 import com.fossgalaxy.games.fireworks.state.actions.DiscardCard;
 import com.fossgalaxy.games.fireworks.state.actions.PlayCard;
 import com.fossgalaxy.games.fireworks.state.events.GameEvent;
-import org.javatuples.Pair;
 import org.slf4j.*;
 
-import java.io.FileInputStream;
 import java.util.*;
 import java.util.stream.*;
 
-public class EvalFnAgent implements Agent {
+public class EvalFnAgent implements Agent, HasWorkerCopy, Cloneable {
 
     private Logger logger = LoggerFactory.getLogger(EvalFnAgent.class);
     private HopshackleNN brain;
+    // what values a batch of actions; normally just brain, but may be swapped for a BatchedEvaluator during a search
+    private volatile NNEvaluator evaluator;
+    // values already given to each feature vector; null if there is no cache
+    private EvaluationCache evaluationCache = new EvaluationCache();
     private double temperature;
     private boolean debug = false;
     private Random rand = new Random(47);
     private List<Rule> rules;
     private StateGathererWithTarget stateGatherer;
+    // the features are written straight into this, rather than via a Map
+    private static final ThreadLocal<double[]> featureBuffer = ThreadLocal.withInitial(() -> new double[StateGatherer.FEATURE_COUNT]);
 
     @AgentConstructor("evalFn")
     public EvalFnAgent(String modelLocation, double temp, String rules, String conventions) {
@@ -38,13 +43,8 @@ public class EvalFnAgent implements Agent {
         stateGatherer = new StateGathererWithTarget(rules, conventions);
     //    debug = logger.isDebugEnabled();
         try {
-            if (modelLocation.startsWith("RES")) {
-                modelLocation = modelLocation.substring(3);
-                ClassLoader classLoader = getClass().getClassLoader();
-                brain = HopshackleNN.createFromStream(classLoader.getResourceAsStream(modelLocation));
-            } else {
-                brain = HopshackleNN.createFromStream(new FileInputStream(modelLocation));
-            }
+            brain = ModelRegistry.get(modelLocation);
+            evaluator = brain;
         } catch (Exception e) {
             System.out.println("Error when reading in Model from " + modelLocation + ": " + e.toString());
             e.printStackTrace();
@@ -53,9 +53,47 @@ public class EvalFnAgent implements Agent {
 
     public EvalFnAgent(HopshackleNN brain, double temp) {
         this.brain = brain;
+        evaluator = brain;
         temperature = temp;
     }
 
+    /*
+    The copy shares the model, evaluator, cache, rules and feature extraction (all safe to use from several threads),
+    so only the Random that doMove() picks with is its own
+     */
+    @Override
+    public EvalFnAgent copyForWorker() {
+        try {
+            EvalFnAgent copy = (EvalFnAgent) clone();
+            copy.rand = new Random();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError("EvalFnAgent should be Cloneable", e);
+        }
+    }
+
+    public HopshackleNN getBrain() {
+        return brain;
+    }
+
+    public EvaluationCache getEvaluationCache() {
+        return evaluationCache;
+    }
+
+    /*
+    Replaces the evaluation cache with an empty one of the given capacity; a capacity of zero turns caching off
+     */
+    public void setEvaluationCacheCapacity(int capacity) {
+        evaluationCache = capacity > 0 ? new EvaluationCache(capacity) : null;
+    }
+
+    /*
+    Sets what getAllActionValues() uses to value its batch of actions; null goes back to using the model directly
+     */
+    public void setEvaluator(NNEvaluator newEvaluator) {
+        evaluator = newEvaluator == null ? brain : newEvaluator;
+    }
+
     @Override
     public Action doMove(int agentID, GameState gameState) {
         /*
@@ -132,27 +170,71 @@ public class EvalFnAgent implements Agent {
     }
 
     public double valueState(GameState state, Optional<Action> action, int agentID) {
-        Map<String, Double> features = stateGatherer.extractFeatures(state, agentID);
+        double[] featureRepresentation = featureBuffer.get();
+        stateGatherer.extractFeatures(state, agentID, featureRepresentation);
         if (action.isPresent())
-            features.putAll(stateGatherer.extractActionFeatures(action.get(), state, agentID));
-        double[] featureRepresentation = stateGatherer.featuresToArray(features);
+            stateGatherer.extractActionFeatures(action.get(), state, agentID, featureRepresentation, 0);
         if (debug) {
             logger.debug(Arrays.stream(featureRepresentation).mapToObj(d -> String.format("%.3f", d)).collect(Collectors.joining("\t")));
         }
-        double[] output = brain.process(featureRepresentation);
-        return output[0];
+        EvaluationCache cache = evaluationCache;
+        if (cache == null)
+            return brain.value(featureRepresentation);
+        double retValue = cache.get(featureRepresentation);
+        if (Double.isNaN(retValue)) {
+            retValue = brain.value(featureRepresentation);
+            cache.put(featureRepresentation, retValue);
+        }
+        return retValue;
     }
 
 
     public Map<Action, Double> getAllActionValues(int agentID, GameState gameState) {
         List<Action> actionsToBeConsidered = getPossibleActions(agentID, gameState);
-        List<Double> actionValues = actionsToBeConsidered.stream()
-                .map(a -> new Pair(a, rollForward(a, agentID, gameState)))
-                .map(p -> valueState(((GameState) p.getValue1()), Optional.ofNullable((Action) p.getValue0()), agentID))
-                .collect(Collectors.toList());
+        /*
+        Play and Discard actions are not rolled forward, so share the features of gameState, and just add their own
+        action features. Tell actions are valued on the state after the Tell. All are then valued in one batch
+         */
+        double[][] featureRepresentations = new double[actionsToBeConsidered.size()][];
+        double[] stateFeatures = null;
+        for (int i = 0; i < featureRepresentations.length; i++) {
+            Action action = actionsToBeConsidered.get(i);
+            GameState nextState = rollForward(action, agentID, gameState);
+            if (nextState == gameState) {
+                if (stateFeatures == null) {
+                    stateFeatures = new double[StateGatherer.FEATURE_COUNT];
+                    stateGatherer.extractFeatures(gameState, agentID, stateFeatures);
+                }
+                featureRepresentations[i] = stateFeatures.clone();
+            } else {
+                featureRepresentations[i] = new double[StateGatherer.FEATURE_COUNT];
+                stateGatherer.extractFeatures(nextState, agentID, featureRepresentations[i]);
+            }
+            stateGatherer.extractActionFeatures(action, gameState, agentID, featureRepresentations[i], 0);
+        }
+        // only those not already in the cache go to the network
+        EvaluationCache cache = evaluationCache;
+        double[] values = new double[featureRepresentations.length];
+        int[] uncached = new int[featureRepresentations.length];
+        int uncachedCount = 0;
+        for (int i = 0; i < featureRepresentations.length; i++) {
+            values[i] = cache == null ? Double.NaN : cache.get(featureRepresentations[i]);
+            if (Double.isNaN(values[i]))
+                uncached[uncachedCount++] = i;
+        }
+        if (uncachedCount > 0) {
+            double[][] toEvaluate = new double[uncachedCount][];
+            for (int j = 0; j < uncachedCount; j++)
+                toEvaluate[j] = featureRepresentations[uncached[j]];
+            double[][] output = evaluator.evaluate(toEvaluate);
+            for (int j = 0; j < uncachedCount; j++) {
+                values[uncached[j]] = output[j][0];
+                if (cache != null) cache.put(toEvaluate[j], output[j][0]);
+            }
+        }
         Map<Action, Double> retValue = new HashMap<>();
-        IntStream.range(0, actionsToBeConsidered.size())
-                .forEach(i -> retValue.put(actionsToBeConsidered.get(i), actionValues.get(i)));
+        for (int i = 0; i < values.length; i++)
+            retValue.put(actionsToBeConsidered.get(i), values[i]);
         return retValue;
     }
 }
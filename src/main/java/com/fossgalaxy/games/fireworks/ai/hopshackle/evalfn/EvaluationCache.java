@@ -0,0 +1,114 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Remembers the value the network gave to a feature vector, so that the same (information state, action) met again
+later in a search does not need another forward pass.
+The key is a 64-bit hash of the features; the features themselves are kept with the value and compared on a hit, so
+a hash collision is just a miss. The entries are spread over a number of stripes (each an LRU map under its own
+lock) so that search threads seldom wait for each other; in total at most capacity entries are kept.
+Hits and misses are reported to StatsCollator as EVAL_CACHE_HIT_RATE by reportStatistics().
+ */
+public class EvaluationCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    private static final int STRIPES = 16;
+
+    private final List<Map<Long, CachedValue>> stripes = new ArrayList<>(STRIPES);
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public EvaluationCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EvaluationCache(int capacity) {
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new LinkedHashMap<Long, CachedValue>(stripeCapacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedValue> eldest) {
+                    return size() > stripeCapacity;
+                }
+            });
+        }
+    }
+
+    /*
+    The cached value for features, or NaN if there is none
+     */
+    public double get(double[] features) {
+        long hash = hash(features);
+        Map<Long, CachedValue> stripe = stripeFor(hash);
+        CachedValue entry;
+        synchronized (stripe) {
+            entry = stripe.get(hash);
+        }
+        if (entry != null && Arrays.equals(entry.features, features)) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return Double.NaN;
+    }
+
+    /*
+    features is copied, so the caller may reuse the array
+     */
+    public void put(double[] features, double value) {
+        long hash = hash(features);
+        Map<Long, CachedValue> stripe = stripeFor(hash);
+        CachedValue entry = new CachedValue(features.clone(), value);
+        synchronized (stripe) {
+            stripe.put(hash, entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /*
+    Reports the hit rate since the last call
+     */
+    public void reportStatistics() {
+        long h = hits.getAndSet(0);
+        long m = misses.getAndSet(0);
+        if (h + m > 0)
+            StatsCollator.addStatistics("EVAL_CACHE_HIT_RATE", h / (double) (h + m));
+    }
+
+    private Map<Long, CachedValue> stripeFor(long hash) {
+        return stripes.get((int) (hash >>> 60) & (STRIPES - 1));
+    }
+
+    private static long hash(double[] features) {
+        // FNV-1a over the bits of each feature, then mixed so that the top bits (which pick the stripe) are spread
+        long retValue = 0xcbf29ce484222325L;
+        for (double f : features) {
+            retValue ^= Double.doubleToLongBits(f);
+            retValue *= 0x100000001b3L;
+        }
+        retValue ^= retValue >>> 33;
+        retValue *= 0xff51afd7ed558ccdL;
+        retValue ^= retValue >>> 33;
+        return retValue;
+    }
+
+    private static final class CachedValue {
+        final double[] features;
+        final double value;
+
+        CachedValue(double[] features, double value) {
+            this.features = features;
+            this.value = value;
+        }
+    }
+}
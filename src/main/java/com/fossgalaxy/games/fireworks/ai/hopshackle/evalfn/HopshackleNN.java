@@ -2,15 +2,26 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
 
 import com.google.gson.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
-public class HopshackleNN {
+public class HopshackleNN implements NNEvaluator {
 
     enum ACTIVATION {
         RELU, RECTIFIED_TANH, SOFTMAX
     }
 
+    /*
+    How the weights are held for inference. DOUBLE is exact; FLOAT halves the size of the weights, and INT8 (one byte
+    per weight, with a scale for each neuron) quarters it, at some loss of accuracy (see PrecisionCheck). These save
+    memory rather than time: with the networks used here, neither is faster than DOUBLE.
+     */
+    public enum Precision {
+        DOUBLE, FLOAT, INT8
+    }
+
     private ACTIVATION[] layers;
     private int[] inputsByLayer;
     private int[] outputsByLayer;
@@ -20,11 +31,192 @@ public class HopshackleNN {
     private double[] meansForInput;
     private double[] stdForInput;
 
+    private transient Precision precision;
+    private transient volatile Compiled compiled;
+
+    private HopshackleNN() {
+    }
+
+    /*
+    A network with the given weights (by layer, neuron and input) and normalisation of the inputs, as from
+    HopshackleNNTrainer
+     */
+    HopshackleNN(ACTIVATION[] layers, double[][][] weights, double[][] biases, double[] means, double[] std) {
+        this.layers = layers;
+        inputsByLayer = new int[layers.length];
+        outputsByLayer = new int[layers.length];
+        for (int layer = 0; layer < layers.length; layer++) {
+            outputsByLayer[layer] = weights[layer].length;
+            inputsByLayer[layer] = weights[layer][0].length;
+        }
+        weightsByLayerNeuronAndInput = weights;
+        biasByLayerAndNeuron = biases;
+        meansForInput = means;
+        stdForInput = std;
+    }
+
+    private static final int BINARY_MAGIC = 0x48534E4E;   // 'HSNN'
+    private static final int BINARY_VERSION = 2;
+    // the source hash of a binary model that was not converted from JSON (or was written in version 1)
+    public static final long NO_SOURCE = -1L;
+
+    /*
+    Reads either format: the binary one (see createFromBinary) or JSON
+     */
     public static HopshackleNN createFromStream(InputStream input) {
-        Gson gson = new Gson();
-        String asString = new BufferedReader(new InputStreamReader(input))
-                .lines().collect(Collectors.joining("\n"));
-        return gson.fromJson(asString, HopshackleNN.class);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] block = new byte[1 << 16];
+            for (int read = input.read(block); read != -1; read = input.read(block))
+                bytes.write(block, 0, read);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            if (isBinary(buffer))
+                return createFromBinary(buffer);
+            return createFromJSON(new String(buffer.array(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static HopshackleNN createFromJSON(String json) {
+        return new Gson().fromJson(json, HopshackleNN.class);
+    }
+
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == BINARY_MAGIC;
+    }
+
+    /*
+    The hash of a JSON model, as recorded in a binary model converted from it (see ModelConverter); the CRC32 of its
+    bytes, so never NO_SOURCE
+     */
+    public static long sourceHash(byte[] json) {
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        return crc.getValue();
+    }
+
+    /*
+    The hash of the JSON model that a binary model was converted from, or NO_SOURCE
+     */
+    public static long sourceHashOf(ByteBuffer binary) {
+        binary = binary.duplicate().order(ByteOrder.BIG_ENDIAN);
+        return readHeader(binary);
+    }
+
+    /*
+    Checks the magic number and version, and returns the source hash, leaving buffer at the number of layers
+     */
+    private static long readHeader(ByteBuffer buffer) {
+        if (buffer.getInt() != BINARY_MAGIC)
+            throw new AssertionError("Not a binary HopshackleNN model");
+        int version = buffer.getInt();
+        if (version == 1)
+            return NO_SOURCE;
+        if (version != BINARY_VERSION)
+            throw new AssertionError("Unknown HopshackleNN binary format version " + version);
+        return buffer.getLong();
+    }
+
+    /*
+    The binary format is (all big-endian): the magic number 'HSNN'; the format version; the hash of the JSON it was
+    converted from (see sourceHash); the number of layers; then for each layer its activation (as the ordinal), inputs
+    and outputs; the means and then the standard deviations of the inputs; then for each layer the weights (neuron by
+    input) followed by the biases. Version 1 is the same, without the hash.
+     */
+    public static HopshackleNN createFromBinary(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        readHeader(buffer);
+        HopshackleNN retValue = new HopshackleNN();
+        int layerCount = buffer.getInt();
+        retValue.layers = new ACTIVATION[layerCount];
+        retValue.inputsByLayer = new int[layerCount];
+        retValue.outputsByLayer = new int[layerCount];
+        for (int layer = 0; layer < layerCount; layer++) {
+            retValue.layers[layer] = ACTIVATION.values()[buffer.getInt()];
+            retValue.inputsByLayer[layer] = buffer.getInt();
+            retValue.outputsByLayer[layer] = buffer.getInt();
+        }
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        retValue.meansForInput = new double[retValue.inputsByLayer[0]];
+        retValue.stdForInput = new double[retValue.inputsByLayer[0]];
+        doubles.get(retValue.meansForInput);
+        doubles.get(retValue.stdForInput);
+        retValue.weightsByLayerNeuronAndInput = new double[layerCount][][];
+        retValue.biasByLayerAndNeuron = new double[layerCount][];
+        for (int layer = 0; layer < layerCount; layer++) {
+            retValue.weightsByLayerNeuronAndInput[layer] = new double[retValue.outputsByLayer[layer]][retValue.inputsByLayer[layer]];
+            for (double[] neuron : retValue.weightsByLayerNeuronAndInput[layer])
+                doubles.get(neuron);
+            retValue.biasByLayerAndNeuron[layer] = new double[retValue.outputsByLayer[layer]];
+            doubles.get(retValue.biasByLayerAndNeuron[layer]);
+        }
+        return retValue;
+    }
+
+    public void writeBinary(OutputStream output) throws IOException {
+        writeBinary(output, NO_SOURCE);
+    }
+
+    public void writeBinary(OutputStream output, long sourceHash) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        data.writeLong(sourceHash);
+        data.writeInt(layers.length);
+        for (int layer = 0; layer < layers.length; layer++) {
+            data.writeInt(layers[layer].ordinal());
+            data.writeInt(inputsByLayer[layer]);
+            data.writeInt(outputsByLayer[layer]);
+        }
+        for (double d : meansForInput) data.writeDouble(d);
+        for (double d : stdForInput) data.writeDouble(d);
+        for (int layer = 0; layer < layers.length; layer++) {
+            for (double[] neuron : weightsByLayerNeuronAndInput[layer])
+                for (double w : neuron) data.writeDouble(w);
+            for (double b : biasByLayerAndNeuron[layer]) data.writeDouble(b);
+        }
+        data.flush();
+    }
+
+    public Precision getPrecision() {
+        return precision == null ? Precision.DOUBLE : precision;
+    }
+
+    /*
+    The same network, running at newPrecision. The original is unchanged, and the two share the weights as read in
+     */
+    public HopshackleNN withPrecision(Precision newPrecision) {
+        if (newPrecision == getPrecision()) return this;
+        HopshackleNN retValue = new HopshackleNN();
+        retValue.layers = layers;
+        retValue.inputsByLayer = inputsByLayer;
+        retValue.outputsByLayer = outputsByLayer;
+        retValue.weightsByLayerNeuronAndInput = weightsByLayerNeuronAndInput;
+        retValue.biasByLayerAndNeuron = biasByLayerAndNeuron;
+        retValue.meansForInput = meansForInput;
+        retValue.stdForInput = stdForInput;
+        retValue.precision = newPrecision;
+        return retValue;
+    }
+
+    public int getInputCount() {
+        return inputsByLayer[0];
+    }
+
+    double getInputMean(int input) {
+        return meansForInput[input];
+    }
+
+    double getInputStd(int input) {
+        return stdForInput[input];
+    }
+
+    /*
+    The memory taken by the weights used for inference
+     */
+    public long getWeightBytes() {
+        return compiled().weightBytes();
     }
 
     public void writeToFile(String fileLocation) {
@@ -40,44 +232,351 @@ public class HopshackleNN {
     }
 
 
+    /*
+    The output of the network for data. The result is a new array; see value() for the common case of a single output.
+     */
     public double[] process(double[] data) {
-        if (data.length != inputsByLayer[0])
-            throw new AssertionError("Must have " + inputsByLayer[0] + " inputs instead of " + data.length);
+        Compiled net = compiled();
+        return Arrays.copyOf(net.forward(data), net.outputs[net.layers.length - 1]);
+    }
+
+    /*
+    The first output of the network, without allocating anything
+     */
+    public double value(double[] data) {
+        return compiled().forward(data)[0];
+    }
 
-        double[] input = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            input[i] = (data[i] - meansForInput[i]) / stdForInput[i];
+    /*
+    The same as calling process() on each row of data, but each layer is applied to all rows at once, so that each
+    weight is read once per layer rather than once per row
+     */
+    public double[][] processBatch(double[][] data) {
+        Compiled net = compiled();
+        int rows = data.length;
+        for (double[] row : data)
+            net.checkInputs(row);
+        double[][] input = data;
+        for (int layer = 0; layer < net.layers.length; layer++) {
+            double[][] output = new double[rows][net.outputs[layer]];
+            net.layer(layer, input, output);
+            for (int r = 0; r < rows; r++)
+                activate(net.layers[layer], output[r], output[r].length);
+            input = output;
         }
-        double[][] activationsByLayerAndNeuron = new double[layers.length][];
-        for (int layer = 0; layer < layers.length; layer++) {
-            activationsByLayerAndNeuron[layer] = new double[outputsByLayer[layer]];
-            for (int neuron = 0; neuron < outputsByLayer[layer]; neuron++) {
-                double activation = 0.0;
-                for (int previousOutput = 0; previousOutput < input.length; previousOutput++) {
-                    activation += input[previousOutput] * weightsByLayerNeuronAndInput[layer][neuron][previousOutput];
-                }
-                activation += biasByLayerAndNeuron[layer][neuron];
-                switch (layers[layer]) {
-                    case RELU:
-                        activation = Math.max(0, activation);
-                        break;
-                    case RECTIFIED_TANH:
-                        activation = Math.max(0, Math.tanh(activation));
-                        break;
-                    case SOFTMAX:
-                        activation = Math.exp(activation);
-                        break;
-                    default:
+        return input;
+    }
+
+    @Override
+    public double[][] evaluate(double[][] rows) {
+        return processBatch(rows);
+    }
+
+    /*
+    Applies the activation function to the first length entries of activations
+     */
+    private static void activate(ACTIVATION type, double[] activations, int length) {
+        switch (type) {
+            case RELU:
+                DenseKernels.relu(activations, length);
+                break;
+            case RECTIFIED_TANH:
+                DenseKernels.rectifiedTanh(activations, length);
+                break;
+            case SOFTMAX:
+                subtractLargest(activations, length);
+                DenseKernels.exp(activations, length);
+                normalise(activations, length);
+                break;
+        }
+    }
+
+    private static void subtractLargest(double[] activations, int length) {
+        // this does not change the softmax, but stops exp() overflowing to infinity (and the result being NaN)
+        double largest = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) largest = Math.max(largest, activations[i]);
+        for (int i = 0; i < length; i++) activations[i] -= largest;
+    }
+
+    private static void normalise(double[] activations, int length) {
+        // a softmax layer is linked as a whole
+        double totalActivation = 0.0;
+        for (int i = 0; i < length; i++) totalActivation += activations[i];
+        for (int i = 0; i < length; i++) activations[i] /= totalActivation;
+    }
+
+    private Compiled compiled() {
+        Compiled retValue = compiled;
+        if (retValue == null) {
+            // two threads may both do this, which does no harm
+            switch (getPrecision()) {
+                case FLOAT:
+                    retValue = new FloatCompiled(this);
+                    break;
+                case INT8:
+                    retValue = new Int8Compiled(this);
+                    break;
+                default:
+                    retValue = new DoubleCompiled(this);
+            }
+            compiled = retValue;
+        }
+        return retValue;
+    }
+
+    /*
+    The network in the form used for inference, built the first time it is needed (the fields above are what is read
+    from, and written to, file). Each layer's weights are held in one row-major array (neuron by input), and the
+    normalisation of the inputs is folded into the weights and bias of the first layer. Each thread has its own
+    scratch buffers for the activations, so a forward pass allocates nothing.
+    How the weights are stored, and so how a dot product is done, depends on the Precision.
+     */
+    private abstract static class Compiled {
+        final ACTIVATION[] layers;
+        final int[] inputs;
+        final int[] outputs;
+        final double[][] biases;
+        final ThreadLocal<double[][]> scratch;
+
+        Compiled(HopshackleNN nn) {
+            layers = nn.layers.clone();
+            inputs = nn.inputsByLayer.clone();
+            outputs = nn.outputsByLayer.clone();
+            biases = new double[layers.length][];
+            int widest = 0;
+            for (int layer = 0; layer < layers.length; layer++) {
+                biases[layer] = nn.biasByLayerAndNeuron[layer].clone();
+                widest = Math.max(widest, outputs[layer]);
+            }
+            int width = widest;
+            scratch = ThreadLocal.withInitial(() -> new double[][]{new double[width], new double[width]});
+        }
+
+        /*
+        The weights of each layer in row-major order. If fold, the normalisation is folded into the first layer (which
+        also changes the biases of the first layer)
+         */
+        double[][] rowMajorWeights(HopshackleNN nn, boolean fold) {
+            double[][] retValue = new double[layers.length][];
+            for (int layer = 0; layer < layers.length; layer++) {
+                retValue[layer] = new double[outputs[layer] * inputs[layer]];
+                for (int neuron = 0; neuron < outputs[layer]; neuron++) {
+                    for (int i = 0; i < inputs[layer]; i++) {
+                        double w = nn.weightsByLayerNeuronAndInput[layer][neuron][i];
+                        if (layer == 0 && fold) {
+                            // (x - mean) / std . w  =  x . (w / std)  -  mean . (w / std)
+                            w /= nn.stdForInput[i];
+                            biases[layer][neuron] -= nn.meansForInput[i] * w;
+                        }
+                        retValue[layer][neuron * inputs[layer] + i] = w;
+                    }
                 }
-                activationsByLayerAndNeuron[layer][neuron] = activation;
             }
-            if (layers[layer] == ACTIVATION.SOFTMAX) {
-                // whole layer is linked
-                double totalActivation = Arrays.stream(activationsByLayerAndNeuron[layer]).sum();
-                for (int i = 0; i < activationsByLayerAndNeuron[layer].length; i++) activationsByLayerAndNeuron[layer][i] /= totalActivation;
+            return retValue;
+        }
+
+        /*
+        Sets each output of the layer to its bias plus the weighted sum of input (before the activation function)
+         */
+        abstract void layer(int layer, double[] input, double[] output);
+
+        /*
+        As above for each row of input, but a neuron at a time, so that each weight is read once rather than once per row
+         */
+        abstract void layer(int layer, double[][] input, double[][] output);
+
+        abstract long weightBytes();
+
+        void checkInputs(double[] data) {
+            if (data.length != inputs[0])
+                throw new AssertionError("Must have " + inputs[0] + " inputs instead of " + data.length);
+        }
+
+        /*
+        The result is one of the scratch buffers, and so is only valid until the next call on this thread
+         */
+        double[] forward(double[] data) {
+            checkInputs(data);
+            double[][] buffers = scratch.get();
+            double[] input = data;
+            for (int layer = 0; layer < layers.length; layer++) {
+                double[] output = buffers[layer % 2];
+                layer(layer, input, output);
+                activate(layers[layer], output, outputs[layer]);
+                input = output;
+            }
+            return input;
+        }
+    }
+
+    private static final class DoubleCompiled extends Compiled {
+        final double[][] weights;
+
+        DoubleCompiled(HopshackleNN nn) {
+            super(nn);
+            weights = rowMajorWeights(nn, true);
+        }
+
+        @Override
+        void layer(int layer, double[] input, double[] output) {
+            double[] b = biases[layer];
+            int n = inputs[layer];
+            for (int neuron = 0; neuron < outputs[layer]; neuron++)
+                output[neuron] = b[neuron] + DenseKernels.dot(weights[layer], neuron * n, input, n);
+        }
+
+        @Override
+        void layer(int layer, double[][] input, double[][] output) {
+            int n = inputs[layer];
+            for (int neuron = 0; neuron < outputs[layer]; neuron++) {
+                double bias = biases[layer][neuron];
+                for (int r = 0; r < input.length; r++)
+                    output[r][neuron] = bias + DenseKernels.dot(weights[layer], neuron * n, input[r], n);
+            }
+        }
+
+        @Override
+        long weightBytes() {
+            long retValue = 0;
+            for (double[] w : weights) retValue += 8L * w.length;
+            return retValue;
+        }
+    }
+
+    /*
+    For FLOAT and INT8 weights, the input to each layer is converted to floats once, and then each dot product is
+    done in float. These are there to save memory rather than time: these networks are small enough for the DOUBLE
+    weights to stay in cache, and converting the inputs (and for INT8 the weights) costs more than reading fewer bytes
+    saves (see PrecisionCheck).
+     */
+    private abstract static class FloatInputCompiled extends Compiled {
+        final ThreadLocal<float[]> floatScratch;
+
+        FloatInputCompiled(HopshackleNN nn) {
+            super(nn);
+            int widest = 0;
+            for (int n : inputs) widest = Math.max(widest, n);
+            int width = widest;
+            floatScratch = ThreadLocal.withInitial(() -> new float[width]);
+        }
+
+        /*
+        The weighted sum of input for neuron (not including the bias)
+         */
+        abstract double dot(int layer, int neuron, float[] input);
+
+        /*
+        The input to layer as floats
+         */
+        float[] toFloats(int layer, double[] input, float[] into) {
+            for (int i = 0; i < inputs[layer]; i++)
+                into[i] = (float) input[i];
+            return into;
+        }
+
+        @Override
+        void layer(int layer, double[] input, double[] output) {
+            float[] x = toFloats(layer, input, floatScratch.get());
+            double[] b = biases[layer];
+            for (int neuron = 0; neuron < outputs[layer]; neuron++)
+                output[neuron] = b[neuron] + dot(layer, neuron, x);
+        }
+
+        @Override
+        void layer(int layer, double[][] input, double[][] output) {
+            float[][] x = new float[input.length][];
+            for (int r = 0; r < input.length; r++)
+                x[r] = toFloats(layer, input[r], new float[inputs[layer]]);
+            for (int neuron = 0; neuron < outputs[layer]; neuron++) {
+                double bias = biases[layer][neuron];
+                for (int r = 0; r < input.length; r++)
+                    output[r][neuron] = bias + dot(layer, neuron, x[r]);
+            }
+        }
+    }
+
+    private static final class FloatCompiled extends FloatInputCompiled {
+        final float[][] weights;
+
+        FloatCompiled(HopshackleNN nn) {
+            super(nn);
+            double[][] folded = rowMajorWeights(nn, true);
+            weights = new float[folded.length][];
+            for (int layer = 0; layer < folded.length; layer++) {
+                weights[layer] = new float[folded[layer].length];
+                for (int i = 0; i < folded[layer].length; i++)
+                    weights[layer][i] = (float) folded[layer][i];
+            }
+        }
+
+        @Override
+        double dot(int layer, int neuron, float[] input) {
+            int n = inputs[layer];
+            return DenseKernels.dot(weights[layer], neuron * n, input, n);
+        }
+
+        @Override
+        long weightBytes() {
+            long retValue = 0;
+            for (float[] w : weights) retValue += 4L * w.length;
+            return retValue;
+        }
+    }
+
+    /*
+    Each weight is held as a byte, which multiplied by the scale of its neuron (the largest absolute weight into the
+    neuron / 127) gives the weight back to within half a scale. The normalisation is not folded into the first layer
+    (the inputs are normalised as they are converted to floats): some inputs hardly vary, and dividing their weights by
+    a standard deviation of 1e-5 would make the scale of every neuron so large that all its other weights became 0.
+     */
+    private static final class Int8Compiled extends FloatInputCompiled {
+        final byte[][] weights;
+        final double[][] scales;
+        final double[] means, std;
+
+        Int8Compiled(HopshackleNN nn) {
+            super(nn);
+            means = nn.meansForInput.clone();
+            std = nn.stdForInput.clone();
+            double[][] unfolded = rowMajorWeights(nn, false);
+            weights = new byte[unfolded.length][];
+            scales = new double[unfolded.length][];
+            for (int layer = 0; layer < unfolded.length; layer++) {
+                int n = inputs[layer];
+                weights[layer] = new byte[unfolded[layer].length];
+                scales[layer] = new double[outputs[layer]];
+                for (int neuron = 0; neuron < outputs[layer]; neuron++) {
+                    double largest = 0.0;
+                    for (int i = 0; i < n; i++) largest = Math.max(largest, Math.abs(unfolded[layer][neuron * n + i]));
+                    double scale = largest > 0.0 ? largest / 127.0 : 1.0;
+                    scales[layer][neuron] = scale;
+                    for (int i = 0; i < n; i++)
+                        weights[layer][neuron * n + i] = (byte) Math.round(unfolded[layer][neuron * n + i] / scale);
+                }
             }
-            input = activationsByLayerAndNeuron[layer]; // the input to the next layer
         }
-        return input;   // and we return the last activations
+
+        @Override
+        float[] toFloats(int layer, double[] input, float[] into) {
+            if (layer > 0)
+                return super.toFloats(layer, input, into);
+            for (int i = 0; i < inputs[0]; i++)
+                into[i] = (float) ((input[i] - means[i]) / std[i]);
+            return into;
+        }
+
+        @Override
+        double dot(int layer, int neuron, float[] input) {
+            int n = inputs[layer];
+            return DenseKernels.dot(weights[layer], neuron * n, input, n) * scales[layer][neuron];
+        }
+
+        @Override
+        long weightBytes() {
+            long retValue = 0;
+            for (int layer = 0; layer < weights.length; layer++)
+                retValue += weights[layer].length + 8L * scales[layer].length;
+            return retValue;
+        }
     }
 }
@@ -0,0 +1,429 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.HopshackleNN.ACTIVATION;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+Trains a HopshackleNN from the data files written by the StateGatherers and GameRunnerWithRandomAgents (StateData.csv,
+TreeData.csv, StateTargetData.csv, OpponentData.csv...). Each line of these is tab-separated, with the targets first
+and then the features.
+The inputs are normalised with the means and standard deviations of the training data (which are saved with the
+model), a fraction of the lines is held back for validation, and the weights are fitted with mini-batch Adam. The
+gradient of each mini-batch is split over several threads. The loss is cross-entropy if the last layer is SOFTMAX,
+and squared error otherwise. The model with the lowest validation loss is written with writeToFile().
+
+Usage: HopshackleNNTrainer <data file> <targets> <layers> <output file> [epochs] [learning rate] [batch size] [threads] [validation fraction]
+where targets is the number of target columns, and layers gives the size and activation of each layer in turn,
+e.g. 30:RELU,1:RECTIFIED_TANH (the number of inputs is the number of feature columns).
+ */
+public class HopshackleNNTrainer {
+
+    private static final double BETA1 = 0.9, BETA2 = 0.999, EPSILON = 1e-8;
+
+    private final ACTIVATION[] layers;
+    private final int[] sizes;      // sizes[0] is the number of inputs, sizes[l + 1] the outputs of layer l
+    private final double[][][] weights;
+    private final double[][] biases;
+    private final double[][][] weightM, weightV;
+    private final double[][] biasM, biasV;
+    private final double learningRate;
+    private final boolean crossEntropy;
+    private final int threads;
+    private ExecutorService workerPool;
+    private int steps;
+
+    public HopshackleNNTrainer(int inputs, int[] layerSizes, ACTIVATION[] layers, double learningRate, int threads, Random rnd) {
+        for (int layer = 0; layer < layers.length - 1; layer++)
+            if (layers[layer] == ACTIVATION.SOFTMAX)
+                throw new AssertionError("Only the last layer can be SOFTMAX");
+        this.layers = layers;
+        this.learningRate = learningRate;
+        this.threads = Math.max(1, threads);
+        crossEntropy = layers[layers.length - 1] == ACTIVATION.SOFTMAX;
+        sizes = new int[layers.length + 1];
+        sizes[0] = inputs;
+        System.arraycopy(layerSizes, 0, sizes, 1, layers.length);
+        weights = new double[layers.length][][];
+        biases = new double[layers.length][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            weights[layer] = new double[sizes[layer + 1]][sizes[layer]];
+            biases[layer] = new double[sizes[layer + 1]];
+            // Glorot uniform initialisation
+            double limit = Math.sqrt(6.0 / (sizes[layer] + sizes[layer + 1]));
+            for (double[] neuron : weights[layer])
+                for (int i = 0; i < neuron.length; i++)
+                    neuron[i] = (2.0 * rnd.nextDouble() - 1.0) * limit;
+        }
+        weightM = zerosLike(weights);
+        weightV = zerosLike(weights);
+        biasM = zerosLike(biases);
+        biasV = zerosLike(biases);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: HopshackleNNTrainer <data file> <targets> <layers> <output file> [epochs] " +
+                    "[learning rate] [batch size] [threads] [validation fraction]");
+            return;
+        }
+        int targetCount = Integer.valueOf(args[1]);
+        String[] layerSpecs = args[2].split(",");
+        int epochs = args.length > 4 ? Integer.valueOf(args[4]) : 50;
+        double learningRate = args.length > 5 ? Double.valueOf(args[5]) : 0.001;
+        int batchSize = args.length > 6 ? Integer.valueOf(args[6]) : 64;
+        int threads = args.length > 7 ? Integer.valueOf(args[7]) : Runtime.getRuntime().availableProcessors();
+        double validationFraction = args.length > 8 ? Double.valueOf(args[8]) : 0.1;
+        if (validationFraction < 0.0 || validationFraction >= 1.0)
+            throw new AssertionError("The validation fraction must be at least 0 and less than 1, not " + validationFraction);
+
+        int[] layerSizes = new int[layerSpecs.length];
+        ACTIVATION[] activations = new ACTIVATION[layerSpecs.length];
+        for (int layer = 0; layer < layerSpecs.length; layer++) {
+            String[] parts = layerSpecs[layer].split(":");
+            layerSizes[layer] = Integer.valueOf(parts[0]);
+            activations[layer] = ACTIVATION.valueOf(parts[1].toUpperCase());
+        }
+
+        List<double[][]> data = readData(args[0], targetCount);
+        if (layerSizes[layerSizes.length - 1] != targetCount)
+            throw new AssertionError("The last layer must have one output per target (" + targetCount + ")");
+        Random rnd = new Random(47);
+        Collections.shuffle(data, rnd);
+        int validationCount = (int) (data.size() * validationFraction);
+        List<double[][]> validation = data.subList(0, validationCount);
+        List<double[][]> training = new ArrayList<>(data.subList(validationCount, data.size()));
+        int inputs = training.get(0)[1].length;
+        System.out.println(String.format("%d training and %d validation lines, %d inputs and %d targets",
+                training.size(), validation.size(), inputs, targetCount));
+
+        // normalisation is fitted to the training data only, and then applied to all
+        double[] means = new double[inputs], std = new double[inputs];
+        fitNormalisation(training, means, std);
+        double[][] trainX = normalise(training, means, std), trainY = targets(training);
+        double[][] validX = normalise(validation, means, std), validY = targets(validation);
+
+        HopshackleNNTrainer trainer = new HopshackleNNTrainer(inputs, layerSizes, activations, learningRate, threads, rnd);
+        HopshackleNN best = null;
+        double bestLoss = Double.POSITIVE_INFINITY;
+        try {
+            int[] order = new int[trainX.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            for (int epoch = 1; epoch <= epochs; epoch++) {
+                shuffle(order, rnd);
+                double trainLoss = 0.0;
+                for (int start = 0; start < order.length; start += batchSize) {
+                    int[] batch = Arrays.copyOfRange(order, start, Math.min(start + batchSize, order.length));
+                    trainLoss += trainer.trainBatch(trainX, trainY, batch) * batch.length;
+                }
+                trainLoss /= order.length;
+                double validLoss = validX.length > 0 ? trainer.loss(validX, validY) : trainLoss;
+                System.out.println(String.format("Epoch %3d\ttraining loss %.5f\tvalidation loss %.5f", epoch, trainLoss, validLoss));
+                if (validLoss < bestLoss) {
+                    bestLoss = validLoss;
+                    best = trainer.toModel(means, std);
+                }
+            }
+        } finally {
+            trainer.close();
+        }
+        if (best == null)
+            throw new AssertionError("No model was written, as the validation loss was never finite; try a lower learning rate");
+        best.writeToFile(args[3]);
+        System.out.println(String.format("Written model with validation loss %.5f to %s", bestLoss, args[3]));
+    }
+
+    /*
+    Each element of the result is {targets, features} for one line
+     */
+    public static List<double[][]> readData(String file, int targetCount) throws IOException {
+        List<double[][]> retValue = new ArrayList<>();
+        int columns = -1;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                if (line.trim().isEmpty()) continue;
+                String[] fields = line.trim().split("\\t");
+                if (columns == -1) columns = fields.length;
+                if (fields.length != columns)
+                    throw new AssertionError(String.format("Line %d of %s has %d columns rather than %d", lineNumber, file, fields.length, columns));
+                if (columns <= targetCount)
+                    throw new AssertionError("No features after the " + targetCount + " targets in " + file);
+                double[] targets = new double[targetCount], features = new double[columns - targetCount];
+                for (int i = 0; i < columns; i++) {
+                    double value = Double.valueOf(fields[i]);
+                    if (i < targetCount) targets[i] = value;
+                    else features[i - targetCount] = value;
+                }
+                retValue.add(new double[][]{targets, features});
+            }
+        }
+        if (retValue.isEmpty())
+            throw new AssertionError("No data in " + file);
+        return retValue;
+    }
+
+    static void fitNormalisation(List<double[][]> data, double[] means, double[] std) {
+        for (double[][] line : data)
+            for (int i = 0; i < means.length; i++)
+                means[i] += line[1][i];
+        for (int i = 0; i < means.length; i++)
+            means[i] /= data.size();
+        for (double[][] line : data)
+            for (int i = 0; i < std.length; i++)
+                std[i] += Math.pow(line[1][i] - means[i], 2);
+        for (int i = 0; i < std.length; i++) {
+            std[i] = Math.sqrt(std[i] / data.size());
+            // a feature that never changes is just centred
+            if (std[i] < 1e-8) std[i] = 1.0;
+        }
+    }
+
+    private static double[][] normalise(List<double[][]> data, double[] means, double[] std) {
+        double[][] retValue = new double[data.size()][means.length];
+        for (int r = 0; r < retValue.length; r++)
+            for (int i = 0; i < means.length; i++)
+                retValue[r][i] = (data.get(r)[1][i] - means[i]) / std[i];
+        return retValue;
+    }
+
+    private static double[][] targets(List<double[][]> data) {
+        double[][] retValue = new double[data.size()][];
+        for (int r = 0; r < retValue.length; r++)
+            retValue[r] = data.get(r)[0];
+        return retValue;
+    }
+
+    private static void shuffle(int[] order, Random rnd) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int temp = order[i];
+            order[i] = order[j];
+            order[j] = temp;
+        }
+    }
+
+    /*
+    One Adam step on the mean gradient over the rows in batch; returns the mean loss over the batch (before the step)
+     */
+    public double trainBatch(double[][] x, double[][] y, int[] batch) throws InterruptedException, ExecutionException {
+        int chunks = Math.min(threads, batch.length);
+        List<Future<Gradient>> results = new ArrayList<>(chunks);
+        for (int c = 1; c < chunks; c++) {
+            int from = c * batch.length / chunks, to = (c + 1) * batch.length / chunks;
+            results.add(getWorkerPool().submit(() -> gradient(x, y, batch, from, to)));
+        }
+        Gradient total = gradient(x, y, batch, 0, batch.length / chunks);
+        for (Future<Gradient> result : results)
+            total.add(result.get());
+
+        steps++;
+        double correction1 = 1.0 - Math.pow(BETA1, steps), correction2 = 1.0 - Math.pow(BETA2, steps);
+        for (int layer = 0; layer < layers.length; layer++) {
+            for (int neuron = 0; neuron < sizes[layer + 1]; neuron++) {
+                for (int i = 0; i < sizes[layer]; i++)
+                    weights[layer][neuron][i] -= adam(total.weights[layer][neuron][i] / batch.length,
+                            weightM[layer][neuron], weightV[layer][neuron], i, correction1, correction2);
+                biases[layer][neuron] -= adam(total.biases[layer][neuron] / batch.length,
+                        biasM[layer], biasV[layer], neuron, correction1, correction2);
+            }
+        }
+        return total.loss / batch.length;
+    }
+
+    private double adam(double gradient, double[] m, double[] v, int index, double correction1, double correction2) {
+        m[index] = BETA1 * m[index] + (1.0 - BETA1) * gradient;
+        v[index] = BETA2 * v[index] + (1.0 - BETA2) * gradient * gradient;
+        return learningRate * (m[index] / correction1) / (Math.sqrt(v[index] / correction2) + EPSILON);
+    }
+
+    /*
+    The summed gradient (and loss) over batch[from] ... batch[to - 1]
+     */
+    private Gradient gradient(double[][] x, double[][] y, int[] batch, int from, int to) {
+        Gradient retValue = new Gradient();
+        double[][] preActivations = new double[layers.length][];
+        double[][] activations = new double[layers.length + 1][];
+        double[][] deltas = new double[layers.length][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            preActivations[layer] = new double[sizes[layer + 1]];
+            activations[layer + 1] = new double[sizes[layer + 1]];
+            deltas[layer] = new double[sizes[layer + 1]];
+        }
+        for (int b = from; b < to; b++) {
+            int row = batch[b];
+            activations[0] = x[row];
+            forward(preActivations, activations);
+            retValue.loss += loss(activations[layers.length], y[row]);
+
+            // the error at the output; for softmax with cross-entropy this is just output - target
+            int last = layers.length - 1;
+            for (int j = 0; j < sizes[last + 1]; j++) {
+                double error = activations[last + 1][j] - y[row][j];
+                deltas[last][j] = crossEntropy ? error : error * derivative(layers[last], preActivations[last][j], activations[last + 1][j]);
+            }
+            for (int layer = last; layer >= 0; layer--) {
+                for (int j = 0; j < sizes[layer + 1]; j++) {
+                    double delta = deltas[layer][j];
+                    if (delta == 0.0) continue;
+                    double[] w = retValue.weights[layer][j];
+                    for (int i = 0; i < sizes[layer]; i++)
+                        w[i] += delta * activations[layer][i];
+                    retValue.biases[layer][j] += delta;
+                }
+                if (layer > 0) {
+                    for (int i = 0; i < sizes[layer]; i++) {
+                        double sum = 0.0;
+                        for (int j = 0; j < sizes[layer + 1]; j++)
+                            sum += weights[layer][j][i] * deltas[layer][j];
+                        deltas[layer - 1][i] = sum * derivative(layers[layer - 1], preActivations[layer - 1][i], activations[layer][i]);
+                    }
+                }
+            }
+        }
+        return retValue;
+    }
+
+    private void forward(double[][] preActivations, double[][] activations) {
+        for (int layer = 0; layer < layers.length; layer++) {
+            double[] input = activations[layer];
+            for (int j = 0; j < sizes[layer + 1]; j++) {
+                double z = biases[layer][j];
+                double[] w = weights[layer][j];
+                for (int i = 0; i < input.length; i++)
+                    z += w[i] * input[i];
+                preActivations[layer][j] = z;
+                switch (layers[layer]) {
+                    case RELU:
+                        activations[layer + 1][j] = Math.max(0, z);
+                        break;
+                    case RECTIFIED_TANH:
+                        activations[layer + 1][j] = Math.max(0, Math.tanh(z));
+                        break;
+                    case SOFTMAX:
+                        activations[layer + 1][j] = z;
+                        break;
+                }
+            }
+            if (layers[layer] == ACTIVATION.SOFTMAX) {
+                // subtract the largest to avoid overflow; this does not change the result
+                double[] output = activations[layer + 1];
+                double largest = Double.NEGATIVE_INFINITY, total = 0.0;
+                for (double z : output) largest = Math.max(largest, z);
+                for (int j = 0; j < output.length; j++) {
+                    output[j] = Math.exp(output[j] - largest);
+                    total += output[j];
+                }
+                for (int j = 0; j < output.length; j++) output[j] /= total;
+            }
+        }
+    }
+
+    private static double derivative(ACTIVATION type, double z, double activation) {
+        switch (type) {
+            case RELU:
+                return z > 0.0 ? 1.0 : 0.0;
+            case RECTIFIED_TANH:
+                return z > 0.0 ? 1.0 - activation * activation : 0.0;
+            default:
+                throw new AssertionError("No derivative for " + type + " except as the last layer");
+        }
+    }
+
+    private double loss(double[] output, double[] target) {
+        double retValue = 0.0;
+        for (int j = 0; j < output.length; j++) {
+            if (crossEntropy) {
+                if (target[j] > 0.0) retValue -= target[j] * Math.log(Math.max(output[j], 1e-12));
+            } else {
+                retValue += 0.5 * Math.pow(output[j] - target[j], 2);
+            }
+        }
+        return retValue;
+    }
+
+    /*
+    The mean loss over all rows
+     */
+    public double loss(double[][] x, double[][] y) {
+        double[][] preActivations = new double[layers.length][];
+        double[][] activations = new double[layers.length + 1][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            preActivations[layer] = new double[sizes[layer + 1]];
+            activations[layer + 1] = new double[sizes[layer + 1]];
+        }
+        double retValue = 0.0;
+        for (int row = 0; row < x.length; row++) {
+            activations[0] = x[row];
+            forward(preActivations, activations);
+            retValue += loss(activations[layers.length], y[row]);
+        }
+        return retValue / x.length;
+    }
+
+    /*
+    A copy of the current weights as a HopshackleNN, with the given normalisation of its inputs
+     */
+    public HopshackleNN toModel(double[] means, double[] std) {
+        double[][][] w = new double[layers.length][][];
+        double[][] b = new double[layers.length][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            w[layer] = new double[sizes[layer + 1]][];
+            for (int j = 0; j < sizes[layer + 1]; j++)
+                w[layer][j] = weights[layer][j].clone();
+            b[layer] = biases[layer].clone();
+        }
+        return new HopshackleNN(layers.clone(), w, b, means.clone(), std.clone());
+    }
+
+    public void close() {
+        if (workerPool != null) workerPool.shutdown();
+        workerPool = null;
+    }
+
+    private ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = Executors.newFixedThreadPool(threads - 1, r -> {
+                Thread t = new Thread(r, "NN-training");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return workerPool;
+    }
+
+    private static double[][][] zerosLike(double[][][] array) {
+        double[][][] retValue = new double[array.length][][];
+        for (int i = 0; i < array.length; i++)
+            retValue[i] = zerosLike(array[i]);
+        return retValue;
+    }
+
+    private static double[][] zerosLike(double[][] array) {
+        double[][] retValue = new double[array.length][];
+        for (int i = 0; i < array.length; i++)
+            retValue[i] = new double[array[i].length];
+        return retValue;
+    }
+
+    private final class Gradient {
+        final double[][][] weights = zerosLike(HopshackleNNTrainer.this.weights);
+        final double[][] biases = zerosLike(HopshackleNNTrainer.this.biases);
+        double loss;
+
+        void add(Gradient other) {
+            for (int layer = 0; layer < weights.length; layer++) {
+                for (int j = 0; j < weights[layer].length; j++) {
+                    for (int i = 0; i < weights[layer][j].length; i++)
+                        weights[layer][j][i] += other.weights[layer][j][i];
+                    biases[layer][j] += other.biases[layer][j];
+                }
+            }
+            loss += other.loss;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import java.util.Random;
+
+/*
+Times inference on the shipped models, both one row at a time (value()) and in batches (processBatch()), on feature
+vectors drawn from the normalisation of each model.
+To compare the scalar and Vector API kernels, run this on Java 17+ from the jar twice:
+    java --add-modules jdk.incubator.vector -cp <jar> ...InferenceBenchmark
+    java --add-modules jdk.incubator.vector -Dhopshackle.vector=false -cp <jar> ...InferenceBenchmark
+Usage: InferenceBenchmark [model location ...]
+ */
+public class InferenceBenchmark {
+
+    private static final String[] SHIPPED_MODELS = {"RESPlayers_2.params", "RESPlayers_3.params", "RESPlayers_4.params",
+            "RESPlayers_5.params", "RESOpponentModel_3.params"};
+    private static final int ROWS = 1000;
+    private static final int BATCH = 32;
+
+    public static void main(String[] args) {
+        String[] models = args.length > 0 ? args : SHIPPED_MODELS;
+        System.out.println(String.format("Java %s, %s kernels", System.getProperty("java.version"),
+                DenseKernels.isVectorised() ? "Vector API" : "scalar"));
+        for (String location : models) {
+            HopshackleNN model = ModelRegistry.get(location);
+            double[][] rows = PrecisionCheck.randomFeatures(model, ROWS, new Random(47));
+            double[][][] batches = new double[ROWS / BATCH][BATCH][];
+            for (int b = 0; b < batches.length; b++)
+                System.arraycopy(rows, b * BATCH, batches[b], 0, BATCH);
+
+            double check = 0.0;
+            // warm up, so that we time the compiled code
+            for (int repeat = 0; repeat < 200; repeat++) {
+                for (double[] row : rows) check += model.value(row);
+                for (double[][] batch : batches) check += model.processBatch(batch)[0][0];
+            }
+
+            int repeats = 500;
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < repeats; repeat++)
+                for (double[] row : rows) check += model.value(row);
+            double singleNanos = (System.nanoTime() - start) / ((double) repeats * rows.length);
+
+            start = System.nanoTime();
+            for (int repeat = 0; repeat < repeats; repeat++)
+                for (double[][] batch : batches) check += model.processBatch(batch)[0][0];
+            double batchNanos = (System.nanoTime() - start) / ((double) repeats * batches.length * BATCH);
+
+            System.out.println(String.format("%-28s %4d inputs\tvalue() %6.0f ns/row\tprocessBatch(%d) %6.0f ns/row\t(%.1f)",
+                    location, model.getInputCount(), singleNanos, BATCH, batchNanos, check));
+        }
+    }
+}
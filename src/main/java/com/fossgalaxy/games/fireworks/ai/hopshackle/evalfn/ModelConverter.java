@@ -0,0 +1,41 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import java.io.*;
+import java.nio.file.*;
+
+/*
+Converts each JSON model file given on the command line into the binary format, written alongside it with the
+extension .bin (e.g. src/main/resources/Players_5.params -> src/main/resources/Players_5.bin), where ModelRegistry
+will then pick it up. The .bin records the hash of the JSON, so that ModelRegistry only uses it for that JSON.
+A directory converts every .params file in it; the build does this for the resources copied to target/classes.
+ */
+public class ModelConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: ModelConverter <model.params or directory> ...");
+            return;
+        }
+        for (String modelLocation : args) {
+            Path location = Paths.get(modelLocation);
+            if (Files.isDirectory(location)) {
+                try (DirectoryStream<Path> models = Files.newDirectoryStream(location, "*.params")) {
+                    for (Path model : models)
+                        convert(model.toString());
+                }
+            } else {
+                convert(modelLocation);
+            }
+        }
+    }
+
+    private static void convert(String modelLocation) throws IOException {
+        byte[] json = Files.readAllBytes(Paths.get(modelLocation));
+        HopshackleNN model = HopshackleNN.createFromStream(new ByteArrayInputStream(json));
+        String binaryLocation = ModelRegistry.binaryLocation(modelLocation);
+        try (OutputStream output = new FileOutputStream(binaryLocation)) {
+            model.writeBinary(output, HopshackleNN.sourceHash(json));
+        }
+        System.out.println(String.format("%s -> %s (%d bytes)", modelLocation, binaryLocation, new File(binaryLocation).length()));
+    }
+}
@@ -0,0 +1,138 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+One HopshackleNN per model location for the whole process, so that building agents (once per game, in App and
+GameRunnerWithRandomAgents) does not read and parse the same file each time. A HopshackleNN is not changed once
+loaded, and is safe to share between agents and threads.
+A location starting with RES is a resource on the classpath; otherwise it is a file. In either case, if there is a
+binary version (the same name with the extension replaced by .bin, as written by ModelConverter, which the build runs
+over the resources) that was converted from this same JSON, this is used instead. The .bin records the hash of the JSON
+it came from, so a .bin left over from an older model is never picked up by mistake; we go by content rather than
+modification times, as every entry in a jar has the jar's time. A location that names a .bin file is always read as
+given. A binary file is memory-mapped.
+A location may end with #FLOAT or #INT8 (e.g. RESPlayers_5.params#INT8) to run the model at that HopshackleNN.Precision;
+the weights as read in are shared with the DOUBLE model from the same location. This saves memory, not time. A lower
+precision is refused (with an AssertionError) if any output differs from the DOUBLE one by more than
+MAX_PRECISION_ERROR (or -Dhopshackle.maxPrecisionError) on random inputs drawn from the model's normalisation, as
+PrecisionCheck reports.
+ */
+public class ModelRegistry {
+
+    public static final double MAX_PRECISION_ERROR = 0.05;
+    private static final int PRECISION_CHECK_ROWS = 1000;
+
+    private static final Map<String, HopshackleNN> models = new ConcurrentHashMap<>();
+
+    public static HopshackleNN get(String modelLocation) {
+        int hash = modelLocation.lastIndexOf('#');
+        if (hash == -1)
+            return models.computeIfAbsent(modelLocation, ModelRegistry::load);
+        String precision = modelLocation.substring(hash + 1).toUpperCase();
+        return get(modelLocation.substring(0, hash), HopshackleNN.Precision.valueOf(precision));
+    }
+
+    public static HopshackleNN get(String modelLocation, HopshackleNN.Precision precision) {
+        if (precision == HopshackleNN.Precision.DOUBLE)
+            return get(modelLocation);
+        // the DOUBLE model is loaded first, as a ConcurrentHashMap must not be changed from inside computeIfAbsent
+        HopshackleNN base = get(modelLocation);
+        return models.computeIfAbsent(modelLocation + "#" + precision, k -> checked(k, base, base.withPrecision(precision)));
+    }
+
+    public static double maxPrecisionError() {
+        return Double.valueOf(System.getProperty("hopshackle.maxPrecisionError", String.valueOf(MAX_PRECISION_ERROR)));
+    }
+
+    private static HopshackleNN checked(String modelLocation, HopshackleNN reference, HopshackleNN model) {
+        double[][] rows = PrecisionCheck.randomFeatures(reference, PRECISION_CHECK_ROWS, new Random(47));
+        double error = PrecisionCheck.largestError(reference.processBatch(rows), model, rows);
+        if (error > maxPrecisionError())
+            throw new AssertionError(String.format("%s is not accurate enough: an output differs from DOUBLE by %.4f (more than %.4f)",
+                    modelLocation, error, maxPrecisionError()));
+        return model;
+    }
+
+    public static String binaryLocation(String modelLocation) {
+        int lastDot = modelLocation.lastIndexOf('.');
+        int lastSeparator = Math.max(modelLocation.lastIndexOf('/'), modelLocation.lastIndexOf(File.separatorChar));
+        return (lastDot > lastSeparator ? modelLocation.substring(0, lastDot) : modelLocation) + ".bin";
+    }
+
+    private static HopshackleNN load(String modelLocation) {
+        try {
+            if (modelLocation.startsWith("RES"))
+                return loadResource(ModelRegistry.class.getClassLoader(), modelLocation.substring(3));
+            Path file = Paths.get(modelLocation);
+            Path binary = Paths.get(binaryLocation(modelLocation));
+            if (!binary.equals(file) && Files.isRegularFile(binary)) {
+                MappedByteBuffer mapped = map(binary);
+                if (!Files.exists(file) || convertedFrom(mapped, Files.readAllBytes(file)))
+                    return HopshackleNN.createFromBinary(mapped);
+            }
+            if (isBinaryFile(file))
+                return HopshackleNN.createFromBinary(map(file));
+            return HopshackleNN.createFromJSON(new String(Files.readAllBytes(file), "UTF-8"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error when reading in Model from " + modelLocation, e);
+        }
+    }
+
+    static HopshackleNN loadResource(ClassLoader classLoader, String resource) throws IOException {
+        URL source = classLoader.getResource(resource);
+        URL binary = binaryLocation(resource).equals(resource) ? null : classLoader.getResource(binaryLocation(resource));
+        if (binary != null) {
+            ByteBuffer bytes = ByteBuffer.wrap(read(binary));
+            if (source == null || convertedFrom(bytes, read(source)))
+                return HopshackleNN.createFromBinary(bytes);
+        }
+        if (source == null)
+            throw new FileNotFoundException("No resource " + resource);
+        try (InputStream in = source.openStream()) {
+            return HopshackleNN.createFromStream(in);
+        }
+    }
+
+    /*
+    True if binary is a model converted from json (which may itself be a binary model, if named as one)
+     */
+    private static boolean convertedFrom(ByteBuffer binary, byte[] json) {
+        if (!HopshackleNN.isBinary(binary) || HopshackleNN.isBinary(ByteBuffer.wrap(json)))
+            return false;
+        long hash = HopshackleNN.sourceHashOf(binary);
+        return hash != HopshackleNN.NO_SOURCE && hash == HopshackleNN.sourceHash(json);
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] block = new byte[1 << 16];
+            for (int read = in.read(block); read != -1; read = in.read(block))
+                bytes.write(block, 0, read);
+            return bytes.toByteArray();
+        }
+    }
+
+    private static boolean isBinaryFile(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] start = new byte[4];
+            int read = in.read(start);
+            return read == 4 && HopshackleNN.isBinary(ByteBuffer.wrap(start));
+        }
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+/*
+Anything that can give the outputs of a network for a batch of inputs, one row of output per row of input
+ */
+public interface NNEvaluator {
+
+    double[][] evaluate(double[][] rows);
+}
@@ -0,0 +1,112 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+Compares the outputs of a model at FLOAT and INT8 precision with the DOUBLE outputs, and reports the largest and mean
+absolute differences, together with the size of the weights, the time taken for each relative to DOUBLE, and whether
+ModelRegistry will accept it (see ModelRegistry.MAX_PRECISION_ERROR). The lower precisions save memory rather than
+time.
+The feature vectors are read from a data file as written by the StateGatherers (tab-separated, with the features as
+the last columns of each line, e.g. StateData.csv or OpponentData.csv). If no file is given (or it is -), they are
+drawn at random from the normalisation of the model (each input from a Gaussian with the mean and standard deviation
+the model was trained with).
+On Java 17 or later, run with --add-modules jdk.incubator.vector to time the Vector API kernels (see DenseKernels).
+Usage: PrecisionCheck <model location> [feature file] [max rows]
+ */
+public class PrecisionCheck {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: PrecisionCheck <model location> [feature file] [max rows]");
+            return;
+        }
+        HopshackleNN reference = ModelRegistry.get(args[0], HopshackleNN.Precision.DOUBLE);
+        int maxRows = args.length > 2 ? Integer.valueOf(args[2]) : 10000;
+        boolean fromFile = args.length > 1 && !args[1].equals("-");
+        double[][] rows = fromFile ? readFeatures(args[1], reference.getInputCount(), maxRows)
+                : randomFeatures(reference, maxRows, new Random(47));
+        System.out.println(String.format("%s: %d feature vectors of %d inputs (%s), vectorised kernels %s", args[0], rows.length,
+                reference.getInputCount(), fromFile ? args[1] : "random", DenseKernels.isVectorised()));
+
+        double[][] expected = reference.processBatch(rows);
+        double doubleNanos = report(reference, rows, expected, 0.0);
+        for (HopshackleNN.Precision precision : HopshackleNN.Precision.values()) {
+            if (precision != HopshackleNN.Precision.DOUBLE)
+                report(reference.withPrecision(precision), rows, expected, doubleNanos);
+        }
+    }
+
+    /*
+    Returns the time per call, in nanoseconds
+     */
+    private static double report(HopshackleNN model, double[][] rows, double[][] expected, double doubleNanos) {
+        double largestError = largestError(expected, model, rows), totalError = 0.0;
+        int count = 0;
+        for (int r = 0; r < rows.length; r++) {
+            double[] output = model.process(rows[r]);
+            for (int i = 0; i < output.length; i++) {
+                totalError += Math.abs(output[i] - expected[r][i]);
+                count++;
+            }
+        }
+        // and then time it, taking the best of several rounds after enough calls for the JIT to have compiled it all
+        double check = 0.0;
+        double nanosPerCall = Double.POSITIVE_INFINITY;
+        int repeats = Math.max(1, 200000 / Math.max(rows.length, 1));
+        for (int round = 0; round < 6; round++) {
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < repeats; repeat++)
+                for (double[] row : rows)
+                    check += model.value(row);
+            nanosPerCall = Math.min(nanosPerCall, (System.nanoTime() - start) / ((double) repeats * rows.length));
+        }
+        boolean accepted = model.getPrecision() == HopshackleNN.Precision.DOUBLE || largestError <= ModelRegistry.maxPrecisionError();
+        System.out.println(String.format("%-6s weights %8d bytes\tmax error %.6f\tmean error %.6f\t%.0f ns per call\t%s\t%s\t(%.1f)",
+                model.getPrecision(), model.getWeightBytes(), largestError, totalError / Math.max(count, 1), nanosPerCall,
+                doubleNanos > 0.0 ? String.format("%.2fx DOUBLE", doubleNanos / nanosPerCall) : "",
+                accepted ? "" : "rejected", check));
+        return nanosPerCall;
+    }
+
+    /*
+    The largest absolute difference between an output of model for any of rows, and the expected one
+     */
+    static double largestError(double[][] expected, HopshackleNN model, double[][] rows) {
+        double retValue = 0.0;
+        double[][] output = model.processBatch(rows);
+        for (int r = 0; r < rows.length; r++)
+            for (int i = 0; i < output[r].length; i++)
+                retValue = Math.max(retValue, Math.abs(output[r][i] - expected[r][i]));
+        return retValue;
+    }
+
+    private static double[][] readFeatures(String file, int inputs, int maxRows) throws IOException {
+        List<double[]> retValue = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            for (String line = reader.readLine(); line != null && retValue.size() < maxRows; line = reader.readLine()) {
+                String[] fields = line.trim().split("\\t");
+                if (fields.length < inputs) continue;
+                try {
+                    double[] row = new double[inputs];
+                    for (int i = 0; i < inputs; i++)
+                        row[i] = Double.valueOf(fields[fields.length - inputs + i]);
+                    retValue.add(row);
+                } catch (NumberFormatException e) {
+                    // a header line
+                }
+            }
+        }
+        return retValue.toArray(new double[0][]);
+    }
+
+    static double[][] randomFeatures(HopshackleNN model, int rows, Random rnd) {
+        double[][] retValue = new double[rows][model.getInputCount()];
+        for (double[] row : retValue)
+            for (int i = 0; i < row.length; i++)
+                row[i] = model.getInputMean(i) + rnd.nextGaussian() * model.getInputStd(i);
+        return retValue;
+    }
+}
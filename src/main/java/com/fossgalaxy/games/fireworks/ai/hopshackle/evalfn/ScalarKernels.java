@@ -0,0 +1,64 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+/*
+The plain loops behind DenseKernels, used on Java 8, and on later versions when the Vector API is not available
+ */
+final class ScalarKernels {
+
+    private ScalarKernels() {
+    }
+
+    static double dot(double[] weights, int offset, double[] input, int length) {
+        double retValue = 0.0;
+        for (int i = 0; i < length; i++)
+            retValue += input[i] * weights[offset + i];
+        return retValue;
+    }
+
+    /*
+    For FLOAT and INT8 weights the input is first converted to floats. Four separate sums let the multiply-adds run
+    in parallel, rather than each waiting on the one before
+     */
+    static double dot(float[] weights, int offset, float[] input, int length) {
+        float sum0 = 0.0f, sum1 = 0.0f, sum2 = 0.0f, sum3 = 0.0f;
+        int i = 0;
+        for (int bound = length & ~3; i < bound; i += 4) {
+            sum0 += input[i] * weights[offset + i];
+            sum1 += input[i + 1] * weights[offset + i + 1];
+            sum2 += input[i + 2] * weights[offset + i + 2];
+            sum3 += input[i + 3] * weights[offset + i + 3];
+        }
+        for (; i < length; i++)
+            sum0 += input[i] * weights[offset + i];
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    static double dot(byte[] weights, int offset, float[] input, int length) {
+        float sum0 = 0.0f, sum1 = 0.0f, sum2 = 0.0f, sum3 = 0.0f;
+        int i = 0;
+        for (int bound = length & ~3; i < bound; i += 4) {
+            sum0 += input[i] * weights[offset + i];
+            sum1 += input[i + 1] * weights[offset + i + 1];
+            sum2 += input[i + 2] * weights[offset + i + 2];
+            sum3 += input[i + 3] * weights[offset + i + 3];
+        }
+        for (; i < length; i++)
+            sum0 += input[i] * weights[offset + i];
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    static void relu(double[] activations, int length) {
+        for (int i = 0; i < length; i++)
+            activations[i] = Math.max(0, activations[i]);
+    }
+
+    static void rectifiedTanh(double[] activations, int length) {
+        for (int i = 0; i < length; i++)
+            activations[i] = Math.max(0, Math.tanh(activations[i]));
+    }
+
+    static void exp(double[] activations, int length) {
+        for (int i = 0; i < length; i++)
+            activations[i] = Math.exp(activations[i]);
+    }
+}
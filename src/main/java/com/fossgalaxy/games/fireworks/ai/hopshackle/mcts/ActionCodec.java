@@ -0,0 +1,108 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.state.CardColour;
+import com.fossgalaxy.games.fireworks.state.actions.*;
+
+import java.util.*;
+
+/*
+Maps every Hanabi action (for 2-5 players) to a small int id, and back again to one shared, immutable Action instance.
+The layout is:
+    PlayCard(slot)              slot
+    DiscardCard(slot)           MAX_HAND_SIZE + slot
+    TellColour(player, colour)  TELL_COLOUR + player * COLOURS + colour.ordinal()
+    TellValue(player, value)    TELL_VALUE + player * MAX_VALUE + value - 1
+so that there are fewer than 64 ids in total, and a set of actions fits in a single long.
+ */
+public class ActionCodec {
+
+    public static final int MAX_PLAYERS = 5;
+    public static final int MAX_HAND_SIZE = 5;
+    public static final int MAX_VALUE = 5;
+    private static final CardColour[] colours = CardColour.values();
+    public static final int COLOURS = colours.length;
+
+    public static final int PLAY = 0;
+    public static final int DISCARD = PLAY + MAX_HAND_SIZE;
+    public static final int TELL_COLOUR = DISCARD + MAX_HAND_SIZE;
+    public static final int TELL_VALUE = TELL_COLOUR + MAX_PLAYERS * COLOURS;
+    public static final int ACTION_COUNT = TELL_VALUE + MAX_PLAYERS * MAX_VALUE;
+
+    private static final int[] HAND_SIZE = new int[]{-1, -1, 5, 5, 4, 4};
+    private static final Action[] actions = new Action[ACTION_COUNT];
+
+    static {
+        if (ACTION_COUNT > 64)
+            throw new AssertionError("Action ids must fit in a long");
+        for (int slot = 0; slot < MAX_HAND_SIZE; slot++) {
+            actions[PLAY + slot] = new PlayCard(slot);
+            actions[DISCARD + slot] = new DiscardCard(slot);
+        }
+        for (int player = 0; player < MAX_PLAYERS; player++) {
+            for (CardColour colour : colours)
+                actions[TELL_COLOUR + player * COLOURS + colour.ordinal()] = new TellColour(player, colour);
+            for (int value = 1; value <= MAX_VALUE; value++)
+                actions[TELL_VALUE + player * MAX_VALUE + value - 1] = new TellValue(player, value);
+        }
+    }
+
+    public static int encode(Action action) {
+        if (action instanceof PlayCard)
+            return PLAY + ((PlayCard) action).slot;
+        if (action instanceof DiscardCard)
+            return DISCARD + ((DiscardCard) action).slot;
+        if (action instanceof TellColour) {
+            TellColour tell = (TellColour) action;
+            return TELL_COLOUR + tell.player * COLOURS + tell.colour.ordinal();
+        }
+        if (action instanceof TellValue) {
+            TellValue tell = (TellValue) action;
+            return TELL_VALUE + tell.player * MAX_VALUE + tell.value - 1;
+        }
+        throw new AssertionError("Unknown action type " + action);
+    }
+
+    public static Action decode(int id) {
+        return actions[id];
+    }
+
+    /*
+    Returns the shared instance that is equal to the action passed in
+     */
+    public static Action intern(Action action) {
+        return actions[encode(action)];
+    }
+
+    public static long toMask(Collection<Action> actionsToEncode) {
+        long mask = 0L;
+        for (Action a : actionsToEncode)
+            mask |= 1L << encode(a);
+        return mask;
+    }
+
+    public static List<Action> fromMask(long mask) {
+        List<Action> retValue = new ArrayList<>(Long.bitCount(mask));
+        for (long remaining = mask; remaining != 0L; remaining &= remaining - 1)
+            retValue.add(actions[Long.numberOfTrailingZeros(remaining)]);
+        return retValue;
+    }
+
+    /*
+    All the actions that playerID could ever take in a game of this size (discards only if information is not full)
+     */
+    public static long allActionsMask(int playerID, int numPlayers, int information) {
+        long mask = 0L;
+        for (int slot = 0; slot < HAND_SIZE[numPlayers]; slot++) {
+            if (information < 8) mask |= 1L << (DISCARD + slot);
+            mask |= 1L << (PLAY + slot);
+        }
+        for (int player = 0; player < numPlayers; player++) {
+            if (player == playerID) continue;
+            for (int colour = 0; colour < COLOURS; colour++)
+                mask |= 1L << (TELL_COLOUR + player * COLOURS + colour);
+            for (int value = 0; value < MAX_VALUE; value++)
+                mask |= 1L << (TELL_VALUE + player * MAX_VALUE + value);
+        }
+        return mask;
+    }
+}
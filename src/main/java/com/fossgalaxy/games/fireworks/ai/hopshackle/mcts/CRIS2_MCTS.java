@@ -35,7 +35,7 @@ public class CRIS2_MCTS extends CRIS_MCTS {
         //      MCTSNode[] next = new MCTSNode[state.getPlayerCount()];
         //     boolean[] expanded = new boolean[state.getPlayerCount()];
         MCTSNode next = null;
-        int possibleActions = root.allUnexpandedActions.size() + root.getChildren().size();
+        int possibleActions = root.getUnexpandedActionCount() + root.getChildren().size();
         boolean activeActionConsistentWithMasterDeterminisation = false;
 
 
@@ -122,7 +122,7 @@ public class CRIS2_MCTS extends CRIS_MCTS {
                         branches++;
                         AllPlayerDeterminiser newApd = new AllPlayerDeterminiser(apd.getDeterminisationFor(i), i, conv);
                         newApd.setParentNode(root);
-                        newApd.applyAndCompatibilise(next, true); // we use the action taken by the active determinisation
+                        newApd.applyAndCompatibilise(next, true, keepReferenceStates()); // we use the action taken by the active determinisation
                         if (logger.isDebugEnabled())
                             logger.debug(String.format("Launching search for %s", newApd));
                         if (nodeExpanded) {
@@ -147,10 +147,10 @@ public class CRIS2_MCTS extends CRIS_MCTS {
             // (using the concrete determinisation of the active player that is incompatible with the root D).
             // We now need to force-compatibilise the main APD, and continue.
             // This will back-propagate only *above* this node.
-            apd.applyAndCompatibilise(next, true);
+            apd.applyAndCompatibilise(next, true, keepReferenceStates());
             apd.setTriggerNode(root);
         } else {
-            apd.applyAndCompatibilise(next, false);
+            apd.applyAndCompatibilise(next, false, keepReferenceStates());
         }
 
         if (nodeExpanded) {
@@ -57,7 +57,7 @@ public class CRIS_MCTS extends MCTS {
         //      MCTSNode[] next = new MCTSNode[state.getPlayerCount()];
         //     boolean[] expanded = new boolean[state.getPlayerCount()];
         MCTSNode next = null;
-        int possibleActions = root.allUnexpandedActions.size() + root.getChildren().size();
+        int possibleActions = root.getUnexpandedActionCount() + root.getChildren().size();
         boolean activeActionConsistentWithMasterDeterminisation = false;
         do {
             if (root.getDepth() < treeDepth) {
@@ -146,7 +146,7 @@ public class CRIS_MCTS extends MCTS {
                         branches++;
                         AllPlayerDeterminiser newApd = new AllPlayerDeterminiser(apd.getDeterminisationFor(i), i, conv);
                         newApd.setParentNode(root);
-                        newApd.applyAndCompatibilise(next, true); // we use the action taken by the active determinisation
+                        newApd.applyAndCompatibilise(next, true, keepReferenceStates()); // we use the action taken by the active determinisation
                         if (logger.isDebugEnabled())
                             logger.debug(String.format("Launching search for %s", newApd));
                         if (nodeExpanded) {
@@ -168,7 +168,7 @@ public class CRIS_MCTS extends MCTS {
         // now that we finally have an action compatible with our master determinisation, off we go
         // Now we can kick off the APD that bought us here....up to now we have been kicking off APDs to improve
         // the local opponent model
-        apd.applyAndCompatibilise(next, false);
+        apd.applyAndCompatibilise(next, false, keepReferenceStates());
         // if we only have one possible action, then we override consistency
         if (nodeExpanded) {
             double score = rollout(apd.getMasterDeterminisation(), next, movesLeft - 1);
@@ -0,0 +1,13 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.ai.Agent;
+
+/*
+Implemented by a rollout Agent that keeps state between calls (such as a Random), so that each thread of a
+multi-threaded MCTS search rolls out with its own copy. The copy should share anything that is safe to share, such as
+a model or a cache. Any other rollout Agent is only called by one search thread at a time.
+ */
+public interface HasWorkerCopy {
+
+    Agent copyForWorker();
+}
@@ -1,6 +1,8 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 
 import com.fossgalaxy.games.fireworks.ai.Agent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.EvalFnAgent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.HandSampler;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion.*;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.*;
 import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
@@ -13,11 +15,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Created by WebPigeon on 09/08/2016.
  */
-public class MCTS implements Agent, HasGameOverProcessing {
+public class MCTS implements Agent, HasGameOverProcessing, Cloneable {
 
     //   protected final int roundLength;
     protected final int rolloutDepth;
@@ -34,6 +37,17 @@ public class MCTS implements Agent, HasGameOverProcessing {
     protected int deepestNode, allNodeDepths, rollouts;
     protected ExpansionPolicy expansionPolicy;
     protected Agent rolloutPolicy;
+    protected int threads = 1;
+    protected boolean useVirtualLoss;
+    protected boolean reuseTree;
+    protected MCTSNode lastRoot;
+    protected int lastHistoryIndex;
+    // shared by all agents, so that building new agents for each game does not leave idle threads behind
+    private static final ExecutorService workerPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "MCTS-search");
+        t.setDaemon(true);
+        return t;
+    });
 
 
     public MCTS(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit) {
@@ -51,6 +65,12 @@ public class MCTS implements Agent, HasGameOverProcessing {
         rolloutPolicy = rollout == null ? new RandomEqual(0) : rollout;
     }
 
+    @AgentConstructor("hs-ISpar")
+    public MCTS(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, rollout);
+        this.threads = threads;
+    }
+
     public void setStateGatherer(StateGatherer sg) {
         stateGatherer = sg;
     }
@@ -59,6 +79,12 @@ public class MCTS implements Agent, HasGameOverProcessing {
         endGameProcessor = egp;
     }
 
+    @Override
+    public void receiveID(int agentID, String[] names) {
+        // a new game, so nothing in the old tree is of any use
+        lastRoot = null;
+    }
+
     @Override
     public Action doMove(int agentID, GameState state) {
         int movesLeft = state.getMovesLeft();
@@ -69,7 +95,9 @@ public class MCTS implements Agent, HasGameOverProcessing {
             movesLeft = Integer.MAX_VALUE;
         }
 
-        MCTSNode root = createRoot((agentID - 1 + state.getPlayerCount()) % state.getPlayerCount(), state);
+        MCTSNode root = reuseTree ? reuseSubtree(agentID, state) : null;
+        if (root == null)
+            root = createRoot((agentID - 1 + state.getPlayerCount()) % state.getPlayerCount(), state);
         rollouts = 0;
         nodesExpanded = 0;
         allNodeDepths = 0;
@@ -77,9 +105,9 @@ public class MCTS implements Agent, HasGameOverProcessing {
 
         if (logger.isInfoEnabled()) {
             for (MCTSNode level1 : root.getChildren()) {
-                logger.info(String.format("Action: %s\tVisits: %d\tScore: %.3f", level1.getAction(), level1.visits, level1.score / level1.visits));
-                logger.info("rollout {} moves: max: {}, min: {}, avg: {}, N: {} ", level1.getAction(), level1.rolloutMoves.getMax(), level1.rolloutMoves.getMin(), level1.rolloutMoves.getMean(), level1.rolloutMoves.getN());
-                logger.info("rollout {} scores: max: {}, min: {}, avg: {}, N: {} ", level1.getAction(), level1.rolloutScores.getMax(), level1.rolloutScores.getMin(), level1.rolloutScores.getMean(), level1.rolloutScores.getN());
+                logger.info(String.format("Action: %s\tVisits: %d\tScore: %.3f", level1.getAction(), level1.getVisits(), level1.getMeanScore()));
+                logger.info("rollout {} moves: max: {}, min: {}, avg: {}, N: {} ", level1.getAction(), level1.getRolloutMoves().getMax(), level1.getRolloutMoves().getMin(), level1.getRolloutMoves().getMean(), level1.getRolloutMoves().getN());
+                logger.info("rollout {} scores: max: {}, min: {}, avg: {}, N: {} ", level1.getAction(), level1.getRolloutScores().getMax(), level1.getRolloutScores().getMin(), level1.getRolloutScores().getMean(), level1.getRolloutScores().getN());
             }
         }
 
@@ -91,6 +119,12 @@ public class MCTS implements Agent, HasGameOverProcessing {
             }
         }
 
+        if (reuseTree) {
+            // our chosen action will be the next entry in the history
+            lastRoot = root;
+            lastHistoryIndex = state.getActionHistory().size();
+        }
+
         MCTSNode bestNode = root.getBestNode();
         Action chosenOne = (bestNode != null) ? bestNode.getAction() : new PlayCard(0);
 
@@ -116,13 +150,86 @@ public class MCTS implements Agent, HasGameOverProcessing {
         stats.put("NODES_EXPANDED", (double) nodesExpanded);
         stats.put("ROLLOUTS", (double) rollouts);
         StatsCollator.addStatistics(stats);
+        if (root instanceof MCTSRuleNode)
+            ((MCTSRuleNode) root).getRuleCache().reportStatistics();
+        if (rolloutPolicy instanceof EvalFnAgent && ((EvalFnAgent) rolloutPolicy).getEvaluationCache() != null)
+            ((EvalFnAgent) rolloutPolicy).getEvaluationCache().reportStatistics();
         return chosenOne;
     }
 
+    /*
+    With more than one thread we search tree-parallel: each extra thread runs a shallow copy of this agent (so it has
+    its own counters, and policies - see copyForWorker()) on the same tree, with virtual loss to push the threads down
+    different branches.
+     */
     protected void executeSearch(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (threads <= 1) {
+            searchTree(agentID, root, state, movesLeft);
+            return;
+        }
+        List<MCTS> workers = new ArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            MCTS worker = copyForWorker();
+            worker.useVirtualLoss = true;
+            workers.add(worker);
+            results.add(getWorkerPool().submit(() -> worker.searchTree(agentID, root, state, movesLeft)));
+        }
+
+        useVirtualLoss = true;
+        searchTree(agentID, root, state, movesLeft);
+        useVirtualLoss = false;
+
+        for (int i = 0; i < workers.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new AssertionError("Tree-parallel search thread failed", e);
+            }
+            addWorkerCounts(workers.get(i));
+        }
+    }
+
+    protected void addWorkerCounts(MCTS worker) {
+        rollouts += worker.rollouts;
+        nodesExpanded += worker.nodesExpanded;
+        allNodeDepths += worker.allNodeDepths;
+        deepestNode = Math.max(deepestNode, worker.deepestNode);
+    }
+
+    /*
+    The worker has its own copy of the expansion policy, and of the rollout policy if that is a HasWorkerCopy; any
+    other rollout policy is shared, and only used by one thread at a time (see selectActionForRollout())
+     */
+    protected MCTS copyForWorker() {
+        try {
+            MCTS worker = (MCTS) clone();
+            worker.threads = 1;
+            worker.expansionPolicy = expansionPolicy.copyForWorker(new Random());
+            if (rolloutPolicy instanceof HasWorkerCopy)
+                worker.rolloutPolicy = ((HasWorkerCopy) rolloutPolicy).copyForWorker();
+            return worker;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError("MCTS should be Cloneable", e);
+        }
+    }
+
+    /*
+    Threads are only kept while in use (and for a short while after), so this never holds more than the search
+    threads of the agents currently searching
+     */
+    protected ExecutorService getWorkerPool() {
+        return workerPool;
+    }
+
+    protected void searchTree(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (useSimulatedTree()) {
+            searchSimulatedTree(agentID, root, state, movesLeft);
+            return;
+        }
         long finishTime = System.currentTimeMillis() + timeLimit;
-        Map<Integer, List<Card>> possibleCards = DeckUtils.bindCard(agentID, state.getHand(agentID), state.getDeck().toList());
-        List<Integer> bindOrder = DeckUtils.bindOrder(possibleCards);
+        List<Card> deckCards = state.getDeck().toList();
+        HandSampler handSampler = new HandSampler(DeckUtils.bindCard(agentID, state.getHand(agentID), deckCards), deckCards);
 
         logDebugGameState(state, agentID);
 
@@ -131,7 +238,7 @@ public class MCTS implements Agent, HasGameOverProcessing {
             rollouts++;
             //find a leaf node
             GameState currentState = state.getCopy();
-            Map<Integer, Card> myHandCards = DeckUtils.bindCards(bindOrder, possibleCards);
+            Map<Integer, Card> myHandCards = handSampler.sample(ThreadLocalRandom.current());
 
             Deck deck = currentState.getDeck();
             Hand myHand = currentState.getHand(agentID);
@@ -150,24 +257,123 @@ public class MCTS implements Agent, HasGameOverProcessing {
 
             double score = rollout(currentState, current, movesLeft - current.getDepth());
             current.backup(score, null,null);
+            if (useVirtualLoss) current.revertVirtualLoss();
             if (calcTree) {
                 System.out.println(root.printD3());
             }
         }
     }
 
+    /*
+    As searchTree(), but each iteration runs on one SimulationState built at the start of the search. Our own hand is
+    re-determinised by bindHand(), the tree moves and rollout are applied to it, and then undone back to the root; so
+    the root state is copied once per search rather than once per iteration.
+     */
+    protected void searchSimulatedTree(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        long finishTime = System.currentTimeMillis() + timeLimit;
+        List<Card> deckCards = state.getDeck().toList();
+        HandSampler handSampler = new HandSampler(DeckUtils.bindCard(agentID, state.getHand(agentID), deckCards), deckCards);
+        Random rnd = ThreadLocalRandom.current();
+
+        logDebugGameState(state, agentID);
+
+        // any determinisation of our hand will do to build the SimulationState, as each iteration binds a new one
+        GameState determinisedState = state.getCopy();
+        Hand myHand = determinisedState.getHand(agentID);
+        Map<Integer, Card> myHandCards = handSampler.sample(rnd);
+        for (int slot = 0; slot < myHand.getSize(); slot++) {
+            Card card = myHandCards.get(slot);
+            myHand.bindCard(slot, card);
+            determinisedState.getDeck().remove(card);
+        }
+        SimulationState simState = new SimulationState(determinisedState);
+        int[] myCards = new int[myHand.getSize()];
+        int rootMark = simState.mark();
+
+        while (System.currentTimeMillis() < finishTime && rollouts < timeLimit * 2) {
+            rollouts++;
+            myHandCards = handSampler.sample(rnd);
+            for (int slot = 0; slot < myCards.length; slot++) {
+                Card card = myHandCards.get(slot);
+                myCards[slot] = card == null ? -1 : SimulationState.code(card);
+            }
+            simState.bindHand(agentID, myCards);
+
+            MCTSNode current = select(root, simState, movesLeft);
+
+            if (current.getDepth() > deepestNode) deepestNode = current.getDepth();
+            allNodeDepths += current.getDepth();
+            if (nodeExpanded) nodesExpanded++;
+
+            int playerID = (current.getAgentId() + 1) % simState.getPlayerCount();
+            int moves = simState.randomRollout(playerID, Math.min(rolloutDepth, movesLeft - current.getDepth()), rnd);
+            current.backupRollout(moves, simState.getScore());
+            current.backup(simState.getScore(), null, null);
+            if (useVirtualLoss) current.revertVirtualLoss();
+            simState.undoTo(rootMark);
+        }
+    }
+
+    /*
+    Only a plain MCTS tree can be searched on a SimulationState: the rules and opponent models of the subclasses need
+    a GameState, as does a TreeProcessor that wants the reference state of each node
+     */
+    protected boolean useSimulatedTree() {
+        return useSimulationState() && expansionPolicy.getClass() == SimpleNodeExpansion.class && !keepReferenceStates();
+    }
+
     protected MCTSNode expand(MCTSNode parent, GameState state) {
+        return expand(parent, state, parent.getLegalMoveMask(state, parent.nextAgentId(state)));
+    }
+
+    protected MCTSNode expand(MCTSNode parent, GameState state, long legalMoves) {
         // we also need to increment the parent eligible visit count at this point
-        parent.incrementParentVisitsForAllEligibleActions(state);
-        return expansionPolicy.expand(parent, state);
+        // (holding the parent, so that two search threads cannot both add the same child)
+        synchronized (parent) {
+            parent.incrementParentVisitsForAllEligibleActions(state, legalMoves);
+            return expansionPolicy.expand(parent, state);
+        }
+    }
+
+    /*
+    Walks down the tree we kept from our last move, following our own action and then each action the other players
+    have taken since (in a single agent tree only our own actions have nodes). If we are still in the tree, then that
+    node becomes the new root, keeping all the statistics below it.
+     */
+    protected MCTSNode reuseSubtree(int agentID, GameState state) {
+        MCTSNode current = lastRoot;
+        lastRoot = null;
+        List<HistoryEntry> history = state.getActionHistory();
+        if (current == null || history.size() <= lastHistoryIndex) return null;
+        for (int i = lastHistoryIndex; i < history.size() && current != null; i++) {
+            HistoryEntry entry = history.get(i);
+            if (current.singleAgentTree && entry.playerID != agentID) continue;
+            MCTSNode next = current.getChild(entry.action);
+            if (next != null && next.getAgentId() != entry.playerID) next = null;
+            current = next;
+        }
+        StatsCollator.addStatistics("TREE_REUSED", current == null ? 0.0 : 1.0);
+        if (current == null) return null;
+
+        current.detachAsRoot();
+        current.setReference(state, keepReferenceStates());
+        StatsCollator.addStatistics("REUSED_VISITS", (double) current.getVisits());
+        return current;
     }
 
     protected MCTSNode createRoot(int previousAgentID, GameState state) {
         MCTSNode root = expansionPolicy.createRoot(state, previousAgentID, C);
-        root.setReferenceState(state.getCopy());
+        root.setReference(state, keepReferenceStates());
         return root;
     }
 
+    /*
+    Only a TreeProcessor looks at the full reference states once the search is done
+     */
+    protected boolean keepReferenceStates() {
+        return stateGatherer instanceof TreeProcessor;
+    }
+
     protected void logDebugGameState(GameState state, int agentID) {
         if (logger.isTraceEnabled()) {
             Map<Integer, List<Card>> possibleCards = DeckUtils.bindCard(agentID, state.getHand(agentID), state.getDeck().toList());
@@ -200,10 +406,11 @@ public class MCTS implements Agent, HasGameOverProcessing {
         while (!state.isGameOver() && current.getDepth() < treeDepth && !nodeExpanded && movesLeft > 0) {
             MCTSNode next;
             movesLeft--;
-            if (current.fullyExpanded(state)) {
-                next = current.getUCTNode(state, false);
+            long legalMoves = current.getLegalMoveMask(state, current.nextAgentId(state));
+            if (current.fullyExpanded(legalMoves)) {
+                next = current.getUCTNode(state, legalMoves, false);
             } else {
-                next = expand(current, state);
+                next = expand(current, state, legalMoves);
                 nodeExpanded = true;
                 //            return next;
             }
@@ -211,6 +418,7 @@ public class MCTS implements Agent, HasGameOverProcessing {
                 //XXX if all follow on states explored so far are null, we are now a leaf node
                 return current;
             }
+            if (useVirtualLoss && next != current) next.addVirtualLoss();
             current = next;
 
             int agent = current.getAgentId();
@@ -219,16 +427,58 @@ public class MCTS implements Agent, HasGameOverProcessing {
             if (logger.isTraceEnabled()) logger.trace("Selected action " + action + " for player " + agent);
             if (action != null) {
                 action.apply(agent, state);
-                if (current.getReferenceState() == null)
-                    current.setReferenceState(state.getCopy());
+                if (!current.hasReference())
+                    current.setReference(state, keepReferenceStates());
+            }
+
+        }
+        return current;
+    }
+
+    /*
+    As select(), for a search that runs on a SimulationState (see searchSimulatedTree())
+     */
+    protected MCTSNode select(MCTSNode root, SimulationState state, int maxMoves) {
+        int movesLeft = maxMoves;
+        MCTSNode current = root;
+        int treeDepth = calculateTreeDepthLimit(state.getPlayerCount());
+        nodeExpanded = false;
+
+        while (!state.isGameOver() && current.getDepth() < treeDepth && !nodeExpanded && movesLeft > 0) {
+            MCTSNode next;
+            movesLeft--;
+            int nextAgentID = current.nextAgentId(state.getPlayerCount());
+            long legalMoves = current.getLegalMoveMask(state, nextAgentID);
+            if (current.fullyExpanded(legalMoves)) {
+                next = current.getUCTNode(legalMoves);
+                current.incrementParentVisits(legalMoves);
+            } else {
+                synchronized (current) {
+                    current.incrementParentVisits(legalMoves);
+                    next = ((SimpleNodeExpansion) expansionPolicy).expand(current, nextAgentID, legalMoves & ~current.getExpandedMask());
+                }
+                nodeExpanded = true;
             }
+            if (next == null || next == current) {
+                return current;
+            }
+            if (useVirtualLoss) next.addVirtualLoss();
+            current = next;
 
+            if (logger.isTraceEnabled()) logger.trace("Selected action " + current.getAction() + " for player " + current.getAgentId());
+            state.apply(current.getAgentId(), current.actionId, ThreadLocalRandom.current());
+            if (!current.hasReference())
+                current.setReference(state.getPlayerCount(), state.getInformation());
         }
         return current;
     }
 
     protected int calculateTreeDepthLimit(GameState state) {
-        return (state.getPlayerCount() * treeDepthMul) + 1;
+        return calculateTreeDepthLimit(state.getPlayerCount());
+    }
+
+    protected int calculateTreeDepthLimit(int playerCount) {
+        return (playerCount * treeDepthMul) + 1;
     }
 
 
@@ -247,8 +497,15 @@ public class MCTS implements Agent, HasGameOverProcessing {
                         cardsAddedToDeck++;
                     }
                 }
-                // then choose the action
-                Action chosenAction = rolloutPolicy.doMove(playerID, state);
+                // then choose the action (a policy shared with other search threads is not safe to call at once)
+                Action chosenAction;
+                if (rolloutPolicy instanceof HasWorkerCopy) {
+                    chosenAction = rolloutPolicy.doMove(playerID, state);
+                } else {
+                    synchronized (rolloutPolicy) {
+                        chosenAction = rolloutPolicy.doMove(playerID, state);
+                    }
+                }
                 // then put their hand back
                 for (int i = 0; i < cardsAddedToDeck; i++) {
                     deck.getTopCard();
@@ -271,6 +528,12 @@ public class MCTS implements Agent, HasGameOverProcessing {
     protected double rollout(GameState state, MCTSNode current, int movesLeft) {
 
         int playerID = (current.getAgentId() + 1) % state.getPlayerCount();
+        if (useSimulationState()) {
+            SimulationState simState = new SimulationState(state);
+            int moves = simState.randomRollout(playerID, Math.min(rolloutDepth, movesLeft), ThreadLocalRandom.current());
+            current.backupRollout(moves, simState.getScore());
+            return simState.getScore();
+        }
         // we rollout from current, which records the agent who acted to reach it
         int moves = 0;
         int movesWithEmptyDeck = 0;
@@ -296,6 +559,14 @@ public class MCTS implements Agent, HasGameOverProcessing {
         return state.getScore();
     }
 
+    /*
+    A random rollout policy does not need the full GameState, so we can run it on a SimulationState instead.
+    Any subclass that changes how rollout actions are picked must override this.
+     */
+    protected boolean useSimulationState() {
+        return rolloutPolicy != null && rolloutPolicy.getClass() == RandomEqual.class;
+    }
+
     @Override
     public String toString() {
         return String.format("MCTS(%s)", rolloutPolicy == null ? "rnd" : rolloutPolicy.toString());
@@ -1,6 +1,11 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 
 import com.fossgalaxy.games.fireworks.ai.Agent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.HandBeliefTracker;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.ParticleBelief;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.ParticleLikelihood;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.UsesBeliefTracker;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.DeterminisationPool;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.HandDeterminiser;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
@@ -12,16 +17,24 @@ import com.fossgalaxy.games.fireworks.state.actions.TellColour;
 import com.fossgalaxy.games.fireworks.state.events.GameEvent;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 /**
  * Created by WebPigeon on 09/08/2016.
  */
-public class MCTSInfoSet extends MCTS {
+public class MCTSInfoSet extends MCTS implements UsesBeliefTracker {
 
     protected HandDeterminiser handDeterminiser;
     protected boolean MRIS = false;
     protected Conventions conv;
+    protected int determinisationThreads = 0;
+    private DeterminisationPool determinisationPool;
+    protected HandBeliefTracker beliefTracker;
+    protected ParticleBelief particleBelief;
+    private int particles;
+    // counted by each search thread, and reported once the results of all of them have been merged
+    protected int consistentRollouts, consistentPlays, consistentDiscards;
 
     @AgentConstructor("hs-RIS")
     public MCTSInfoSet(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, String conventions, Agent rollout) {
@@ -29,40 +42,193 @@ public class MCTSInfoSet extends MCTS {
         conv = new Conventions(conventions);
     }
 
+    @AgentConstructor("hs-RISpar")
+    public MCTSInfoSet(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, conventions, rollout);
+        this.threads = threads;
+    }
+
+    /*
+    Each of the options below adds one more int after timeLimit, always in the order threads, determinisationThreads,
+    particles
+     */
+    @AgentConstructor("hs-RISpool")
+    public MCTSInfoSet(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, int determinisationThreads, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, threads, conventions, rollout);
+        this.determinisationThreads = determinisationThreads;
+    }
+
+    @AgentConstructor("hs-RISparticle")
+    public MCTSInfoSet(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, int determinisationThreads, int particles, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, threads, determinisationThreads, conventions, rollout);
+        setParticles(particles);
+    }
+
+    /*
+    With one or more determinisation threads, the determinised copies of the root state used at the start of each
+    iteration are made in the background by a DeterminisationPool, rather than by the search thread(s)
+     */
+    public void setDeterminisationThreads(int determinisationThreads) {
+        this.determinisationThreads = determinisationThreads;
+        determinisationPool = null;
+    }
+
+    @Override
+    public void setBeliefTracker(HandBeliefTracker tracker) {
+        beliefTracker = tracker;
+    }
+
+    /*
+    With a positive number of particles, we keep a ParticleBelief of possible hands from turn to turn, and the root
+    hand for each iteration is taken from this rather than drawn afresh
+     */
+    public void setParticles(int particles) {
+        this.particles = particles;
+        particleBelief = particles > 0 ? new ParticleBelief(particles) : null;
+    }
+
+    @Override
+    public void receiveID(int agentID, String[] names) {
+        super.receiveID(agentID, names);
+        if (particles > 0) particleBelief = new ParticleBelief(particles);
+    }
+
+    /*
+    How well each particle explains what the other players have done since our last turn; by default they are not
+    reweighted, and only dropped when inconsistent
+     */
+    protected ParticleLikelihood particleLikelihood(int agentID, GameState state) {
+        return null;
+    }
+
+    protected HandDeterminiser newHandDeterminiser(GameState state, int agentID) {
+        if (particleBelief != null)
+            return new HandDeterminiser(state, agentID, MRIS, conv, particleBelief.sample(ThreadLocalRandom.current()));
+        return new HandDeterminiser(state, agentID, MRIS, conv, beliefTracker);
+    }
+
     @Override
     protected void executeSearch(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (particleBelief != null)
+            particleBelief.update(agentID, state, conv, beliefTracker, particleLikelihood(agentID, state));
+        consistentRollouts = 0;
+        consistentPlays = 0;
+        consistentDiscards = 0;
+        if (determinisationThreads <= 0) {
+            searchInParallel(agentID, root, state, movesLeft);
+        } else {
+            // the pool is kept for the whole game, and shared by all search threads (workers are shallow copies)
+            if (determinisationPool == null)
+                determinisationPool = new DeterminisationPool(getWorkerPool(), determinisationThreads, 4 * Math.max(threads, determinisationThreads));
+            determinisationPool.start(state, s -> newHandDeterminiser(s, agentID));
+            try {
+                searchInParallel(agentID, root, state, movesLeft);
+            } finally {
+                determinisationPool.stop();
+            }
+        }
+        if (rollouts > 0) {
+            Map<String, Double> stats = new HashMap<>();
+            stats.put("CONSISTENT_ROLLOUT", consistentRollouts / (double) rollouts);
+            stats.put("CONSISTENT_PLAY", consistentPlays / (double) rollouts);
+            stats.put("CONSISTENT_DISCARD", consistentDiscards / (double) rollouts);
+            StatsCollator.addStatistics(stats);
+        }
+    }
+
+    @Override
+    protected void addWorkerCounts(MCTS worker) {
+        super.addWorkerCounts(worker);
+        MCTSInfoSet infoSetWorker = (MCTSInfoSet) worker;
+        consistentRollouts += infoSetWorker.consistentRollouts;
+        consistentPlays += infoSetWorker.consistentPlays;
+        consistentDiscards += infoSetWorker.consistentDiscards;
+    }
+
+    /*
+    false to search root-parallel (below) with more than one thread, or true to search one shared tree, as MCTS does,
+    with virtual loss to push the threads down different branches
+     */
+    protected boolean searchTreeParallel() {
+        return false;
+    }
+
+    private void searchInParallel(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (searchTreeParallel())
+            super.executeSearch(agentID, root, state, movesLeft);
+        else
+            searchRootParallel(agentID, root, state, movesLeft);
+    }
+
+    /*
+    With more than one thread we search root-parallel: each extra thread runs a shallow copy of this agent (so it has its
+    own counters and HandDeterminiser) on its own tree, and once time is up the statistics of the children of each root
+    are merged into ours before the best move is picked.
+     */
+    private void searchRootParallel(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (threads <= 1) {
+            searchTree(agentID, root, state, movesLeft);
+            return;
+        }
+        List<MCTSInfoSet> workers = new ArrayList<>();
+        List<MCTSNode> workerRoots = new ArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            MCTSInfoSet worker = copyForWorker();
+            GameState workerState = state.getCopy();
+            MCTSNode workerRoot = worker.createRoot(root.getAgentId(), workerState);
+            workers.add(worker);
+            workerRoots.add(workerRoot);
+            results.add(getWorkerPool().submit(() -> worker.searchTree(agentID, workerRoot, workerState, movesLeft)));
+        }
+
+        searchTree(agentID, root, state, movesLeft);
+
+        for (int i = 0; i < workers.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new AssertionError("Root-parallel search thread failed", e);
+            }
+            root.mergeChildStatistics(workerRoots.get(i));
+            addWorkerCounts(workers.get(i));
+        }
+    }
+
+    @Override
+    protected MCTSInfoSet copyForWorker() {
+        MCTSInfoSet worker = (MCTSInfoSet) super.copyForWorker();
+        worker.consistentRollouts = 0;
+        worker.consistentPlays = 0;
+        worker.consistentDiscards = 0;
+        worker.handDeterminiser = null;
+        return worker;
+    }
+
+    @Override
+    protected void searchTree(int agentID, MCTSNode root, GameState state, int movesLeft) {
         long finishTime = System.currentTimeMillis() + timeLimit;
 
 //        for (int round = 0; round < roundLength; round++) {
         while (System.currentTimeMillis() < finishTime && rollouts < timeLimit * 2) {
             //find a leaf node
             rollouts++;
-            GameState currentState = state.getCopy();
-
-            handDeterminiser = new HandDeterminiser(currentState, agentID, MRIS, conv);
-            long oldShiftsPlay = HandDeterminiser.getUniverseShiftPlay();
-            long oldShiftsDiscard = HandDeterminiser.getUniverseShiftDiscard();
-            MCTSNode current = select(root, currentState, movesLeft);
-            // reset to known hand values before rollout
-            Map<String, Double> shiftData = new HashMap<>();
-            if (HandDeterminiser.getUniverseShiftDiscard() == oldShiftsDiscard && HandDeterminiser.getUniverseShiftPlay() == oldShiftsPlay) {
-                shiftData.put("CONSISTENT_ROLLOUT", 1.0);
-                shiftData.put("CONSISTENT_PLAY", 1.0);
-                shiftData.put("CONSISTENT_DISCARD", 1.0);
+            GameState currentState;
+            if (determinisationPool != null) {
+                DeterminisationPool.Determinisation determinisation = determinisationPool.take();
+                currentState = determinisation.state;
+                handDeterminiser = determinisation.handDeterminiser;
             } else {
-                shiftData.put("CONSISTENT_ROLLOUT", 0.0);
-                if (HandDeterminiser.getUniverseShiftPlay() == oldShiftsPlay) {
-                    shiftData.put("CONSISTENT_PLAY", 1.0);
-                } else {
-                    shiftData.put("CONSISTENT_PLAY", 0.0);
-                }
-                if (HandDeterminiser.getUniverseShiftDiscard() == oldShiftsDiscard) {
-                    shiftData.put("CONSISTENT_DISCARD", 1.0);
-                } else {
-                    shiftData.put("CONSISTENT_DISCARD", 0.0);
-                }
+                currentState = state.getCopy();
+                handDeterminiser = newHandDeterminiser(currentState, agentID);
             }
-            StatsCollator.addStatistics(shiftData);
+            MCTSNode current = select(root, currentState, movesLeft);
+            // reset to known hand values before rollout
+            long shiftsPlay = handDeterminiser.getShiftsOnPlay();
+            long shiftsDiscard = handDeterminiser.getShiftsOnDiscard();
+            if (shiftsPlay == 0 && shiftsDiscard == 0) consistentRollouts++;
+            if (shiftsPlay == 0) consistentPlays++;
+            if (shiftsDiscard == 0) consistentDiscards++;
             handDeterminiser.reset((current.getAgentId() + 1) % currentState.getPlayerCount(), currentState);
 
             if (current.getDepth() > deepestNode) deepestNode = current.getDepth();
@@ -72,6 +238,7 @@ public class MCTSInfoSet extends MCTS {
             double score = rollout(currentState, current, movesLeft - current.getDepth());
             if (logger.isDebugEnabled()) logger.debug(String.format("Backing up a final score of %.2f", score));
             current.backup(score, null, null);
+            if (useVirtualLoss) current.revertVirtualLoss();
             if (calcTree) {
                 System.out.println(root.printD3());
             }
@@ -115,10 +282,11 @@ public class MCTSInfoSet extends MCTS {
                 logger.debug(logMessage);
             }
 
-            if (current.fullyExpanded(state)) {
-                next = current.getUCTNode(state, false);
+            long legalMoves = current.getLegalMoveMask(state, current.nextAgentId(state));
+            if (current.fullyExpanded(legalMoves)) {
+                next = current.getUCTNode(state, legalMoves, false);
             } else {
-                next = expand(current, state);
+                next = expand(current, state, legalMoves);
                 nodeExpanded = true;
                 //            return next;
             }
@@ -140,6 +308,7 @@ public class MCTSInfoSet extends MCTS {
                 throw new AssertionError("WTF");
             }
 
+            if (useVirtualLoss && next != current) next.addVirtualLoss();
             current = next;
 
             int agent = current.getAgentId(); // this is the acting agent
@@ -155,8 +324,8 @@ public class MCTSInfoSet extends MCTS {
                 action.apply(agent, state);
                 // we then set the reference state on the node, once the action has actually been executed
                 // this is a fully determinised state
-                if (current.getReferenceState() == null)
-                    current.setReferenceState(state.getCopy());
+                if (!current.hasReference())
+                    current.setReference(state, keepReferenceStates());
             }
         }
         return current;
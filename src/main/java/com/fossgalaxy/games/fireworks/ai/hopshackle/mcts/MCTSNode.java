@@ -3,7 +3,7 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.AllPlayerDeterminiser;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.LegalActionFilter;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsSummary;
-import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.BasicStats;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.AtomicStats;
 import com.fossgalaxy.games.fireworks.state.Card;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.Hand;
@@ -14,16 +14,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
  * Created by webpigeon on 22/08/16.
+ *
+ * Each node is still an object of its own, rather than an index into a structure-of-arrays arena: MCTSRuleNode, the
+ * expansion policies, TreeProcessors, subtree reuse and root-parallel merging all hold nodes by reference, so moving to
+ * an arena means moving all of them to node ids at once.
  */
 public class MCTSNode {
 
     public static final double DEFAULT_EXP_CONST = Math.sqrt(2);
     public static final AtomicLong idFountain = new AtomicLong(1);
+    private static final AtomicIntegerFieldUpdater<MCTSNode> virtualLossUpdater = AtomicIntegerFieldUpdater.newUpdater(MCTSNode.class, "virtualLoss");
+    private static final AtomicIntegerFieldUpdater<MCTSNode> visitsUpdater = AtomicIntegerFieldUpdater.newUpdater(MCTSNode.class, "visits");
+    private static final AtomicLongFieldUpdater<MCTSNode> scoreUpdater = AtomicLongFieldUpdater.newUpdater(MCTSNode.class, "scoreBits");
+    private static final AtomicReferenceFieldUpdater<MCTSNode, AtomicStats> rolloutScoresUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(MCTSNode.class, AtomicStats.class, "rolloutScores");
+    private static final AtomicReferenceFieldUpdater<MCTSNode, AtomicStats> rolloutMovesUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(MCTSNode.class, AtomicStats.class, "rolloutMoves");
+
+    private static final MCTSNode[] NO_CHILDREN = new MCTSNode[0];
 
     protected static final int MAX_SCORE = 25;
     protected static final double EPSILON = 1e-6;
@@ -31,23 +49,35 @@ public class MCTSNode {
 
     public final double expConst;
     private final long uniqueID = idFountain.getAndIncrement();
-    private GameState referenceState;
+    private volatile GameState referenceState;
+    private volatile int referenceInformation = -1;
+    private volatile int referencePlayerCount;
     protected final Action moveToState;
+    protected final int actionId;
     protected int agentId;
     public boolean singleAgentTree;
-    protected final MCTSNode parent;
-    protected final List<MCTSNode> children;
-    protected final Collection<Action> allUnexpandedActions;
-    protected final Random random;
-    protected final int depth;
-    protected final Logger logger = LoggerFactory.getLogger(MCTSNode.class);
-
-    protected double score;
-    protected int visits;
-    protected Map<Action, Integer> parentWasVisitedAndIWasLegal = new HashMap<>();
-
-    public final StatsSummary rolloutScores;
-    public final StatsSummary rolloutMoves;
+    protected MCTSNode parent;
+    // children[0..childCount) are the expanded children. They are only added under the lock on this node, and the
+    // array is only copied when it is full; readers take childCount first and then the array, so never see a gap
+    private volatile MCTSNode[] children = NO_CHILDREN;
+    private volatile int childCount;
+    // bitsets of ActionCodec ids
+    private volatile long unexpandedActions;
+    private volatile long expandedActions;
+    protected int depth;
+    protected static final Logger logger = LoggerFactory.getLogger(MCTSNode.class);
+
+    // several search threads can share a tree, so these are only changed atomically, by addScore() and addVisits()
+    // (the total score is held as the bits of a double, so that it can be updated by compare-and-set)
+    private volatile long scoreBits;
+    protected volatile int visits;
+    private volatile int virtualLoss;
+    // indexed by ActionCodec id; only created once there is a visit to record
+    private volatile AtomicIntegerArray parentWasVisitedAndIWasLegal;
+
+    // only created once a rollout is backed up through this node
+    private volatile AtomicStats rolloutScores;
+    private volatile AtomicStats rolloutMoves;
 
     public MCTSNode(Collection<Action> allUnexpandedActions) {
         this(null, -1, null, DEFAULT_EXP_CONST, allUnexpandedActions);
@@ -75,30 +105,65 @@ public class MCTSNode {
 
     public MCTSNode(MCTSNode parent, int agentId, Action moveToState, double expConst, Collection<Action> allUnexpandedActions,
                     int initialVisits, double initialScore) {
+        this(parent, agentId, moveToState, expConst, ActionCodec.toMask(allUnexpandedActions), initialVisits, initialScore);
+    }
+
+    public MCTSNode(MCTSNode parent, int agentId, Action moveToState, double expConst, long unexpandedActions,
+                    int initialVisits, double initialScore) {
         this.expConst = expConst;
         this.parent = parent;
         this.agentId = agentId;
         if (parent != null)
             this.singleAgentTree = parent.singleAgentTree;
-        this.moveToState = moveToState;
-        this.score = initialScore * initialVisits;
+        this.actionId = moveToState == null ? -1 : ActionCodec.encode(moveToState);
+        this.moveToState = moveToState == null ? null : ActionCodec.decode(actionId);
+        this.scoreBits = Double.doubleToRawLongBits(initialScore * initialVisits);
         this.visits = initialVisits;
-        if (initialVisits > 0) parentWasVisitedAndIWasLegal.put(moveToState, initialVisits);
-        this.children = new ArrayList<>();
-        this.allUnexpandedActions = new ArrayList<>(allUnexpandedActions);
-        this.random = new Random();
+        if (initialVisits > 0) parentVisits().set(actionId, initialVisits);
+        this.unexpandedActions = unexpandedActions;
         this.depth = (parent == null) ? 0 : parent.depth + 1;
 
-        this.rolloutScores = new BasicStats();
-        this.rolloutMoves = new BasicStats();
-
         assert (parent != null && moveToState != null) || (parent == null && moveToState == null);
     }
 
 
-    public void addChild(MCTSNode node) {
-        allUnexpandedActions.remove(node.getAction());
-        children.add(node);
+    public synchronized void addChild(MCTSNode node) {
+        unexpandedActions &= ~(1L << node.actionId);
+        expandedActions |= 1L << node.actionId;
+        int count = childCount;
+        MCTSNode[] array = children;
+        if (count == array.length) {
+            // enough room for every action that could still be expanded, so that we rarely need to grow again
+            int capacity = Math.max(count + Long.bitCount(unexpandedActions) + 1, 4);
+            array = Arrays.copyOf(array, capacity);
+        }
+        array[count] = node;
+        children = array;
+        childCount = count + 1;
+    }
+
+    private AtomicIntegerArray parentVisits() {
+        AtomicIntegerArray retValue = parentWasVisitedAndIWasLegal;
+        if (retValue == null) {
+            synchronized (this) {
+                if (parentWasVisitedAndIWasLegal == null)
+                    parentWasVisitedAndIWasLegal = new AtomicIntegerArray(ActionCodec.ACTION_COUNT);
+                retValue = parentWasVisitedAndIWasLegal;
+            }
+        }
+        return retValue;
+    }
+
+    /*
+    The number of times this node was visited when the action was legal
+     */
+    public int getParentVisits(Action action) {
+        AtomicIntegerArray visitsByAction = parentWasVisitedAndIWasLegal;
+        return visitsByAction == null ? 0 : visitsByAction.get(ActionCodec.encode(action));
+    }
+
+    public int getUnexpandedActionCount() {
+        return Long.bitCount(unexpandedActions);
     }
 
     public double getUCTValue() {
@@ -106,12 +171,31 @@ public class MCTSNode {
             return 0;
         }
 
-        int parentalVisits = parent.parentWasVisitedAndIWasLegal.get(this.moveToState);
-        return ((score / MAX_SCORE) / visits) + (expConst * Math.sqrt(Math.log(parentalVisits) / visits));
+        int parentalVisits = parent.parentVisits().get(actionId);
+        // any virtual loss counts as visits that scored zero
+        int effectiveVisits = visits + virtualLoss;
+        return ((getScore() / MAX_SCORE) / effectiveVisits) + (expConst * Math.sqrt(Math.log(parentalVisits) / effectiveVisits));
+    }
+
+    /*
+    Virtual loss is added to each node as a search thread descends through it, and removed once that thread has
+    backed up its result. This makes the node look worse to other threads in the meantime.
+     */
+    public void addVirtualLoss() {
+        virtualLossUpdater.incrementAndGet(this);
+    }
+
+    public void revertVirtualLoss() {
+        MCTSNode current = this;
+        while (current.parent != null) {
+            virtualLossUpdater.decrementAndGet(current);
+            current = current.parent;
+        }
     }
 
     public List<MCTSNode> getChildren() {
-        return children;
+        int count = childCount;
+        return Collections.unmodifiableList(Arrays.asList(children).subList(0, count));
     }
 
     public void backup(double originalScore, MCTSNode triggerNode, MCTSNode stopNode) {
@@ -127,12 +211,12 @@ public class MCTSNode {
             } else if (triggerNode == null || triggerNode == current) {
                 triggerNode = null;
                 if (DISCOUNT_ENABLED) {
-                    current.score += score * Math.pow(0.95, current.getDepth() - 1.0);
+                    current.addScore(score * Math.pow(0.95, current.getDepth() - 1.0));
                 } else {
-                    current.score += score;
+                    current.addScore(score);
                 }
+                current.addVisits(1);
                 iterations++;
-                current.visits++;
          /*       if (current.getBestNode() != null) {
                     double nodeScore = current.getBestNode().getMeanScore(); // expected score if we had taken the best action from this state
                     score = nodeScore; // and we interpolate towards that
@@ -149,50 +233,91 @@ public class MCTSNode {
     Called when we descend the tree in select()
      */
     public MCTSNode getUCTNode(GameState state, boolean trial) {
+        return getUCTNode(state, getLegalMoveMask(state, nextAgentId(state)), trial);
+    }
+
+    /*
+    legalMoves is from getLegalMoveMask(), so that it is only calculated once for each step of select()
+     */
+    public MCTSNode getUCTNode(GameState state, long legalMoves, boolean trial) {
+        MCTSNode bestChild = getUCTNode(legalMoves);
+        if (!trial) incrementParentVisitsForAllEligibleActions(state, legalMoves);
+        return bestChild;
+    }
+
+    /*
+    The child with the best UCT value among legalMoves, without counting this as a visit
+     */
+    public MCTSNode getUCTNode(long legalMoves) {
         double bestScore = -Double.MAX_VALUE;
         MCTSNode bestChild = null;
 
-        for (MCTSNode child : children) {
-            //XXX Hack to check if the move is legal in this version
-            Action moveToMake = child.moveToState;
-            if (!LegalActionFilter.isLegal(child.agentId, state).test(moveToMake))
+        int count = childCount;
+        MCTSNode[] array = children;
+        for (int i = 0; i < count; i++) {
+            MCTSNode child = array[i];
+            if ((legalMoves & (1L << child.actionId)) == 0L)
                 continue;
+            Action moveToMake = child.moveToState;
 
-            double childScore = child.getUCTValue() + (random.nextDouble() * EPSILON);
+            double childScore = child.getUCTValue() + (ThreadLocalRandom.current().nextDouble() * EPSILON);
             if (logger.isDebugEnabled())
-                logger.debug(String.format("\tUCT: %.2f from base %.2f (%d/%d complete/eligible visits) for %s", childScore, child.score / child.visits,
-                        child.visits, parentWasVisitedAndIWasLegal.get(moveToMake), moveToMake));
+                logger.debug(String.format("\tUCT: %.2f from base %.2f (%d/%d complete/eligible visits) for %s", childScore, child.getMeanScore(),
+                        child.visits, getParentVisits(moveToMake), moveToMake));
 
             if (childScore > bestScore) {
                 bestScore = childScore;
                 bestChild = child;
             }
         }
-        if (!trial) incrementParentVisitsForAllEligibleActions(state);
-
-        if (logger.isDebugEnabled()) logger.debug(String.format("\tChosen Action is %s", bestChild.moveToState));
+        if (logger.isDebugEnabled()) logger.debug(String.format("\tChosen Action is %s", bestChild == null ? "NULL" : bestChild.moveToState));
         return bestChild;
     }
 
 
     protected void incrementParentVisitsForAllEligibleActions(GameState state) {
-        for (MCTSNode child : children) {
-            if (LegalActionFilter.isLegal(child.agentId, state).test(child.moveToState))
-                incrementParentVisit(child.moveToState);
-        }
-        int agentActing = singleAgentTree ? getAgentId() : (getAgentId() + 1) % state.getPlayerCount();
-        for (Action unexpandedAction : getLegalUnexpandedMoves(state, agentActing)) {
-            incrementParentVisit(unexpandedAction);
-            // we still need to increment the count for this, even though it is not yet expanded
-        }
+        incrementParentVisitsForAllEligibleActions(state, getLegalMoveMask(state, nextAgentId(state)));
     }
 
-    private void incrementParentVisit(Action a) {
-        if (!parentWasVisitedAndIWasLegal.containsKey(a)) {
-            parentWasVisitedAndIWasLegal.put(a, 1);
-        } else {
-            parentWasVisitedAndIWasLegal.put(a, parentWasVisitedAndIWasLegal.get(a) + 1);
-        }
+    protected void incrementParentVisitsForAllEligibleActions(GameState state, long legalMoves) {
+        // this covers both expanded and unexpanded actions
+        // (we still need to increment the count for the latter, even though they are not yet expanded)
+        incrementParentVisits(legalMoves);
+    }
+
+    protected void incrementParentVisits(long actions) {
+        AtomicIntegerArray visitsByAction = parentVisits();
+        for (long remaining = actions; remaining != 0L; remaining &= remaining - 1)
+            visitsByAction.incrementAndGet(Long.numberOfTrailingZeros(remaining));
+    }
+
+    protected int nextAgentId(GameState state) {
+        return nextAgentId(state.getPlayerCount());
+    }
+
+    protected int nextAgentId(int playerCount) {
+        return singleAgentTree ? agentId : (agentId + 1) % playerCount;
+    }
+
+    /*
+    The set of actions (as ActionCodec ids) that are open to nextId from this node in this state, whether already
+    expanded or not. This is worked out once for each step of select(), and then passed to fullyExpanded(),
+    getUCTNode() and expansion
+     */
+    public long getLegalMoveMask(GameState state, int nextId) {
+        return LegalActionFilter.legalMask(unexpandedActions | expandedActions, nextId, state);
+    }
+
+    /*
+    As getLegalMoveMask(GameState, int), for a search that runs on a SimulationState. Only valid for a plain node;
+    a subclass that restricts its moves in getLegalMoveMask() can only be searched with a GameState.
+     */
+    public long getLegalMoveMask(SimulationState state, int nextId) {
+        return (unexpandedActions | expandedActions) & state.legalActions(nextId);
+    }
+
+    protected long getExpandedMask() {
+        return expandedActions;
     }
 
     public Action getAction() {
@@ -203,9 +328,12 @@ public class MCTSNode {
         double bestScore = -Double.MAX_VALUE;
         MCTSNode bestChild = null;
 
-        for (MCTSNode child : children) {
-            //       double childScore = child.score / child.visits + (random.nextDouble() * EPSILON);
-            double childScore = child.visits + child.score / 1000.0 + (random.nextDouble() * EPSILON);
+        int count = childCount;
+        MCTSNode[] array = children;
+        for (int i = 0; i < count; i++) {
+            MCTSNode child = array[i];
+            //       double childScore = child.score / child.visits + (ThreadLocalRandom.current().nextDouble() * EPSILON);
+            double childScore = child.visits + child.getScore() / 1000.0 + (ThreadLocalRandom.current().nextDouble() * EPSILON);
             if (childScore > bestScore) {
                 bestScore = childScore;
                 bestChild = child;
@@ -220,53 +348,102 @@ public class MCTSNode {
         return depth;
     }
 
+    /*
+    Cuts this node free from its parent so that it can be used as the root of the tree on a later move
+     */
+    public void detachAsRoot() {
+        parent = null;
+        reduceDepth(depth);
+    }
+
+    private void reduceDepth(int amount) {
+        depth -= amount;
+        for (MCTSNode child : getChildren())
+            child.reduceDepth(amount);
+    }
+
     @Override
     public String toString() {
-        return String.format("NODE %d (%d: %s %f)", uniqueID, getDepth(), moveToState, score);
+        return String.format("NODE %d (%d: %s %f)", uniqueID, getDepth(), moveToState, getScore());
     }
 
     public boolean containsChild(Action moveToChild) {
-        for (MCTSNode child : children) {
-            if (child.moveToState.equals(moveToChild)) {
-                return true;
-            }
-        }
-        return false;
+        return getChild(moveToChild) != null;
     }
 
     public MCTSNode getChild(Action action) {
-        for (MCTSNode child : children) {
-            if (child.moveToState.equals(action)) {
-                return child;
+        int id = ActionCodec.encode(action);
+        int count = childCount;
+        MCTSNode[] array = children;
+        for (int i = 0; i < count; i++) {
+            if (array[i].actionId == id) {
+                return array[i];
             }
         }
         return null;
     }
 
+    /*
+    Used by root-parallel search to fold the results of another tree, searched from the same root, into this one.
+    Only the statistics of the immediate children are combined; any child we do not have is adopted, and from then on
+    is part of this tree.
+     */
+    public synchronized void mergeChildStatistics(MCTSNode otherRoot) {
+        for (MCTSNode otherChild : otherRoot.getChildren()) {
+            MCTSNode child = getChild(otherChild.moveToState);
+            if (child == null) {
+                otherChild.parent = this;
+                addChild(otherChild);
+            } else {
+                child.addScore(otherChild.getScore());
+                child.addVisits(otherChild.visits);
+                child.mergeRolloutStatistics(otherChild);
+            }
+        }
+        AtomicIntegerArray otherVisits = otherRoot.parentWasVisitedAndIWasLegal;
+        if (otherVisits != null) {
+            AtomicIntegerArray myVisits = parentVisits();
+            for (int i = 0; i < otherVisits.length(); i++)
+                myVisits.addAndGet(i, otherVisits.get(i));
+        }
+        addScore(otherRoot.getScore());
+        addVisits(otherRoot.visits);
+        mergeRolloutStatistics(otherRoot);
+    }
+
+    private void mergeRolloutStatistics(MCTSNode other) {
+        if (other.rolloutMoves == null) return;
+        createRolloutStatistics();
+        rolloutMoves.addAll(other.rolloutMoves);
+        rolloutScores.addAll(other.rolloutScores);
+    }
+
     public boolean fullyExpanded(GameState state) {
-        return fullyExpanded(state, singleAgentTree ? agentId : (agentId + 1) % state.getPlayerCount());
+        return fullyExpanded(state, nextAgentId(state));
     }
 
     public boolean fullyExpanded(GameState state, int nextId) {
-        return getLegalUnexpandedMoves(state, nextId).isEmpty();
+        return fullyExpanded(getLegalMoveMask(state, nextId));
+    }
+
+    public boolean fullyExpanded(long legalMoves) {
+        return (legalMoves & ~expandedActions) == 0L;
     }
 
     public Collection<Action> getLegalUnexpandedMoves(GameState state, int nextId) {
-        return allUnexpandedActions.stream()
-                .filter(LegalActionFilter.isLegal(nextId, state))
-                .collect(Collectors.toList());
+        return ActionCodec.fromMask(LegalActionFilter.legalMask(unexpandedActions, nextId, state));
     }
 
     public Collection<Action> getAllActionsExpandedAlready() {
         ArrayList<Action> actions = new ArrayList<>();
-        children.forEach(node -> actions.add(node.getAction()));
+        getChildren().forEach(node -> actions.add(node.getAction()));
         return actions;
     }
 
     public void printChildren() {
         logger.trace("\t {}\t {}\t {}\t {}", "action", "visits", "score", "avg");
-        for (MCTSNode child : children) {
-            logger.trace("\t{}\t{}\t{}\t{}", child.getAction(), child.visits, child.score, child.score / child.visits);
+        for (MCTSNode child : getChildren()) {
+            logger.trace("\t{}\t{}\t{}\t{}", child.getAction(), child.visits, child.getScore(), child.getMeanScore());
         }
     }
 
@@ -278,13 +455,14 @@ public class MCTSNode {
 
     private void printD3Internal(StringBuilder buffer) {
         buffer.append("{\"name\": \"\"");
-        if (!children.isEmpty()) {
+        List<MCTSNode> childList = getChildren();
+        if (!childList.isEmpty()) {
             buffer.append(",\"children\":[");
-            for (int i = 0; i < children.size(); i++) {
+            for (int i = 0; i < childList.size(); i++) {
                 if (i != 0) {
                     buffer.append(",");
                 }
-                children.get(i).printD3Internal(buffer);
+                childList.get(i).printD3Internal(buffer);
             }
             buffer.append("]");
         }
@@ -298,6 +476,7 @@ public class MCTSNode {
      * @param score The total score achieved at the end of the rollout
      */
     public void backupRollout(int moves, int score) {
+        createRolloutStatistics();
         rolloutMoves.add(moves);
         rolloutScores.add(score);
         if (parent != null) {
@@ -305,10 +484,60 @@ public class MCTSNode {
         }
     }
 
+    private void createRolloutStatistics() {
+        // two threads may both get here; the loser's (empty) statistics are thrown away
+        if (rolloutMoves == null)
+            rolloutMovesUpdater.compareAndSet(this, null, new AtomicStats());
+        if (rolloutScores == null)
+            rolloutScoresUpdater.compareAndSet(this, null, new AtomicStats());
+    }
+
+    public StatsSummary getRolloutScores() {
+        return rolloutScores == null ? new AtomicStats() : rolloutScores;
+    }
+
+    public StatsSummary getRolloutMoves() {
+        return rolloutMoves == null ? new AtomicStats() : rolloutMoves;
+    }
+
     public GameState getReferenceState() {
         return referenceState;
     }
 
+    public boolean hasReference() {
+        return referenceInformation >= 0;
+    }
+
+    public int getReferenceInformation() {
+        return referenceInformation;
+    }
+
+    public int getReferencePlayerCount() {
+        return referencePlayerCount;
+    }
+
+    /*
+    Records the state after the action is taken. A full copy is only kept if keepState is true (a TreeProcessor needs
+    these once the search is over); otherwise we just note the public facts that expansion needs, and save a deep copy
+    of the state (and its history) for every new node
+     */
+    public void setReference(GameState state, boolean keepState) {
+        if (keepState) {
+            setReferenceState(state.getCopy());
+        } else {
+            referencePlayerCount = state.getPlayerCount();
+            referenceInformation = state.getInfomation();
+        }
+    }
+
+    /*
+    As setReference(state, false), for a search that runs on a SimulationState
+     */
+    public void setReference(int playerCount, int information) {
+        referencePlayerCount = playerCount;
+        referenceInformation = information;
+    }
+
     /* it is the caller's responsibility to pass a copy of a state in
     so that it is not mutated by any other actor. The reference state is the state
     that applies after the action is taken - so we do not know this on Node creation
@@ -328,6 +557,8 @@ public class MCTSNode {
             }
         }
         referenceState = refState;
+        referencePlayerCount = refState.getPlayerCount();
+        referenceInformation = refState.getInfomation();
     }
 
     public int getVisits() {
@@ -335,7 +566,26 @@ public class MCTSNode {
     }
 
     public double getMeanScore() {
-        return score / visits;
+        return getScore() / visits;
+    }
+
+    /*
+    The total of all the scores backed up through this node (including any prior)
+     */
+    public double getScore() {
+        return Double.longBitsToDouble(scoreBits);
+    }
+
+    protected void addScore(double amount) {
+        long current, next;
+        do {
+            current = scoreBits;
+            next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + amount);
+        } while (!scoreUpdater.compareAndSet(this, current, next));
+    }
+
+    protected void addVisits(int amount) {
+        visitsUpdater.addAndGet(this, amount);
     }
 
     public int getAgentId() {
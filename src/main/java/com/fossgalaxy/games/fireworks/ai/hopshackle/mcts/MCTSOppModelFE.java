@@ -22,7 +22,7 @@ public class MCTSOppModelFE extends MCTSOppModelRollout {
     @Override
     protected double rollout(GameState state, MCTSNode current, int movesLeft) {
         if (state.isGameOver() || movesLeft <= 0) return state.getScore();
-        return current.score / current.visits;
+        return current.getMeanScore();
     }
 
     @Override
@@ -2,12 +2,15 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 
 import com.fossgalaxy.games.fireworks.ai.Agent;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.*;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.ParticleLikelihood;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.*;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.AllPlayerDeterminiser;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize.HandDeterminiser;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion.RuleExpansionPolicyOpponentModel;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.*;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.*;
 import com.fossgalaxy.games.fireworks.ai.iggi.IGGIFactory;
+import com.fossgalaxy.games.fireworks.ai.iggi.Utils;
 import com.fossgalaxy.games.fireworks.ai.osawa.OsawaFactory;
 import com.fossgalaxy.games.fireworks.ai.rule.Rule;
 import com.fossgalaxy.games.fireworks.ai.vanDenBergh.VanDenBerghFactory;
@@ -17,7 +20,6 @@ import com.fossgalaxy.games.fireworks.state.actions.*;
 import com.fossgalaxy.games.fireworks.state.events.*;
 import com.fossgalaxy.games.fireworks.utils.*;
 
-import java.io.FileInputStream;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -35,6 +37,19 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
     protected static Map<String, double[]> historicModels = new HashMap();
     protected String[] agentNames;
     protected boolean learningMode = false;
+    // the opponent actions since our last turn, and the state (as we saw it) just before each, to weight particles
+    protected List<HistoryEntry> observedActions = new ArrayList<>();
+    protected List<GameState> statesBeforeObserved = new ArrayList<>();
+    // the chance that an opponent does something that none of their likely models would
+    protected static final double MODEL_NOISE = 0.05;
+    // models with less posterior probability than this are ignored when weighting particles, to save time
+    protected static final double MIN_MODEL_WEIGHT = 0.05;
+    // and at most this many of the most likely models are run to weight them
+    protected static final int MAX_LIKELIHOOD_MODELS = 3;
+    // the share of the time limit that weighting particles may take; any left to weight after that get the average
+    protected static final double LIKELIHOOD_BUDGET = 0.25;
+    // models that pick at random, so that running one once says nothing about the chance of an action
+    protected static final Set<String> STOCHASTIC_MODELS = new HashSet<>(Collections.singletonList("legal_random"));
 
     {
 /*
@@ -63,23 +78,30 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
         allRules.addAll(GameRunnerWithRandomAgents.rulesToTrackConv);
         expansionPolicy = new RuleExpansionPolicyOpponentModel(logger, random, allRules);
         try {
-            if (modelLocation.startsWith("RES")) {
-                modelLocation = modelLocation.substring(3);
-                ClassLoader classLoader = getClass().getClassLoader();
-                brain = HopshackleNN.createFromStream(classLoader.getResourceAsStream(modelLocation));
-            } else {
-                brain = HopshackleNN.createFromStream(new FileInputStream(modelLocation));
-            }
+            brain = ModelRegistry.get(modelLocation);
         } catch (Exception e) {
             System.out.println("Error when reading in Model from " + modelLocation + ": " + e.toString());
             e.printStackTrace();
         }
     }
 
+    /*
+    As above, but with a ParticleBelief of our hand, weighted by how likely the opponent models are to have done
+    what they did if we held each hand
+     */
+    @AgentConstructor("mctsOpponentModelParticle")
+    public MCTSOppModelRollout(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int particles, String modelLocation) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, modelLocation);
+        setParticles(particles);
+    }
+
     @Override
     public void receiveID(int agentID, String[] names) {
         // this should be called when we set up the game
+        super.receiveID(agentID, names);
         lastState = null;
+        observedActions.clear();
+        statesBeforeObserved.clear();
         pdf = new double[names.length][opponentModelFullList.size()];
         for (int i = 0; i < names.length; i++) pdf[i][8] = 5.0;
         pdf[agentID][8] = 100.0;
@@ -102,6 +124,8 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
 
     @Override
     public Action doMove(int agentID, GameState state) {
+        observedActions.clear();
+        statesBeforeObserved.clear();
         if (lastState != null) updatePosteriorModel(state, agentID);
         lastState = state.getCopy();
         historyIndex = state.getActionHistory().size();
@@ -113,7 +137,13 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
 
     @Override
     public void executeSearch(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        // the particle update is part of the search, and comes out of the same time limit
         long finishTime = System.currentTimeMillis() + timeLimit;
+        if (particleBelief != null) {
+            ObservedActionLikelihood likelihood = particleLikelihood(agentID, state);
+            particleBelief.update(agentID, state, conv, beliefTracker, likelihood);
+            if (likelihood != null) likelihood.reportStatistics();
+        }
 
         root.agentId = agentID;
         root.singleAgentTree = true;
@@ -123,7 +153,7 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
             rollouts++;
             GameState currentState = state.getCopy();
 
-            handDeterminiser = new HandDeterminiser(currentState, agentID, false, conv);
+            handDeterminiser = newHandDeterminiser(currentState, agentID);
 
             MCTSNode current = select(root, currentState, movesLeft);
             // reset to known hand values before rollout
@@ -192,10 +222,11 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
                     action = new DiscardCard(0);
                 }
             } else {
-                if (current.fullyExpanded(state)) {
-                    next = current.getUCTNode(state, false);
+                long legalMoves = current.getLegalMoveMask(state, current.nextAgentId(state));
+                if (current.fullyExpanded(legalMoves)) {
+                    next = current.getUCTNode(state, legalMoves, false);
                 } else {
-                    next = expand(current, state);
+                    next = expand(current, state, legalMoves);
                     nodeExpanded = true;
                     //            return next;
                 }
@@ -225,8 +256,8 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
                 action.apply(agentAboutToAct, state);
                 // we then set the reference state on the node, once the action has actually been executed
                 // this is a fully determinised state
-                if (current.getReferenceState() == null)
-                    current.setReferenceState(state.getCopy());
+                if (!current.hasReference())
+                    current.setReference(state, keepReferenceStates());
             }
             agentAboutToAct = (agentAboutToAct + 1) % state.getPlayerCount();
             // we increment the acting player count and iterate
@@ -234,6 +265,12 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
         return current;
     }
 
+    @Override
+    protected boolean useSimulationState() {
+        // rollout actions come from the opponent models, which need the full GameState
+        return false;
+    }
+
     @Override
     protected Action selectActionForRollout(GameState state, int playerID) {
         try {
@@ -296,6 +333,10 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
         // first of all we have to determinise the active players hand...so that the others have something to go on...
         for (int i = historyIndex; i < state.getActionHistory().size(); i++) {
             HistoryEntry h = state.getActionHistory().get(i);
+            if (particleBelief != null && h.playerID != perspective) {
+                observedActions.add(h);
+                statesBeforeObserved.add(lastState.getCopy());
+            }
             for (GameEvent event : h.history) {
                 int currentPlayer = getPlayerOf(event);
                 // is the player has changed, and is not us (as we do not calculate our own opponent model
@@ -310,6 +351,158 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
         }
     }
 
+    /*
+    The likelihood of a hand is the product, over each opponent action since our last turn, of the chance that their
+    (current) opponent model would have taken that action had we held it, smoothed by MODEL_NOISE. This is called
+    just after executeSearch() sets its finishTime, so it is charged to the search; and it stops running models once
+    LIKELIHOOD_BUDGET of the time is used
+     */
+    @Override
+    protected ObservedActionLikelihood particleLikelihood(int agentID, GameState state) {
+        if (observedActions.isEmpty()) return null;
+        return new ObservedActionLikelihood(agentID, System.currentTimeMillis() + (long) (timeLimit * LIKELIHOOD_BUDGET));
+    }
+
+    /*
+    Each observed state is copied once, and each hand is bound to the copy in turn (and taken off again) while the
+    models are run. Only the MAX_LIKELIHOOD_MODELS most likely models are run, and a STOCHASTIC_MODELS one is not run
+    at all, but given the chance of picking the observed action from the legal ones at random. The value for each
+    distinct hand is kept, as resampling leaves many particles with the same hand. Once the deadline has passed, a hand
+    not yet weighted is given the mean likelihood of those that were, so it is neither favoured nor penalised.
+     */
+    protected class ObservedActionLikelihood implements ParticleLikelihood {
+
+        private final int rootID;
+        private final long deadline;
+        private final List<HistoryEntry> actions;
+        private final List<GameState> states = new ArrayList<>();
+        private final List<int[]> models = new ArrayList<>();
+        private final List<double[]> modelWeights = new ArrayList<>();
+        private final Map<Long, Double> byHand = new HashMap<>();
+        private double totalLikelihood;
+        private int weighted, unweighted;
+
+        ObservedActionLikelihood(int rootID, long deadline) {
+            this.rootID = rootID;
+            this.deadline = deadline;
+            actions = new ArrayList<>(observedActions);
+            for (int i = 0; i < actions.size(); i++) {
+                GameState determinised = statesBeforeObserved.get(i).getCopy();
+                Deck deck = determinised.getDeck();
+                Hand rootHand = determinised.getHand(rootID);
+                for (int slot = 0; slot < rootHand.getSize(); slot++) {
+                    if (rootHand.getCard(slot) != null) {
+                        deck.add(rootHand.getCard(slot));
+                        rootHand.bindCard(slot, null);
+                    }
+                }
+                states.add(determinised);
+                selectModels(actions.get(i).playerID);
+            }
+        }
+
+        private void selectModels(int playerID) {
+            List<Double> pdf = getPDF(playerID);
+            int[] byWeight = IntStream.range(0, pdf.size()).boxed()
+                    .sorted((a, b) -> Double.compare(pdf.get(b), pdf.get(a)))
+                    .filter(m -> pdf.get(m) >= MIN_MODEL_WEIGHT)
+                    .limit(MAX_LIKELIHOOD_MODELS)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            models.add(byWeight);
+            modelWeights.add(Arrays.stream(byWeight).mapToDouble(pdf::get).toArray());
+        }
+
+        @Override
+        public double of(int[] hand) {
+            long key = 0;
+            for (int card : hand)
+                key = key * (SimulationState.CARD_TYPES + 1) + card + 1;
+            Double known = byHand.get(key);
+            if (known != null) return known;
+            if (System.currentTimeMillis() > deadline) {
+                unweighted++;
+                return weighted == 0 ? 1.0 : totalLikelihood / weighted;
+            }
+            double retValue = 1.0;
+            for (int i = 0; i < actions.size(); i++)
+                retValue *= MODEL_NOISE + (1.0 - MODEL_NOISE) * probabilityOfAction(i, hand);
+            byHand.put(key, retValue);
+            totalLikelihood += retValue;
+            weighted++;
+            return retValue;
+        }
+
+        private double probabilityOfAction(int index, int[] hand) {
+            GameState determinised = states.get(index);
+            if (!AllPlayerDeterminiser.bindGivenCards(rootID, determinised, hand))
+                return 1.0;     // we cannot say anything about this hand
+            HistoryEntry observed = actions.get(index);
+            int observedAction = ActionCodec.encode(observed.action);
+            int[] toRun = models.get(index);
+            double[] weights = modelWeights.get(index);
+            double total = 0.0, matched = 0.0;
+            for (int m = 0; m < toRun.length; m++) {
+                total += weights[m];
+                if (STOCHASTIC_MODELS.contains(GameRunnerWithRandomAgents.agentDescriptors[toRun[m]]))
+                    matched += weights[m] * chanceOfRandomChoice(observed.playerID, observedAction, determinised);
+                else if (modelChooses(toRun[m], observed.playerID, observedAction, determinised))
+                    matched += weights[m];
+            }
+            Deck deck = determinised.getDeck();
+            Hand rootHand = determinised.getHand(rootID);
+            for (int slot = 0; slot < rootHand.getSize(); slot++) {
+                if (rootHand.getCard(slot) != null) {
+                    deck.add(rootHand.getCard(slot));
+                    rootHand.bindCard(slot, null);
+                }
+            }
+            return total > 0.0 ? matched / total : 1.0;
+        }
+
+        private double chanceOfRandomChoice(int actorID, int observedAction, GameState determinised) {
+            Collection<Action> legalActions = Utils.generateActions(actorID, determinised);
+            for (Action action : legalActions) {
+                if (ActionCodec.encode(action) == observedAction)
+                    return 1.0 / legalActions.size();
+            }
+            return 0.0;
+        }
+
+        private boolean modelChooses(int model, int actorID, int observedAction, GameState determinised) {
+            // the actor cannot see their own hand, so it goes into the deck while they decide (as in select())
+            Deck deck = determinised.getDeck();
+            Hand actorHand = determinised.getHand(actorID);
+            Card[] hand = new Card[actorHand.getSize()];
+            for (int slot = 0; slot < hand.length; slot++) {
+                hand[slot] = actorHand.getCard(slot);
+                if (hand[slot] != null) {
+                    deck.add(hand[slot]);
+                    actorHand.bindCard(slot, null);
+                }
+            }
+            try {
+                Action chosen = opponentModelFullList.get(model).doMove(actorID, determinised);
+                return chosen != null && ActionCodec.encode(chosen) == observedAction;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                // as in select(), a model that fails simply does not explain the action
+                return false;
+            } finally {
+                for (int slot = 0; slot < hand.length; slot++) {
+                    if (hand[slot] != null) {
+                        actorHand.bindCard(slot, hand[slot]);
+                        deck.remove(hand[slot]);
+                    }
+                }
+            }
+        }
+
+        public void reportStatistics() {
+            StatsCollator.addStatistics("LIKELIHOOD_HANDS_WEIGHTED", (double) weighted);
+            StatsCollator.addStatistics("LIKELIHOOD_HANDS_UNWEIGHTED", (double) unweighted);
+        }
+    }
+
     public List<Map<Integer, Double>> getCurrentOpponentBeliefs() {
         List<Map<Integer, Double>> retValue = new ArrayList<>();
         if (pdf != null)
@@ -405,35 +598,19 @@ public class MCTSOppModelRollout extends MCTSRuleInfoSet {
     }
 
     protected double[] featureData(GameEvent event, GameState state, int playerID) {
-
-        // store this as a datapoint
-        Map<String, Double> features = GameRunnerWithRandomAgents.stateGathererBase.extractFeatures(state, playerID);
-        Map<String, Double> featuresConv = GameRunnerWithRandomAgents.stateGathererConv.extractFeatures(state, playerID);
-        List<Rule> rulesTriggeredBase = GameRunnerWithRandomAgents.getRulesThatTriggered(GameRunnerWithRandomAgents.rulesToTrackBase, getActionFromEvent(event), state, playerID);
-        List<Rule> rulesTriggeredConv = GameRunnerWithRandomAgents.getRulesThatTriggered(GameRunnerWithRandomAgents.rulesToTrackConv, getActionFromEvent(event), state, playerID);
-
-        for (Rule r : GameRunnerWithRandomAgents.rulesToTrackBase) {
-            features.put(r.getClass().getSimpleName(), rulesTriggeredBase.contains(r) ? 1.00 : 0.00);
-        }
-        for (Rule r : GameRunnerWithRandomAgents.rulesToTrackConv) {
-            featuresConv.put(r.getClass().getSimpleName(), rulesTriggeredConv.contains(r) ? 1.00 : 0.00);
-        }
-        if (event instanceof CardPlayed) features.put("PLAY_CARD", 1.00);
-        if (event instanceof CardDiscarded) features.put("DISCARD_CARD", 1.00);
-
-        List<Double> features1 = GameRunnerWithRandomAgents.allFeatures.stream()
-                .map(k -> features.getOrDefault(k, 0.00))
-                .collect(Collectors.toList());
-        List<Double> featuresConv1 = GameRunnerWithRandomAgents.allFeatures.stream()
-                .map(k -> featuresConv.getOrDefault(k, 0.00))
-                .collect(Collectors.toList());
-        List<Double> finalFeatures = new ArrayList<>();
-        finalFeatures.addAll(features1);
-        finalFeatures.addAll(featuresConv1);
-        double[] retValue = new double[finalFeatures.size()];
-        for (int i = 0; i < finalFeatures.size(); i++) {
-            retValue[i] = finalFeatures.get(i);
-        }
+        // the base features, followed by the features using conventions, each laid out as GameRunnerWithRandomAgents.allFeatures
+        // (which starts with the StateGatherer features)
+        int width = GameRunnerWithRandomAgents.allFeatures.size();
+        double[] retValue = new double[width * 2];
+        GameRunnerWithRandomAgents.stateGathererBase.extractFeatures(state, playerID, retValue, 0);
+        GameRunnerWithRandomAgents.stateGathererConv.extractFeatures(state, playerID, retValue, width);
+        Action action = getActionFromEvent(event);
+        GameRunnerWithRandomAgents.addRuleFeatures(retValue, 0,
+                new RuleTriggerMatrix(GameRunnerWithRandomAgents.rulesToTrackBase, playerID, state), action);
+        GameRunnerWithRandomAgents.addRuleFeatures(retValue, width,
+                new RuleTriggerMatrix(GameRunnerWithRandomAgents.rulesToTrackConv, playerID, state), action);
+        if (event instanceof CardPlayed) retValue[StateGatherer.PLAY_CARD] = 1.00;
+        if (event instanceof CardDiscarded) retValue[StateGatherer.DISCARD_CARD] = 1.00;
         return retValue;
     }
 
@@ -26,6 +26,12 @@ public class MCTSRule extends MCTS {
 
     }
 
+    @AgentConstructor("hs-ISRulepar")
+    public MCTSRule(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, String rules, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, rules, conventions, rollout);
+        this.threads = threads;
+    }
+
     @Override
     public String toString() {
         return String.format("MCTSRule(%s)", rolloutPolicy == null ? "NONE" : rolloutPolicy.toString());
@@ -24,6 +24,13 @@ public class MCTSRuleInfoSet extends MCTSInfoSet {
             expansionPolicy = new RuleFullExpansion(logger, random, allRules, (EvalFnAgent) rollout);
         else
             expansionPolicy = new RuleExpansionPolicy(logger, random, allRules);
+        reuseTree = true;
+    }
+
+    @AgentConstructor("hs-RISRulepar")
+    public MCTSRuleInfoSet(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, String ruleMnemonics, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, ruleMnemonics, conventions, rollout);
+        this.threads = threads;
     }
 
     @Override
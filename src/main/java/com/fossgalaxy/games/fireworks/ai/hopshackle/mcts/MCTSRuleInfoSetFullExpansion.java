@@ -1,6 +1,7 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 
 import com.fossgalaxy.games.fireworks.ai.Agent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.BatchedEvaluator;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion.RuleFullExpansion;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.EvalFnAgent;
 import com.fossgalaxy.games.fireworks.annotations.AgentConstructor;
@@ -10,16 +11,61 @@ import java.util.Optional;
 
 public class MCTSRuleInfoSetFullExpansion extends MCTSRuleInfoSet {
 
+    private final EvalFnAgent valueAgent;
+    private BatchedEvaluator evaluator;
+
     @AgentConstructor("hs-RISRuleFE")
     public MCTSRuleInfoSetFullExpansion(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, String rules, String conventions, Agent agent) {
         super(explorationC, rolloutDepth, treeDepthMul, timeLimit, rules, conventions, agent);
-        expansionPolicy = new RuleFullExpansion(logger, random, allRules, (EvalFnAgent) agent);
+        valueAgent = (EvalFnAgent) agent;
+        expansionPolicy = new RuleFullExpansion(logger, random, allRules, valueAgent);
+    }
+
+    @AgentConstructor("hs-RISRuleFEpar")
+    public MCTSRuleInfoSetFullExpansion(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, String rules, String conventions, Agent agent) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, rules, conventions, agent);
+        this.threads = threads;
+    }
+
+    /*
+    With more than one search thread, all of them search the same tree, and the expansions from all of them are valued
+    through a BatchedEvaluator, so that the network is run once on all the actions waiting to be valued, rather than
+    once per expansion on each thread. The evaluator is kept for the whole game.
+     */
+    @Override
+    protected void executeSearch(int agentID, MCTSNode root, GameState state, int movesLeft) {
+        if (threads <= 1 || valueAgent.getBrain() == null) {
+            super.executeSearch(agentID, root, state, movesLeft);
+            return;
+        }
+        if (evaluator == null) {
+            evaluator = new BatchedEvaluator(valueAgent.getBrain(), getWorkerPool());
+            valueAgent.setEvaluator(evaluator);
+        }
+        evaluator.start();
+        try {
+            super.executeSearch(agentID, root, state, movesLeft);
+        } finally {
+            evaluator.stop();
+        }
+    }
+
+    @Override
+    protected boolean searchTreeParallel() {
+        return true;
+    }
+
+    @Override
+    public void receiveID(int agentID, String[] names) {
+        super.receiveID(agentID, names);
+        evaluator = null;
+        valueAgent.setEvaluator(null);
     }
 
     @Override
     protected double rollout(GameState state, MCTSNode current, int movesLeft) {
         if (state.isGameOver() || movesLeft <= 0) return state.getScore();
-        return current.score / current.visits;
+        return current.getMeanScore();
     }
 
     @Override
@@ -10,4 +10,10 @@ public class MRIS_MCTS extends MCTSInfoSet {
         super(explorationC, rolloutDepth, treeDepthMul, timeLimit, conventions, rollout);
         MRIS = true;
     }
+
+    @AgentConstructor("hs-MRISpar")
+    public MRIS_MCTS(double explorationC, int rolloutDepth, int treeDepthMul, int timeLimit, int threads, String conventions, Agent rollout) {
+        this(explorationC, rolloutDepth, treeDepthMul, timeLimit, conventions, rollout);
+        this.threads = threads;
+    }
 }
@@ -2,6 +2,7 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
 
 import com.fossgalaxy.games.fireworks.ai.*;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.HopshackleNN;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.ModelRegistry;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.EvalFnAgent;
 import com.fossgalaxy.games.fireworks.state.*;
 import com.fossgalaxy.games.fireworks.state.actions.*;
@@ -19,8 +20,7 @@ public class MonteCarloNN implements Agent {
         if (!initialised) {
             try {
                 for (int players = 2; players <= 5; players++) {
-                    ClassLoader classLoader = getClass().getClassLoader();
-                    HopshackleNN brain = HopshackleNN.createFromStream(classLoader.getResourceAsStream("Players_" + players + ".params"));
+                    HopshackleNN brain = ModelRegistry.get("RESPlayers_" + players + ".params");
                     valueAgent[players - 1] = new EvalFnAgent(brain, 0.0);
                     actualBrains[players - 1] = new MCTSRuleInfoSetFullExpansion(0.03, 100, 3, 30,
                             rulesToUse, conventionsToUse, valueAgent[players - 1]);
@@ -8,7 +8,7 @@ import com.fossgalaxy.games.fireworks.state.actions.*;
 
 import java.util.*;
 
-public class RandomEqual implements Agent {
+public class RandomEqual implements Agent, HasWorkerCopy {
 
     private Random rand = new Random(4);
 
@@ -32,4 +32,14 @@ public class RandomEqual implements Agent {
         List<Action> listAction = new ArrayList<>(legalActions);
         return listAction.get(rand.nextInt(listAction.size()));
     }
+
+    /*
+    Not seeded as we are, so that the search threads do not all roll out the same moves
+     */
+    @Override
+    public Agent copyForWorker() {
+        RandomEqual copy = new RandomEqual(0);
+        copy.rand = new Random();
+        return copy;
+    }
 }
@@ -11,7 +11,7 @@ import com.fossgalaxy.games.fireworks.state.actions.*;
 import java.util.*;
 import java.util.stream.Collectors;
 
-public class RandomRule implements Agent {
+public class RandomRule implements Agent, HasWorkerCopy, Cloneable {
 
     protected List<Rule> allRules;
     private Random rand = new Random(4);
@@ -41,5 +41,18 @@ public class RandomRule implements Agent {
 
         return legalActions.get(rand.nextInt(legalActions.size()));
     }
-}
 
+    /*
+    The copy shares the rules, which keep no state between calls, but not our seeded Random
+     */
+    @Override
+    public Agent copyForWorker() {
+        try {
+            RandomRule copy = (RandomRule) clone();
+            copy.rand = new Random();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError("RandomRule should be Cloneable", e);
+        }
+    }
+}
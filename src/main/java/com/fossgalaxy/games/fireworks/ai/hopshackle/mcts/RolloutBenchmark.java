@@ -0,0 +1,60 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.state.BasicState;
+import com.fossgalaxy.games.fireworks.state.GameState;
+import com.fossgalaxy.games.fireworks.state.actions.Action;
+
+import java.util.Random;
+
+/*
+Times random rollouts to the end of the game from the start of a dealt game, as MCTS.rollout() runs them: on a copy of
+the GameState with RandomEqual choosing each move, and on a SimulationState built from that GameState.
+Usage: RolloutBenchmark [seconds per measurement]
+ */
+public class RolloutBenchmark {
+
+    private static final int[] HAND_SIZE = {-1, -1, 5, 5, 4, 4};
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.valueOf(args[0]) : 2.0;
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            GameState start = new BasicState(HAND_SIZE[players], players);
+            start.init(47L);
+            // warm up, so that we time the compiled code
+            gameStateRollouts(start, seconds / 4);
+            simulationRollouts(start, seconds / 4);
+            double gameStateRate = gameStateRollouts(start, seconds);
+            double simulationRate = simulationRollouts(start, seconds);
+            System.out.println(String.format("%d players\tGameState %8.0f rollouts/s\tSimulationState %8.0f rollouts/s\t(x%.1f)",
+                    players, gameStateRate, simulationRate, simulationRate / gameStateRate));
+        }
+    }
+
+    private static double gameStateRollouts(GameState start, double seconds) {
+        RandomEqual policy = new RandomEqual(0);
+        long finish = System.nanoTime() + (long) (seconds * 1e9);
+        int rollouts = 0;
+        while (System.nanoTime() < finish) {
+            GameState state = start.getCopy();
+            int playerID = 0;
+            while (!state.isGameOver()) {
+                Action action = policy.doMove(playerID, state);
+                action.apply(playerID, state);
+                playerID = (playerID + 1) % state.getPlayerCount();
+            }
+            rollouts++;
+        }
+        return rollouts / seconds;
+    }
+
+    private static double simulationRollouts(GameState start, double seconds) {
+        Random rnd = new Random(47);
+        long finish = System.nanoTime() + (long) (seconds * 1e9);
+        int rollouts = 0;
+        while (System.nanoTime() < finish) {
+            new SimulationState(start).randomRollout(0, Integer.MAX_VALUE, rnd);
+            rollouts++;
+        }
+        return rollouts / seconds;
+    }
+}
@@ -0,0 +1,144 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.RuleTriggerMatrix;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
+import com.fossgalaxy.games.fireworks.ai.rule.Rule;
+import com.fossgalaxy.games.fireworks.state.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Remembers the RuleTriggerMatrix (the Action that each of a list of rules gave) for a decision, so that we do not
+have to execute all of them again each time the same node is visited with the same information.
+The key is everything the rules can look at from the acting player's point of view: the cards in other players'
+hands, what every player knows about their own cards, the cards left in the deck and in the discard pile, the
+table, tokens, and a hash of the history. So different determinisations of the acting player's own hand that leave
+the same cards in the deck share an entry.
+Each thread has its own LRU map of up to capacity entries; hits and misses are counted across all threads, and
+reported to StatsCollator as RULE_CACHE_HIT_RATE by reportStatistics().
+ */
+public class RuleOutputCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final List<Rule> rules;
+    private final ThreadLocal<Map<DecisionKey, RuleTriggerMatrix>> cache;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public RuleOutputCache(List<Rule> rules) {
+        this(rules, DEFAULT_CAPACITY);
+    }
+
+    public RuleOutputCache(List<Rule> rules, int capacity) {
+        this.rules = rules;
+        cache = ThreadLocal.withInitial(() -> new LinkedHashMap<DecisionKey, RuleTriggerMatrix>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DecisionKey, RuleTriggerMatrix> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public RuleTriggerMatrix getTriggers(int agentID, GameState state) {
+        DecisionKey key = new DecisionKey(agentID, state);
+        Map<DecisionKey, RuleTriggerMatrix> map = cache.get();
+        RuleTriggerMatrix retValue = map.get(key);
+        if (retValue != null) {
+            hits.incrementAndGet();
+            return retValue;
+        }
+        misses.incrementAndGet();
+        retValue = new RuleTriggerMatrix(rules, agentID, state);
+        map.put(key, retValue);
+        return retValue;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /*
+    Reports the hit rate since the last call
+     */
+    public void reportStatistics() {
+        long h = hits.getAndSet(0);
+        long m = misses.getAndSet(0);
+        if (h + m > 0)
+            StatsCollator.addStatistics("RULE_CACHE_HIT_RATE", h / (double) (h + m));
+    }
+
+    private static final class DecisionKey {
+        private final int[] data;
+        private final long historyHash;
+        private final int hash;
+
+        DecisionKey(int agentID, GameState state) {
+            int playerCount = state.getPlayerCount();
+            int handSize = state.getHandSize();
+            CardColour[] colours = CardColour.values();
+            data = new int[9 + playerCount * handSize * 2 + SimulationState.CARD_TYPES * 2 + colours.length];
+            int i = 0;
+            data[i++] = agentID;
+            data[i++] = playerCount;
+            data[i++] = state.getInfomation();
+            data[i++] = state.getStartingInfomation();
+            data[i++] = state.getLives();
+            data[i++] = state.getDeck().getCardsLeft();
+            data[i++] = state.getMovesLeft();
+            List<HistoryEntry> history = state.getActionHistory();
+            // the length and last entry (held exactly) confirm that a match on the history hash is not a collision
+            data[i++] = history.size();
+            data[i++] = history.isEmpty() ? -1 : ConventionUtils.entryCode(history.get(history.size() - 1));
+            for (int p = 0; p < playerCount; p++) {
+                Hand hand = state.getHand(p);
+                for (int slot = 0; slot < handSize; slot++) {
+                    int knowledge = hand.hasCard(slot) ? 1 << 10 : 0;
+                    for (CardColour c : hand.getPossibleColours(slot))
+                        knowledge |= 1 << c.ordinal();
+                    for (int v : hand.getPossibleValues(slot))
+                        knowledge |= 1 << (4 + v);
+                    CardColour knownColour = hand.getKnownColour(slot);
+                    Integer knownValue = hand.getKnownValue(slot);
+                    knowledge |= (knownColour == null ? 0 : knownColour.ordinal() + 1) << 11;
+                    knowledge |= (knownValue == null ? 0 : knownValue) << 14;
+                    data[i++] = knowledge;
+                    // the acting player's own cards are not visible to them, so are left out
+                    Card card = p == agentID ? null : hand.getCard(slot);
+                    data[i++] = card == null ? -1 : SimulationState.code(card);
+                }
+            }
+            for (Card c : state.getDeck().toList())
+                data[i + SimulationState.code(c)]++;
+            i += SimulationState.CARD_TYPES;
+            for (Card c : state.getDiscards())
+                data[i + SimulationState.code(c)]++;
+            i += SimulationState.CARD_TYPES;
+            for (CardColour c : colours)
+                data[i++] = state.getTableValue(c);
+            historyHash = ConventionUtils.historyHash(state);
+            hash = 31 * Arrays.hashCode(data) + Long.hashCode(historyHash);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DecisionKey)) return false;
+            DecisionKey key = (DecisionKey) other;
+            return hash == key.hash && historyHash == key.historyHash && Arrays.equals(data, key.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
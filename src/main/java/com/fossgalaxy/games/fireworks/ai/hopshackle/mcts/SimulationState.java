@@ -0,0 +1,337 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.state.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+A cut-down copy of a GameState, using only primitive arrays, that is used to run rollouts quickly.
+Cards are coded as colour.ordinal() * 5 + value - 1. The deck is held as a count of each card, and draws are made from
+it at random (so we assume the deck order is not known, as is the case for any determinisation).
+Knowledge is held for each slot as a bitmask of possible colours (bits 0-4) and possible values (bits 5-9).
+Actions are ActionCodec ids. There is no history, and no events - GameState remains the type used everywhere else.
+Once mark() has been called every change is also written to a journal, so that undoTo() can put the state back as it
+was at the mark. This lets a search apply the moves of a whole iteration (tree and rollout) to one SimulationState, and
+then undo them, instead of copying the root state each time.
+ */
+public class SimulationState {
+
+    public static final int CARD_TYPES = ActionCodec.COLOURS * ActionCodec.MAX_VALUE;
+    private static final int MAX_SCORE = CARD_TYPES;
+    private static final int ALL_COLOURS = (1 << ActionCodec.COLOURS) - 1;
+    private static final int ALL_VALUES = ((1 << ActionCodec.MAX_VALUE) - 1) << ActionCodec.COLOURS;
+    private static final CardColour[] colours = CardColour.values();
+
+    // journal locations are the index into one of these, plus the base of the field it is in
+    private static final int HAND = 0, KNOWLEDGE = 64, DECK = 128, TABLE = 192, DISCARDS = 256, SCALAR = 320;
+    private static final int CARDS_IN_DECK = 0, INFORMATION = 1, LIVES = 2, MOVES_LEFT = 3, SCORE = 4;
+
+    private final int playerCount, handSize;
+    private final int[] deck = new int[CARD_TYPES];
+    private int cardsInDeck;
+    private final byte[] hands;
+    private final short[] knowledge;
+    private final int[] table = new int[ActionCodec.COLOURS];
+    private final int[] discards = new int[CARD_TYPES];
+    private int information, lives, movesLeft, score;
+    private final int startingInformation;
+    // pairs of (location, old value), oldest first
+    private int[] journal;
+    private int journalSize;
+
+    public SimulationState(GameState state) {
+        playerCount = state.getPlayerCount();
+        handSize = state.getHandSize();
+        hands = new byte[playerCount * handSize];
+        knowledge = new short[playerCount * handSize];
+        for (int p = 0; p < playerCount; p++) {
+            Hand hand = state.getHand(p);
+            for (int slot = 0; slot < handSize; slot++) {
+                int index = p * handSize + slot;
+                if (hand.hasCard(slot)) {
+                    hands[index] = (byte) code(hand.getCard(slot));
+                    int known = 0;
+                    for (CardColour c : hand.getPossibleColours(slot))
+                        known |= 1 << c.ordinal();
+                    for (int v : hand.getPossibleValues(slot))
+                        known |= 1 << (ActionCodec.COLOURS + v - 1);
+                    knowledge[index] = (short) known;
+                } else {
+                    hands[index] = -1;
+                }
+            }
+        }
+        for (Card c : state.getDeck().toList()) {
+            deck[code(c)]++;
+            cardsInDeck++;
+        }
+        for (Card c : state.getDiscards())
+            discards[code(c)]++;
+        for (CardColour c : colours) {
+            table[c.ordinal()] = state.getTableValue(c);
+            score += table[c.ordinal()];
+        }
+        information = state.getInfomation();
+        startingInformation = state.getStartingInfomation();
+        lives = state.getLives();
+        movesLeft = state.getMovesLeft();
+    }
+
+    /*
+    A new game, dealt at random from a full deck; used to measure and test the simulation on its own
+     */
+    SimulationState(int playerCount, Random rnd) {
+        this.playerCount = playerCount;
+        handSize = playerCount < 4 ? 5 : 4;
+        hands = new byte[playerCount * handSize];
+        knowledge = new short[playerCount * handSize];
+        int[] copiesOfValue = {3, 2, 2, 2, 1};
+        for (int card = 0; card < CARD_TYPES; card++) {
+            deck[card] = copiesOfValue[card % ActionCodec.MAX_VALUE];
+            cardsInDeck += deck[card];
+        }
+        information = startingInformation = 8;
+        lives = 3;
+        movesLeft = playerCount + 1;
+        for (int index = 0; index < hands.length; index++)
+            draw(index, rnd);
+    }
+
+    public static int code(Card card) {
+        return card.colour.ordinal() * ActionCodec.MAX_VALUE + card.value - 1;
+    }
+
+    public boolean isGameOver() {
+        return lives <= 0 || movesLeft <= 0 || score == MAX_SCORE;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getCardsInDeck() {
+        return cardsInDeck;
+    }
+
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    public int getInformation() {
+        return information;
+    }
+
+    public int getLives() {
+        return lives;
+    }
+
+    /*
+    Starts (or continues) journalling changes, and returns the point to pass to undoTo() to get back to this state
+     */
+    public int mark() {
+        if (journal == null) journal = new int[256];
+        return journalSize;
+    }
+
+    /*
+    Reverses every change made since mark() returned markPoint
+     */
+    public void undoTo(int markPoint) {
+        while (journalSize > markPoint) {
+            int oldValue = journal[--journalSize];
+            int location = journal[--journalSize];
+            int index = location & 63;
+            switch (location & ~63) {
+                case HAND:
+                    hands[index] = (byte) oldValue;
+                    break;
+                case KNOWLEDGE:
+                    knowledge[index] = (short) oldValue;
+                    break;
+                case DECK:
+                    deck[index] = oldValue;
+                    break;
+                case TABLE:
+                    table[index] = oldValue;
+                    break;
+                case DISCARDS:
+                    discards[index] = oldValue;
+                    break;
+                default:
+                    if (index == CARDS_IN_DECK) cardsInDeck = oldValue;
+                    else if (index == INFORMATION) information = oldValue;
+                    else if (index == LIVES) lives = oldValue;
+                    else if (index == MOVES_LEFT) movesLeft = oldValue;
+                    else score = oldValue;
+            }
+        }
+    }
+
+    private void log(int location, int oldValue) {
+        if (journal == null) return;
+        if (journalSize + 2 > journal.length)
+            journal = Arrays.copyOf(journal, journal.length * 2);
+        journal[journalSize++] = location;
+        journal[journalSize++] = oldValue;
+    }
+
+    /*
+    Puts playerID's current cards back in the deck, and gives them cards instead (indexed by slot, as codes).
+    Used to switch to a new determinisation of a hand that we cannot see. Knowledge is unchanged, so cards should be
+    consistent with it.
+     */
+    public void bindHand(int playerID, int[] cards) {
+        int base = playerID * handSize;
+        for (int slot = 0; slot < handSize; slot++) {
+            int card = hands[base + slot];
+            if (card < 0) continue;
+            log(DECK + card, deck[card]);
+            deck[card]++;
+        }
+        for (int slot = 0; slot < handSize; slot++) {
+            int index = base + slot;
+            if (hands[index] < 0) continue;
+            int card = cards[slot];
+            if (deck[card] == 0)
+                throw new AssertionError("Card " + card + " is not available to bind to slot " + slot);
+            log(DECK + card, deck[card]);
+            deck[card]--;
+            log(HAND + index, hands[index]);
+            hands[index] = (byte) card;
+        }
+    }
+
+    /*
+    The same set of actions that Utils.generateActions() would give (and hence RandomEqual would choose between)
+     */
+    public long legalActions(int playerID) {
+        long retValue = 0L;
+        int base = playerID * handSize;
+        for (int slot = 0; slot < handSize; slot++) {
+            if (hands[base + slot] < 0) continue;
+            retValue |= 1L << (ActionCodec.PLAY + slot);
+            if (information < startingInformation)
+                retValue |= 1L << (ActionCodec.DISCARD + slot);
+        }
+        if (information > 0) {
+            for (int p = 0; p < playerCount; p++) {
+                if (p == playerID) continue;
+                for (int slot = 0; slot < handSize; slot++) {
+                    int card = hands[p * handSize + slot];
+                    if (card < 0) continue;
+                    retValue |= 1L << (ActionCodec.TELL_COLOUR + p * ActionCodec.COLOURS + card / ActionCodec.MAX_VALUE);
+                    retValue |= 1L << (ActionCodec.TELL_VALUE + p * ActionCodec.MAX_VALUE + card % ActionCodec.MAX_VALUE);
+                }
+            }
+        }
+        return retValue;
+    }
+
+    public void apply(int playerID, int actionId, Random rnd) {
+        if (actionId < ActionCodec.DISCARD) {
+            int index = playerID * handSize + actionId - ActionCodec.PLAY;
+            int card = hands[index];
+            int colour = card / ActionCodec.MAX_VALUE;
+            int value = card % ActionCodec.MAX_VALUE + 1;
+            if (table[colour] + 1 == value) {
+                log(TABLE + colour, table[colour]);
+                table[colour] = value;
+                log(SCALAR + SCORE, score);
+                score++;
+                if (value == ActionCodec.MAX_VALUE && information < startingInformation) {
+                    log(SCALAR + INFORMATION, information);
+                    information++;
+                }
+            } else {
+                log(SCALAR + LIVES, lives);
+                lives--;
+                log(DISCARDS + card, discards[card]);
+                discards[card]++;
+            }
+            draw(index, rnd);
+        } else if (actionId < ActionCodec.TELL_COLOUR) {
+            int index = playerID * handSize + actionId - ActionCodec.DISCARD;
+            int card = hands[index];
+            log(DISCARDS + card, discards[card]);
+            discards[card]++;
+            log(SCALAR + INFORMATION, information);
+            information++;
+            draw(index, rnd);
+        } else if (actionId < ActionCodec.TELL_VALUE) {
+            int player = (actionId - ActionCodec.TELL_COLOUR) / ActionCodec.COLOURS;
+            int colour = (actionId - ActionCodec.TELL_COLOUR) % ActionCodec.COLOURS;
+            for (int index = player * handSize; index < (player + 1) * handSize; index++) {
+                if (hands[index] < 0) continue;
+                log(KNOWLEDGE + index, knowledge[index]);
+                if (hands[index] / ActionCodec.MAX_VALUE == colour)
+                    knowledge[index] = (short) ((knowledge[index] & ALL_VALUES) | (1 << colour));
+                else
+                    knowledge[index] &= ~(1 << colour);
+            }
+            log(SCALAR + INFORMATION, information);
+            information--;
+        } else {
+            int player = (actionId - ActionCodec.TELL_VALUE) / ActionCodec.MAX_VALUE;
+            int value = (actionId - ActionCodec.TELL_VALUE) % ActionCodec.MAX_VALUE;
+            int valueBit = 1 << (ActionCodec.COLOURS + value);
+            for (int index = player * handSize; index < (player + 1) * handSize; index++) {
+                if (hands[index] < 0) continue;
+                log(KNOWLEDGE + index, knowledge[index]);
+                if (hands[index] % ActionCodec.MAX_VALUE == value)
+                    knowledge[index] = (short) ((knowledge[index] & ALL_COLOURS) | valueBit);
+                else
+                    knowledge[index] &= ~valueBit;
+            }
+            log(SCALAR + INFORMATION, information);
+            information--;
+        }
+        // as GameState.tick(), once the deck is empty each move counts down to the end of the game
+        if (cardsInDeck == 0) {
+            log(SCALAR + MOVES_LEFT, movesLeft);
+            movesLeft--;
+        }
+    }
+
+    private void draw(int index, Random rnd) {
+        log(HAND + index, hands[index]);
+        if (cardsInDeck == 0) {
+            hands[index] = -1;
+            return;
+        }
+        int roll = rnd.nextInt(cardsInDeck);
+        int card = 0;
+        while (roll >= deck[card]) {
+            roll -= deck[card];
+            card++;
+        }
+        log(DECK + card, deck[card]);
+        deck[card]--;
+        log(SCALAR + CARDS_IN_DECK, cardsInDeck);
+        cardsInDeck--;
+        hands[index] = (byte) card;
+        log(KNOWLEDGE + index, knowledge[index]);
+        knowledge[index] = (short) (ALL_COLOURS | ALL_VALUES);
+    }
+
+    /*
+    Plays random legal moves (each equally likely, as RandomEqual) from playerID onwards.
+    Returns the number of moves made.
+     */
+    public int randomRollout(int playerID, int maxMoves, Random rnd) {
+        int moves = 0;
+        int player = playerID;
+        while (!isGameOver() && moves < maxMoves) {
+            long actions = legalActions(player);
+            if (actions == 0L)
+                break;
+            int choice = rnd.nextInt(Long.bitCount(actions));
+            for (int i = 0; i < choice; i++)
+                actions &= actions - 1;
+            apply(player, Long.numberOfTrailingZeros(actions), rnd);
+            player = (player + 1) % playerCount;
+            moves++;
+        }
+        return moves;
+    }
+}
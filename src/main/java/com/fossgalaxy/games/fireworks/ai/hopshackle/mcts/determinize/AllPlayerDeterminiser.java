@@ -1,5 +1,6 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize;
 
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.HandBeliefTracker;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
 import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
@@ -11,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.*;
 
 public class AllPlayerDeterminiser {
@@ -91,6 +93,10 @@ public class AllPlayerDeterminiser {
     Cards in previous hand have already been added back into deck before this method is called
      */
     public static void bindNewCards(int agentID, GameState state, Conventions conv) {
+        bindNewCards(agentID, state, conv, null);
+    }
+
+    public static void bindNewCards(int agentID, GameState state, Conventions conv, HandBeliefTracker beliefs) {
         Hand myHand = state.getHand(agentID);
         Deck deck = state.getDeck();
         List<Card> toChooseFrom = state.getDeck().toList();
@@ -98,44 +104,55 @@ public class AllPlayerDeterminiser {
         if (toChooseFrom.isEmpty()) {
             throw new AssertionError("no cards ");
         } else {
-            Map<Integer, List<Card>> possibleCardsFinal = ConventionUtils.bindBlindCardWithConventions(agentID, state.getHand(agentID), toChooseFrom, state, conv);
+            Map<Integer, List<Card>> possibleCardsFinal = beliefs != null && beliefs.isSynchronisedWith(state)
+                    ? beliefs.possibleCards(agentID, myHand.getSize(), toChooseFrom, conv)
+                    : ConventionUtils.bindBlindCardWithConventions(agentID, state.getHand(agentID), toChooseFrom, state, conv);
             for (int i : possibleCardsFinal.keySet()) {
                 if (myHand.hasCard(i) && possibleCardsFinal.get(i).isEmpty())
                     throw new AssertionError("Should have possible card in slot " + i);
             }
-            List<Integer> bindOrder = DeckUtils.bindOrder(possibleCardsFinal);
-            bindOrder = bindOrder.stream().filter(slot -> !possibleCardsFinal.get(slot).isEmpty()).collect(Collectors.toList());
-            Map<Integer, List<Card>> possibleCards = possibleCardsFinal;
-            int attempts = 0;
-            boolean success = false;
-            do {
-                try {
-                    Map<Integer, Card> myHandCards = DeckUtils.bindCards(bindOrder, possibleCards);
-                    for (int slot = 0; slot < myHand.getSize(); slot++) {
-                        Card hand = myHandCards.getOrDefault(slot, null);
-                        myHand.bindCard(slot, hand);
-                        deck.remove(hand);
-                    }
-                    success = true;
-                } catch (IllegalArgumentException e) {
-                    // this may occur if  we do have a cards for the slot, these have all gone by the time we get to bind it.
-                    // to address this
-                    attempts++;
-                    if (attempts > 5 && attempts < 9) {
-                        // we give up
-                        logger.info("Failed to bind cards in HandDeterminiser using Conventions - trying without");
-                        Map<Integer, List<Card>> possibleCardsFinal2 = DeckUtils.bindBlindCard(agentID, state.getHand(agentID), toChooseFrom);
-                        bindOrder = DeckUtils.bindOrder(possibleCardsFinal2);
-                        bindOrder = bindOrder.stream().filter(slot -> !possibleCardsFinal2.get(slot).isEmpty()).collect(Collectors.toList());
-                        possibleCards = possibleCardsFinal2;
-                    } else if (attempts > 8) {
-                        // OK. We're really stuck
-                        logger.info("That didn't work either");
-                        throw e;
-                    }
+            HandSampler sampler = new HandSampler(possibleCardsFinal, toChooseFrom);
+            if (!sampler.isFeasible()) {
+                // the conventions have ruled out every consistent hand, so we fall back to the grounded information
+                logger.info("Failed to bind cards in HandDeterminiser using Conventions - trying without");
+                sampler = new HandSampler(DeckUtils.bindBlindCard(agentID, myHand, toChooseFrom), toChooseFrom);
+                if (!sampler.isFeasible())
+                    throw new AssertionError("No consistent set of cards for player " + agentID);
+            }
+            Map<Integer, Card> myHandCards = sampler.sample(ThreadLocalRandom.current());
+            for (int slot = 0; slot < myHand.getSize(); slot++) {
+                Card hand = myHandCards.getOrDefault(slot, null);
+                myHand.bindCard(slot, hand);
+                deck.remove(hand);
+            }
+        }
+    }
+
+    /*
+    Binds the given cards (coded as in SimulationState, -1 for none) to agentID's hand, taking them from the deck.
+    If any of them is not in the deck then nothing is changed, and false is returned
+     */
+    public static boolean bindGivenCards(int agentID, GameState state, int[] cardTypes) {
+        Hand myHand = state.getHand(agentID);
+        Deck deck = state.getDeck();
+        List<Card> deckCards = deck.toList();
+        Card[] chosen = new Card[myHand.getSize()];
+        boolean[] taken = new boolean[deckCards.size()];
+        for (int slot = 0; slot < chosen.length; slot++) {
+            if (slot >= cardTypes.length || cardTypes[slot] < 0) continue;
+            for (int i = 0; i < deckCards.size() && chosen[slot] == null; i++) {
+                if (!taken[i] && SimulationState.code(deckCards.get(i)) == cardTypes[slot]) {
+                    taken[i] = true;
+                    chosen[slot] = deckCards.get(i);
                 }
-            } while (!success);
+            }
+            if (chosen[slot] == null) return false;
+        }
+        for (int slot = 0; slot < chosen.length; slot++) {
+            myHand.bindCard(slot, chosen[slot]);
+            if (chosen[slot] != null) deck.remove(chosen[slot]);
         }
+        return true;
     }
 
     /*
@@ -151,8 +168,14 @@ public class AllPlayerDeterminiser {
     }
 
     public void applyAndCompatibilise(MCTSNode node, boolean makeConsistent) {
+        applyAndCompatibilise(node, makeConsistent, true);
+    }
+
+    public void applyAndCompatibilise(MCTSNode node, boolean makeConsistent, boolean keepReferenceState) {
         Action action = node.getAction();
-        GameState masterDeterminisation = getDeterminisationFor(root).getCopy();
+        // the consistency check only needs the card played or discarded from the master determinisation,
+        // so we note that rather than copying the whole state before we apply the action
+        Card masterCard = actedOnCard(action, node.getAgentId(), determinisationsByPlayer[root]);
         // firstly we apply the action to the master determinisation
         try {
             action.apply(node.getAgentId(), determinisationsByPlayer[root]);
@@ -160,11 +183,11 @@ public class AllPlayerDeterminiser {
             throw rv;
         }
         // then for each other determinisation we check if it is consistent
-        for (int i = 0; i < masterDeterminisation.getPlayerCount(); i++) {
+        for (int i = 0; i < determinisationsByPlayer.length; i++) {
             if (i == root) continue;
             if (!isConsistent(action, node.getAgentId(),
                     determinisationsByPlayer[i],
-                    masterDeterminisation)) {
+                    masterCard)) {
                 if (!makeConsistent)
                     throw new AssertionError("We have an inconsistent determinisation where we are not expecting one");
             }
@@ -185,22 +208,37 @@ public class AllPlayerDeterminiser {
         if (logger.isDebugEnabled())
             logger.debug("CRIS-MCTS: Selected action " + action + " for player " + node.getAgentId());
 
-        if (node.getReferenceState() == null)
-            node.setReferenceState(determinisationsByPlayer[root].getCopy());
+        if (!node.hasReference())
+            node.setReference(determinisationsByPlayer[root], keepReferenceState);
 
     }
 
+    /*
+    The card that a Play or Discard action would use (null for a Tell)
+     */
+    private static Card actedOnCard(Action action, int player, GameState state) {
+        if (action instanceof PlayCard)
+            return state.getCardAt(player, ((PlayCard) action).slot);
+        if (action instanceof DiscardCard)
+            return state.getCardAt(player, ((DiscardCard) action).slot);
+        return null;
+    }
+
     public static boolean isConsistent(Action action, int player, GameState state, GameState reference) {
+        return isConsistent(action, player, state, actedOnCard(action, player, reference));
+    }
+
+    private static boolean isConsistent(Action action, int player, GameState state, Card referenceCard) {
 
         if (action instanceof PlayCard) {
             PlayCard playCard = (PlayCard) action;
             Card played = state.getCardAt(player, playCard.slot);
-            return (played.equals(reference.getCardAt(player, playCard.slot)));
+            return (played.equals(referenceCard));
         }
         if (action instanceof DiscardCard) {
             DiscardCard discardCard = (DiscardCard) action;
             Card discarded = state.getCardAt(player, discardCard.slot);
-            return (discarded.equals(reference.getCardAt(player, discardCard.slot)));
+            return (discarded.equals(referenceCard));
         }
         if (action instanceof TellValue) {
             // We are inconsistent only if none of our cards can possible have this value
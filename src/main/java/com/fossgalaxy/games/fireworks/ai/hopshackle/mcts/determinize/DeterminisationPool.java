@@ -0,0 +1,119 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
+import com.fossgalaxy.games.fireworks.state.GameState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+Background tasks that keep a bounded queue topped up with copies of the root state, each with the root player's
+hand already determinised by a new HandDeterminiser. The root state does not change during a move, so this work can
+be done off the search thread(s), which then just take the next one from the queue.
+One pool is kept by an agent for the whole game: start() is called with the root state at the beginning of each move,
+and stop() at the end. The producer tasks run on the executor passed in, so no threads are created for each move.
+If the queue is empty when a search thread asks, it builds one itself rather than wait; the fraction of times this
+happens is reported to StatsCollator as DETERMINISATION_STARVED when the pool is stopped.
+If a producer fails, the error is logged, and thrown (wrapped in an AssertionError) by the next take().
+ */
+public class DeterminisationPool {
+
+    public static class Determinisation {
+        public final GameState state;
+        public final HandDeterminiser handDeterminiser;
+        private final int generation;
+
+        private Determinisation(GameState state, HandDeterminiser handDeterminiser, int generation) {
+            this.state = state;
+            this.handDeterminiser = handDeterminiser;
+            this.generation = generation;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DeterminisationPool.class);
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final BlockingQueue<Determinisation> queue;
+    private final List<Future<?>> producers = new ArrayList<>();
+    // incremented by each start() and stop(), so that anything made for an earlier move is thrown away
+    private volatile int generation;
+    private volatile GameState rootState;
+    private volatile Function<GameState, HandDeterminiser> determiniserFactory;
+    private volatile Throwable failure;
+    private final AtomicLong taken = new AtomicLong(), starved = new AtomicLong();
+
+    public DeterminisationPool(ExecutorService executor, int threads, int capacity) {
+        this.executor = executor;
+        this.threads = threads;
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /*
+    rootState must not be changed by anything else until stop() is called. determiniserFactory creates a
+    HandDeterminiser for a copy of the root state (and so determinises the root player's hand); it is called from
+    several threads at once
+     */
+    public synchronized void start(GameState rootState, Function<GameState, HandDeterminiser> determiniserFactory) {
+        if (!producers.isEmpty())
+            throw new AssertionError("DeterminisationPool has already been started");
+        this.rootState = rootState;
+        this.determiniserFactory = determiniserFactory;
+        failure = null;
+        taken.set(0);
+        starved.set(0);
+        int currentGeneration = ++generation;
+        for (int i = 0; i < threads; i++)
+            producers.add(executor.submit(() -> produce(currentGeneration)));
+    }
+
+    private void produce(int producerGeneration) {
+        try {
+            while (producerGeneration == generation && !Thread.currentThread().isInterrupted())
+                queue.put(create(producerGeneration));
+        } catch (InterruptedException e) {
+            // the pool has been stopped
+        } catch (RuntimeException | Error e) {
+            logger.error("Determinisation thread failed", e);
+            failure = e;
+        }
+    }
+
+    private Determinisation create(int forGeneration) {
+        GameState state = rootState.getCopy();
+        HandDeterminiser handDeterminiser = determiniserFactory.apply(state);
+        return new Determinisation(state, handDeterminiser, forGeneration);
+    }
+
+    public Determinisation take() {
+        if (failure != null)
+            throw new AssertionError("Determinisation thread failed", failure);
+        taken.incrementAndGet();
+        Determinisation retValue = queue.poll();
+        // a producer from the last move may have added one after we cleared the queue
+        while (retValue != null && retValue.generation != generation)
+            retValue = queue.poll();
+        if (retValue == null) {
+            starved.incrementAndGet();
+            retValue = create(generation);
+        }
+        return retValue;
+    }
+
+    public synchronized void stop() {
+        generation++;
+        for (Future<?> producer : producers)
+            producer.cancel(true);
+        producers.clear();
+        queue.clear();
+        rootState = null;
+        determiniserFactory = null;
+        if (taken.get() > 0)
+            StatsCollator.addStatistics("DETERMINISATION_STARVED", starved.get() / (double) taken.get());
+    }
+}
@@ -1,5 +1,6 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize;
 
+import com.fossgalaxy.games.fireworks.ai.hopshackle.belief.HandBeliefTracker;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.stats.StatsCollator;
@@ -10,11 +11,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.*;
 
 public class HandDeterminiser {
 
-    private static long totalActionCount, totalPlay, totalDiscard, universeShiftCountOnPlay, universeShiftCountOnDiscard;
+    // shared across all search threads; a LongAdder keeps a separate cell for each contending thread, so that they do
+    // not all fight over one cache line, and these are only summed when reported
+    private static final LongAdder totalActionCount = new LongAdder(), totalPlay = new LongAdder(), totalDiscard = new LongAdder(),
+            universeShiftCountOnPlay = new LongAdder(), universeShiftCountOnDiscard = new LongAdder();
+    // and these are just for this determiniser (i.e. a single iteration of a single search thread)
+    private long shiftsOnPlay, shiftsOnDiscard;
     private int slotLastUsed, otherSlotLastUsed;
     private List<List<Card>> handRecord;
     private int playerCount, rootAgent;
@@ -25,6 +32,26 @@ public class HandDeterminiser {
     private Conventions conv;
 
     public HandDeterminiser(GameState state, int rootID, boolean MRIS, Conventions conventions) {
+        this(state, rootID, MRIS, conventions, (HandBeliefTracker) null);
+    }
+
+    /*
+    If beliefs is provided (and is up to date with state), then it is used for the one-off determinisation of the root
+    player's hand, instead of working back through the history
+     */
+    public HandDeterminiser(GameState state, int rootID, boolean MRIS, Conventions conventions, HandBeliefTracker beliefs) {
+        this(state, rootID, MRIS, conventions, beliefs, null);
+    }
+
+    /*
+    rootHand gives the card for each slot of the root player (coded as in SimulationState), for example from a
+    ParticleBelief, so that we do not need to draw them
+     */
+    public HandDeterminiser(GameState state, int rootID, boolean MRIS, Conventions conventions, int[] rootHand) {
+        this(state, rootID, MRIS, conventions, null, rootHand);
+    }
+
+    private HandDeterminiser(GameState state, int rootID, boolean MRIS, Conventions conventions, HandBeliefTracker beliefs, int[] rootHand) {
         playerCount = state.getPlayerCount();
         alwaysRedeterminise = MRIS;
         rootAgent = rootID;
@@ -37,7 +64,8 @@ public class HandDeterminiser {
             if (state.getHand(rootID).getCard(i) != null) {
                 state.getDeck().add(state.getCardAt(rootID, i));
             }
-        AllPlayerDeterminiser.bindNewCards(rootID, state, conv);
+        if (rootHand == null || !AllPlayerDeterminiser.bindGivenCards(rootID, state, rootHand))
+            AllPlayerDeterminiser.bindNewCards(rootID, state, conv, beliefs);
 
         // and then store the 'master set' to save back to, and track inconsistent rollouts
         handRecord = IntStream.range(0, playerCount)
@@ -185,14 +213,14 @@ public class HandDeterminiser {
     public void recordAction(Action action, int playerID, GameState state) {
         slotLastUsed = -1;
         cardLastUsed = null;
-        totalActionCount++;
+        totalActionCount.increment();
         if (action instanceof PlayCard) {
             slotLastUsed = ((PlayCard) action).slot;
-            totalPlay++;
+            totalPlay.increment();
         }
         if (action instanceof DiscardCard) {
             slotLastUsed = ((DiscardCard) action).slot;
-            totalDiscard++;
+            totalDiscard.increment();
         }
         if (slotLastUsed != -1) {
             cardLastUsed = state.getCardAt(playerID, slotLastUsed);
@@ -200,9 +228,11 @@ public class HandDeterminiser {
                 // the card that we played or discarded was different to the one everyone else knew we had
                 // i.e. it was IS-Incompatible to them. We have shifted game universe.
                 if (action instanceof PlayCard) {
-                    universeShiftCountOnPlay++;
+                    universeShiftCountOnPlay.increment();
+                    shiftsOnPlay++;
                 } else {
-                    universeShiftCountOnDiscard++;
+                    universeShiftCountOnDiscard.increment();
+                    shiftsOnDiscard++;
                 }
             }
         }
@@ -217,31 +247,39 @@ public class HandDeterminiser {
         return slotLastUsed;
     }
 
+    public long getShiftsOnPlay() {
+        return shiftsOnPlay;
+    }
+
+    public long getShiftsOnDiscard() {
+        return shiftsOnDiscard;
+    }
+
     public static double percentageUniverseShiftOfPlay() {
-        return (double) universeShiftCountOnPlay / (double) totalPlay;
+        return (double) universeShiftCountOnPlay.sum() / (double) totalPlay.sum();
     }
 
     public static double percentageUniverseShiftOfDiscard() {
-        return (double) universeShiftCountOnDiscard / (double) totalDiscard;
+        return (double) universeShiftCountOnDiscard.sum() / (double) totalDiscard.sum();
     }
 
     public static double percentageUniverseShiftOfTotal() {
-        return (double) (universeShiftCountOnDiscard + universeShiftCountOnPlay) / (double) totalActionCount;
+        return (double) (universeShiftCountOnDiscard.sum() + universeShiftCountOnPlay.sum()) / (double) totalActionCount.sum();
     }
 
     public static void resetUniverseShift() {
-        totalActionCount = 0;
-        totalDiscard = 0;
-        totalPlay = 0;
-        universeShiftCountOnPlay = 0;
-        universeShiftCountOnDiscard = 0;
+        totalActionCount.reset();
+        totalDiscard.reset();
+        totalPlay.reset();
+        universeShiftCountOnPlay.reset();
+        universeShiftCountOnDiscard.reset();
     }
 
     public static long getUniverseShiftPlay() {
-        return universeShiftCountOnPlay;
+        return universeShiftCountOnPlay.sum();
     }
 
     public static long getUniverseShiftDiscard() {
-        return universeShiftCountOnDiscard;
+        return universeShiftCountOnDiscard.sum();
     }
 }
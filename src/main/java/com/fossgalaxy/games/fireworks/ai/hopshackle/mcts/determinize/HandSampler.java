@@ -0,0 +1,190 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.state.Card;
+
+import java.util.*;
+
+/*
+Draws a full set of cards for a hand in one pass, given the possible cards for each slot (as from
+DeckUtils.bindBlindCard, or ConventionUtils.bindBlindCardWithConventions) and the cards available to draw from.
+Everything is done on a count of each card type (coded as in SimulationState), and a bitmask of the possible types
+for each slot.
+Every way of dealing distinct cards from the deck to the slots (with each slot getting one of its possible cards) is
+equally likely, exactly as if we dealt at random and threw away any hand that broke the constraints. To do this in
+one pass, slots are filled in turn (most constrained first), with each card type weighted by the number of copies
+left times the number of ways the remaining slots can then still be dealt. That count comes from inclusion-exclusion
+over the partitions of the remaining slots, so there is no retry loop, and no exception to catch.
+ */
+public class HandSampler {
+
+    private final int[] available = new int[SimulationState.CARD_TYPES];
+    private final List<List<Card>> cardsByType = new ArrayList<>(SimulationState.CARD_TYPES);
+    private final int[] slots;
+    private final int[] slotMasks;
+    // for each step, every partition of the slots from that step on: the card types possible in all slots of each
+    // block, and the inclusion-exclusion coefficient of the partition
+    private final int[][][] blockMasks;
+    private final long[][] coefficients;
+    // working space: the number of cards remaining that could go in each block
+    private final int[][][] blockCards;
+    private final boolean feasible;
+
+    public HandSampler(Map<Integer, List<Card>> possibleCards, List<Card> deck) {
+        for (int i = 0; i < SimulationState.CARD_TYPES; i++)
+            cardsByType.add(new ArrayList<>());
+        for (Card c : deck) {
+            int type = SimulationState.code(c);
+            available[type]++;
+            cardsByType.get(type).add(c);
+        }
+
+        List<Integer> slotsToBind = new ArrayList<>();
+        for (int slot : possibleCards.keySet()) {
+            if (!possibleCards.get(slot).isEmpty())
+                slotsToBind.add(slot);
+        }
+        int[] masks = new int[slotsToBind.size()];
+        for (int i = 0; i < masks.length; i++) {
+            for (Card c : possibleCards.get(slotsToBind.get(i)))
+                masks[i] |= 1 << SimulationState.code(c);
+        }
+        // most constrained slots first
+        Integer[] order = new Integer[masks.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> Integer.bitCount(masks[i])));
+        slots = new int[masks.length];
+        slotMasks = new int[masks.length];
+        for (int i = 0; i < order.length; i++) {
+            slots[i] = slotsToBind.get(order[i]);
+            slotMasks[i] = masks[order[i]];
+        }
+
+        blockMasks = new int[slots.length + 1][][];
+        coefficients = new long[slots.length + 1][];
+        blockCards = new int[slots.length + 1][][];
+        for (int step = 0; step <= slots.length; step++) {
+            List<List<Integer>> blocks = new ArrayList<>();
+            List<int[]> partitionMasks = new ArrayList<>();
+            List<Long> partitionCoefficients = new ArrayList<>();
+            partition(step, blocks, partitionMasks, partitionCoefficients);
+            blockMasks[step] = partitionMasks.toArray(new int[0][]);
+            coefficients[step] = new long[partitionCoefficients.size()];
+            for (int i = 0; i < coefficients[step].length; i++)
+                coefficients[step][i] = partitionCoefficients.get(i);
+            blockCards[step] = new int[blockMasks[step].length][];
+            for (int i = 0; i < blockCards[step].length; i++)
+                blockCards[step][i] = new int[blockMasks[step][i].length];
+        }
+
+        feasible = completions(0, available) > 0;
+    }
+
+    /*
+    Adds every way of putting the slots from step onwards into the blocks built so far (or new ones)
+     */
+    private void partition(int step, List<List<Integer>> blocks, List<int[]> partitionMasks, List<Long> partitionCoefficients) {
+        if (step == slots.length) {
+            int[] masks = new int[blocks.size()];
+            long coefficient = 1;
+            for (int b = 0; b < masks.length; b++) {
+                masks[b] = -1;
+                for (int s : blocks.get(b))
+                    masks[b] &= slotMasks[s];
+                // (-1)^(size - 1) * (size - 1)!
+                for (int k = 1; k < blocks.get(b).size(); k++)
+                    coefficient *= -k;
+            }
+            partitionMasks.add(masks);
+            partitionCoefficients.add(coefficient);
+            return;
+        }
+        for (int b = 0; b < blocks.size(); b++) {
+            List<Integer> block = blocks.get(b);
+            block.add(step);
+            partition(step + 1, blocks, partitionMasks, partitionCoefficients);
+            block.remove(block.size() - 1);
+        }
+        List<Integer> newBlock = new ArrayList<>();
+        newBlock.add(step);
+        blocks.add(newBlock);
+        partition(step + 1, blocks, partitionMasks, partitionCoefficients);
+        blocks.remove(blocks.size() - 1);
+    }
+
+    /*
+    false if there is no way at all to give every slot one of its possible cards
+     */
+    public boolean isFeasible() {
+        return feasible;
+    }
+
+    /*
+    Returns the card for each slot that has any possible cards. The Card instances are taken from the deck passed
+    in on construction.
+     */
+    public Map<Integer, Card> sample(Random rnd) {
+        if (!feasible)
+            throw new AssertionError("No consistent set of cards exists to sample from");
+        int[] remaining = available.clone();
+        long[] weights = new long[SimulationState.CARD_TYPES];
+        Map<Integer, Card> retValue = new HashMap<>();
+        for (int step = 0; step < slots.length; step++) {
+            countBlockCards(step + 1, remaining);
+            long total = 0;
+            for (int type = 0; type < SimulationState.CARD_TYPES; type++) {
+                weights[type] = 0;
+                if ((slotMasks[step] & (1 << type)) == 0 || remaining[type] == 0) continue;
+                weights[type] = remaining[type] * completionsWithout(step + 1, type);
+                total += weights[type];
+            }
+            if (total == 0)
+                throw new AssertionError("Feasible hand has become infeasible while sampling");
+            long roll = (long) (rnd.nextDouble() * total);
+            int chosen = 0;
+            while (roll >= weights[chosen]) {
+                roll -= weights[chosen];
+                chosen++;
+            }
+            remaining[chosen]--;
+            retValue.put(slots[step], cardsByType.get(chosen).get(remaining[chosen]));
+        }
+        return retValue;
+    }
+
+    /*
+    The number of ways to deal distinct cards from remaining to the slots from step on, each getting one of its
+    possible cards. By inclusion-exclusion this is the sum over partitions of those slots of the coefficient times,
+    for each block, the number of cards that every slot in the block could take.
+     */
+    long completions(int step, int[] remaining) {
+        countBlockCards(step, remaining);
+        return completionsWithout(step, -1);
+    }
+
+    private void countBlockCards(int step, int[] remaining) {
+        for (int p = 0; p < blockMasks[step].length; p++) {
+            for (int b = 0; b < blockMasks[step][p].length; b++) {
+                int cards = 0;
+                for (int m = blockMasks[step][p][b]; m != 0; m &= m - 1)
+                    cards += remaining[Integer.numberOfTrailingZeros(m)];
+                blockCards[step][p][b] = cards;
+            }
+        }
+    }
+
+    /*
+    completions() from the counts made by countBlockCards(), with one fewer card of type taken (if it is not -1)
+     */
+    private long completionsWithout(int step, int type) {
+        long retValue = 0;
+        int typeBit = type < 0 ? 0 : 1 << type;
+        for (int p = 0; p < blockMasks[step].length; p++) {
+            long term = coefficients[step][p];
+            for (int b = 0; b < blockMasks[step][p].length && term != 0; b++)
+                term *= (blockMasks[step][p][b] & typeBit) == 0 ? blockCards[step][p][b] : blockCards[step][p][b] - 1;
+            retValue += term;
+        }
+        return retValue;
+    }
+}
@@ -4,6 +4,8 @@ import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSNode;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.actions.Action;
 
+import java.util.Random;
+
 public interface ExpansionPolicy {
 
     /**
@@ -27,4 +29,12 @@ public interface ExpansionPolicy {
     To be used to create the root node in a tree...the one that does not have a parent
      */
     public MCTSNode createRoot(GameState startState, int previousAgentID, double C);
+
+    /*
+    The policy for another thread searching the same tree (or one of its own), which should pick with the given random
+    rather than ours. A policy that keeps no state between calls can be shared, and is by default.
+     */
+    public default ExpansionPolicy copyForWorker(Random random) {
+        return this;
+    }
 }
@@ -2,6 +2,7 @@ package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion;
 
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSNode;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSRuleNode;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.RuleOutputCache;
 import com.fossgalaxy.games.fireworks.ai.rule.Rule;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.actions.Action;
@@ -11,10 +12,12 @@ import java.util.*;
 public class RuleExpansionPolicy extends SimpleNodeExpansion {
 
     protected List<Rule> allRules;
+    protected RuleOutputCache ruleCache;
 
     public RuleExpansionPolicy(Logger logger, Random random, List<Rule> rules) {
         super(logger, random);
         allRules = rules;
+        ruleCache = new RuleOutputCache(rules);
     }
 
     @Override
@@ -23,7 +26,7 @@ public class RuleExpansionPolicy extends SimpleNodeExpansion {
                 (MCTSRuleNode) parent,
                 previousAgentID,
                 moveTo, C,
-                allRules, priorVisits, priorValue);
+                ruleCache, priorVisits, priorValue);
 
         return root;
     }
@@ -34,7 +37,7 @@ public class RuleExpansionPolicy extends SimpleNodeExpansion {
         MCTSNode root = new MCTSRuleNode(
                 null,
                 previousAgentID,
-                null, C, allRules, 0, 0.0);
+                null, C, ruleCache, 0, 0.0);
         return root;
     }
 
@@ -19,6 +19,13 @@ public class RuleFullExpansion extends RuleExpansionPolicy {
     }
 
 
+    @Override
+    public RuleFullExpansion copyForWorker(Random random) {
+        RuleFullExpansion copy = (RuleFullExpansion) super.copyForWorker(random);
+        copy.VAgent = VAgent.copyForWorker();
+        return copy;
+    }
+
     @Override
     public Action selectActionForExpand(GameState state, MCTSNode node, int agentID) {
         throw new UnsupportedOperationException("Full Expansion Policy should not use this");
@@ -1,17 +1,17 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion;
 
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.ActionCodec;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSNode;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.MCTSRuleNode;
 import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion.ExpansionPolicy;
 import com.fossgalaxy.games.fireworks.ai.iggi.Utils;
-import com.fossgalaxy.games.fireworks.state.CardColour;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.actions.*;
 import org.slf4j.Logger;
 
 import java.util.*;
 
-public class SimpleNodeExpansion implements ExpansionPolicy {
+public class SimpleNodeExpansion implements ExpansionPolicy, Cloneable {
 
     protected Logger logger;
     protected Random random;
@@ -22,12 +22,27 @@ public class SimpleNodeExpansion implements ExpansionPolicy {
     }
 
 
+    /*
+    A copy of this policy (of the same class) that picks with the given random; everything else, such as the
+    RuleOutputCache of a subclass, is shared with us
+     */
+    @Override
+    public SimpleNodeExpansion copyForWorker(Random random) {
+        try {
+            SimpleNodeExpansion copy = (SimpleNodeExpansion) clone();
+            copy.random = random;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError("SimpleNodeExpansion should be Cloneable", e);
+        }
+    }
+
     @Override
     public MCTSNode createNode(MCTSNode parent, int previousAgentID, Action moveTo, double C, int priorVisits, double priorMeanValue) {
-        GameState state = parent.getReferenceState();
-        Collection<Action> allActions = generateAllActions((previousAgentID + 1) % state.getPlayerCount(),
-                state.getPlayerCount(),
-                state.getInfomation());
+        int playerCount = parent.getReferencePlayerCount();
+        long allActions = ActionCodec.allActionsMask((previousAgentID + 1) % playerCount,
+                playerCount,
+                parent.getReferenceInformation());
         MCTSNode root = new MCTSNode(
                 parent,
                 previousAgentID,
@@ -38,12 +53,12 @@ public class SimpleNodeExpansion implements ExpansionPolicy {
 
     @Override
     public MCTSNode createRoot(GameState refState, int previousAgentID, double C) {
-        Collection<Action> allActions = generateAllActions((previousAgentID + 1) % refState.getPlayerCount(),
+        long allActions = ActionCodec.allActionsMask((previousAgentID + 1) % refState.getPlayerCount(),
                 refState.getPlayerCount(), refState.getInfomation());
         MCTSNode root = new MCTSNode(
                 null,
                 previousAgentID,
-                null, C, allActions);
+                null, C, allActions, 0, 0.0);
         return root;
     }
 
@@ -84,35 +99,26 @@ public class SimpleNodeExpansion implements ExpansionPolicy {
         return child;
     }
 
-    private static final int[] HAND_SIZE = new int[]{-1, -1, 5, 5, 4, 4};
-
-
-    public static Collection<Action> generateAllActions(int playerID, int numPlayers, int information) {
-        HashSet<Action> list = new HashSet();
-
-        int player;
-        for (player = 0; player < HAND_SIZE[numPlayers]; ++player) {
-            if (information < 8) list.add(new DiscardCard(player));
-            list.add(new PlayCard(player));
-        }
-
-        for (player = 0; player < numPlayers; ++player) {
-            if (player != playerID) {
-                CardColour[] var4 = CardColour.values();
-                int var5 = var4.length;
-
-                for (int var6 = 0; var6 < var5; ++var6) {
-                    CardColour colour = var4[var6];
-                    list.add(new TellColour(player, colour));
-                }
-
-                for (int i = 1; i <= 5; ++i) {
-                    list.add(new TellValue(player, i));
-                }
-            }
+    /*
+    As expand(parent, state), for a search that runs on a SimulationState; candidates are the legal moves (as
+    ActionCodec ids) that parent has not yet expanded
+     */
+    public MCTSNode expand(MCTSNode parent, int nextAgentID, long candidates) {
+        if (candidates == 0L) {
+            return parent;
         }
+        int selected = random.nextInt(Long.bitCount(candidates));
+        for (int i = 0; i < selected; i++)
+            candidates &= candidates - 1;
+        Action action = ActionCodec.decode(Long.numberOfTrailingZeros(candidates));
+        logger.trace("Selected action " + action + " for expansion from node:");
+        MCTSNode child = createNode(parent, nextAgentID, action, parent.expConst);
+        parent.addChild(child);
+        return child;
+    }
 
-        return list;
+    public static Collection<Action> generateAllActions(int playerID, int numPlayers, int information) {
+        return ActionCodec.fromMask(ActionCodec.allActionsMask(playerID, numPlayers, information));
     }
 
 }
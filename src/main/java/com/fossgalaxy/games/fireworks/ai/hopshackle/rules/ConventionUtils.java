@@ -1,10 +1,13 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
 
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.ActionCodec;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
 import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
 import com.fossgalaxy.games.fireworks.state.*;
 import com.fossgalaxy.games.fireworks.state.actions.*;
 import com.fossgalaxy.games.fireworks.state.events.*;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -12,6 +15,25 @@ import java.util.stream.Collectors;
 
 public class ConventionUtils {
 
+    private static final int CACHE_SIZE = 256;
+    // the same inference is asked for many times per decision (by features, rules and determinisers), so each thread
+    // keeps the most recent results
+    private static final ThreadLocal<Map<PossibleCardsKey, Map<Integer, List<Card>>>> possibleCardsCache =
+            ThreadLocal.withInitial(() -> new LinkedHashMap<PossibleCardsKey, Map<Integer, List<Card>>>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PossibleCardsKey, Map<Integer, List<Card>>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+    private static final ThreadLocal<HistoryFingerprints> historyFingerprints = ThreadLocal.withInitial(HistoryFingerprints::new);
+    private static final ThreadLocal<RecentTurnsCache> recentTurns = ThreadLocal.withInitial(RecentTurnsCache::new);
+    /*
+    Each recent turn is packed into an int (as in HandBeliefTracker): the kind of turn, the player (told, or
+    playing/discarding), the slots touched (or the slot played/discarded), whether it was a Red or Orange Tell, and the
+    card played
+     */
+    private static final int OTHER = 0, TELL = 1, PLAY = 2, DISCARD = 3;
+
     public static boolean isAnInvalidConventionalTell(Action proposedTell, GameState state, int playerTelling, Conventions conv) {
         if (conv.singleTouchIsPlayable) {
             int affected = 0;
@@ -122,78 +144,153 @@ public class ConventionUtils {
     }
 
 
+    /*
+    The result depends only on what player knows about their hand, the cards in deck (by colour and value), and (if
+    conventions are used) which slots the conventional Tells in the last playerCount * 3 turns say were playable, and
+    which cards were playable then; so it is cached on exactly those. The lists returned must not be changed.
+     */
     public static Map<Integer, List<Card>> bindBlindCardWithConventions(int player, Hand hand, List<Card> deck, GameState state, Conventions conv) {
+        int[] tells = conventionalTells(player, state, conv);
+        PossibleCardsKey key = new PossibleCardsKey(player, hand, deck, conv, tells);
+        Map<PossibleCardsKey, Map<Integer, List<Card>>> cache = possibleCardsCache.get();
+        Map<Integer, List<Card>> retValue = cache.get(key);
+        if (retValue == null) {
+            retValue = new HashMap<>();
+            for (Map.Entry<Integer, List<Card>> entry : calculateBlindCardWithConventions(player, hand, deck, tells).entrySet())
+                retValue.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            retValue = Collections.unmodifiableMap(retValue);
+            cache.put(key, retValue);
+        }
+        return retValue;
+    }
+
+    private static Map<Integer, List<Card>> calculateBlindCardWithConventions(int player, Hand hand, List<Card> deck, int[] tells) {
         Map<Integer, List<Card>> retValue = DeckUtils.bindBlindCard(player, hand, deck);
         // we start with the DeckUtils result, which uses the grounded information
+        for (int tell : tells) {
+            int slot = tell >>> SimulationState.CARD_TYPES;
+            List<Card> playableCards = retValue.get(slot).stream()
+                    .filter(c -> (tell & 1 << SimulationState.code(c)) != 0)
+                    .collect(Collectors.toList());
+            if (!playableCards.isEmpty()) {
+                retValue.put(slot, playableCards);
+            } else {
+                boolean stop = true;
+                // This is fine...we cannot misinterpet the Tell, so it just carries its grounded info
+                // (or for Red/Orange, someone has played a repeat card, e.g. O2 when current score is O2)
+            }
+        }
+        return retValue;
+    }
+
+    /*
+    The conventional Tells to player in the last playerCount * 3 turns, latest first, each as the slot told about
+    (shifted above the card bits) and the cards that were playable at the time. We go back through the turns undoing
+    plays to find the table at the time of each Tell, and ignore Tells about slots that have since been played or
+    discarded. A single-touch Tell means that card was playable, and a Red or Orange Tell means that the slot most
+    recently drawn (now, not when told) was playable.
+     */
+    private static int[] conventionalTells(int player, GameState state, Conventions conv) {
         if (!conv.redYellowMeansMostRecentIsPlayable && !conv.singleTouchIsPlayable)
-            return retValue;
-
-        Set<Integer> slotsDrawn = new HashSet<>();
-        Map<CardColour, Integer> scoresAtPointOfTell = new HashMap<>();
-        for (CardColour colour : CardColour.values()) {
-            scoresAtPointOfTell.put(colour, state.getTableValue(colour));
-        }
-        // this tracks any slots that have been drawn since the Tell was received, and hence for which we have no information
-        List<HistoryEntry> history = state.getActionHistory();
-        ListIterator<HistoryEntry> iter = state.getActionHistory().listIterator(history.size());
-        int count = 0;
-        while (iter.hasPrevious() && count < state.getPlayerCount() * 3) { // heuristic to go back 3 events per player
-            HistoryEntry lastEvent = iter.previous();
-            if (lastEvent.action instanceof TellColour || lastEvent.action instanceof TellValue) {
-                int toldTo = lastEvent.action instanceof TellColour ? ((TellColour) lastEvent.action).player : ((TellValue) lastEvent.action).player;
-                if (toldTo == player) {
-                    CardInfo event = (CardInfo) lastEvent.history.get(0);
-                    if (conv.singleTouchIsPlayable && event.getSlots().length == 1) {
-                        // bingo! Only playable cards permitted
-                        // so we make sure only cards playable at this point are used
-                        for (int slot : event.getSlots()) {
-                            if (!slotsDrawn.contains(slot)) {
-                                List<Card> playableCards = filterToPlayableCards(retValue.get(slot), scoresAtPointOfTell);
-                                if (!playableCards.isEmpty()) {
-                                    retValue.put(slot, playableCards);
-                                } else {
-                                    boolean stop = true;
-                                    // This is fine...we cannot misinterpet the Tell, so it just carries its grounded info
-                                }
-                            }
-                        }
-                    }
-                    if (conv.redYellowMeansMostRecentIsPlayable && event.getEvent() == MessageType.CARD_INFO_COLOUR) {
-                        CardInfoColour colourTell = (CardInfoColour) event;
-                        if (colourTell.getColour() == CardColour.ORANGE || colourTell.getColour() == CardColour.RED) {
-                            // this tells us the most recently drawn slot is playable
-                            int slot = slotMostRecentlyDrawn(state, player);
-                            if (slot != -1 && !slotsDrawn.contains(slot)) {
-                                List<Card> playableCards = filterToPlayableCards(retValue.get(slot), scoresAtPointOfTell);
-                                if (!playableCards.isEmpty()) {
-                                    retValue.put(slot, playableCards);
-                                } else {
-                                    boolean stop = true;
-                                    // really should not happen...but is possible if someone PLAYs a repeat card
-                                    // e.g. O2 when current score is O2
-                                }
-                            }
-                        }
-                    }
-                }
-            } else if (lastEvent.action instanceof DiscardCard) {
-                CardDiscarded cd = (CardDiscarded) lastEvent.history.get(0);
-                if (player == cd.getPlayerId()) {
-                    slotsDrawn.add(cd.getSlotId());
-                    // record that data for this slot is now irrelevant
+            return new int[0];
+        RecentTurns recent = recentTurns.get().update(state.getActionHistory(), state.getPlayerCount());
+        CardColour[] colours = CardColour.values();
+        int[] tableAtTell = new int[colours.length];
+        for (CardColour colour : colours)
+            tableAtTell[colour.ordinal()] = state.getTableValue(colour);
+        int[] retValue = new int[recent.turns.length * 2];
+        int tells = 0;
+        int slotsDrawn = 0;
+        for (int t = recent.turns.length - 1; t >= 0; t--) {
+            int turn = recent.turns[t];
+            int kind = turn & 3;
+            int turnPlayer = (turn >>> 2) & 7;
+            int slots = (turn >>> 5) & 31;
+            if (kind == TELL && turnPlayer == player) {
+                if (conv.singleTouchIsPlayable && Integer.bitCount(slots) == 1 && (slots & slotsDrawn) == 0)
+                    retValue[tells++] = Integer.numberOfTrailingZeros(slots) << SimulationState.CARD_TYPES | playable(tableAtTell);
+                if (conv.redYellowMeansMostRecentIsPlayable && (turn & 1 << 10) != 0) {
+                    int slot = recent.mostRecentSlot[player];
+                    if (slot != -1 && (slotsDrawn & 1 << slot) == 0)
+                        retValue[tells++] = slot << SimulationState.CARD_TYPES | playable(tableAtTell);
                 }
-            } else if (lastEvent.action instanceof PlayCard) {
-                CardPlayed cp = (CardPlayed) lastEvent.history.get(0);
-                // check that this was a valid play!
-                // which we cannot 100% guarantee...e.g. if we play O1 when current score is O1....
-                if (scoresAtPointOfTell.get(cp.getColour()) == cp.getValue())
-                    scoresAtPointOfTell.put(cp.getColour(), cp.getValue() - 1); // decrement score
-                if (player == cp.getPlayerId())
-                    slotsDrawn.add(cp.getSlotId());
+            } else if (kind == DISCARD) {
+                if (turnPlayer == player)
+                    slotsDrawn |= slots;
+            } else if (kind == PLAY) {
+                // which we cannot 100% guarantee was a valid play...e.g. if we play O1 when current score is O1
+                int cardType = turn >>> 11;
+                int colour = cardType / 5;
+                if (tableAtTell[colour] == cardType % 5 + 1)
+                    tableAtTell[colour]--;
+                if (turnPlayer == player)
+                    slotsDrawn |= slots;
             }
         }
+        return Arrays.copyOf(retValue, tells);
+    }
+
+    private static int playable(int[] table) {
+        int retValue = 0;
+        for (int colour = 0; colour < table.length; colour++) {
+            if (table[colour] < 5)
+                retValue |= 1 << (colour * 5 + table[colour]);
+        }
+        return retValue;
+    }
 
+    private static int turnCode(HistoryEntry entry) {
+        if (entry.history.isEmpty()) return OTHER;
+        GameEvent event = entry.history.get(0);
+        if ((entry.action instanceof TellColour || entry.action instanceof TellValue) && event instanceof CardInfo) {
+            int toldTo = entry.action instanceof TellColour ? ((TellColour) entry.action).player : ((TellValue) entry.action).player;
+            int slots = 0;
+            for (int slot : ((CardInfo) event).getSlots())
+                slots |= 1 << slot;
+            boolean redOrange = event.getEvent() == MessageType.CARD_INFO_COLOUR
+                    && (((CardInfoColour) event).getColour() == CardColour.RED || ((CardInfoColour) event).getColour() == CardColour.ORANGE);
+            return TELL | toldTo << 2 | slots << 5 | (redOrange ? 1 << 10 : 0);
+        }
+        if (event instanceof CardDiscarded) {
+            CardDiscarded cd = (CardDiscarded) event;
+            return DISCARD | cd.getPlayerId() << 2 | 1 << (5 + cd.getSlotId());
+        }
+        if (event instanceof CardPlayed) {
+            CardPlayed cp = (CardPlayed) event;
+            return PLAY | cp.getPlayerId() << 2 | 1 << (5 + cp.getSlotId()) | (cp.getColour().ordinal() * 5 + cp.getValue() - 1) << 11;
+        }
+        return OTHER;
+    }
 
+    /*
+    A 64-bit hash of the history (of everything in it that the rules and conventions look at)
+     */
+    public static long historyHash(GameState state) {
+        return historyFingerprints.get().update(state.getActionHistory());
+    }
+
+    /*
+    Everything about a history entry that the conventions look at, packed exactly into an int: the player and action,
+    then the slots touched by a tell, or the card played, and the player and slot given by a play or discard event
+     */
+    public static int entryCode(HistoryEntry entry) {
+        int retValue = entry.playerID * ActionCodec.ACTION_COUNT + ActionCodec.encode(entry.action);
+        if (!entry.history.isEmpty()) {
+            GameEvent event = entry.history.get(0);
+            if (event instanceof CardInfo) {
+                int slots = 0;
+                for (int slot : ((CardInfo) event).getSlots())
+                    slots |= 1 << slot;
+                retValue |= slots << 9;
+            } else if (event instanceof CardPlayed) {
+                CardPlayed cp = (CardPlayed) event;
+                retValue |= (1 + cp.getColour().ordinal() * 5 + cp.getValue() - 1) << 9;
+                retValue |= (cp.getPlayerId() << 3 | cp.getSlotId()) << 14;
+            } else if (event instanceof CardDiscarded) {
+                CardDiscarded cd = (CardDiscarded) event;
+                retValue |= (cd.getPlayerId() << 3 | cd.getSlotId()) << 14;
+            }
+        }
         return retValue;
     }
 
@@ -202,4 +299,162 @@ public class ConventionUtils {
                 .filter(c -> currentScores.get(c.colour) + 1 == c.value)
                 .collect(Collectors.toList());
     }
+
+    private static final class PossibleCardsKey {
+        private final int[] data;
+        private final int hash;
+
+        PossibleCardsKey(int player, Hand hand, List<Card> deck, Conventions conv, int[] tells) {
+            data = new int[3 + hand.getSize() + SimulationState.CARD_TYPES + tells.length];
+            int i = 0;
+            data[i++] = player;
+            data[i++] = hand.getSize();
+            data[i++] = (conv.singleTouchIsPlayable ? 1 : 0) | (conv.redYellowMeansMostRecentIsPlayable ? 2 : 0);
+            for (int slot = 0; slot < hand.getSize(); slot++) {
+                int knowledge = hand.hasCard(slot) ? 1 << 10 : 0;
+                for (CardColour c : hand.getPossibleColours(slot))
+                    knowledge |= 1 << c.ordinal();
+                for (int v : hand.getPossibleValues(slot))
+                    knowledge |= 1 << (4 + v);
+                data[i++] = knowledge;
+            }
+            int deckStart = i;
+            for (Card c : deck)
+                data[deckStart + SimulationState.code(c)]++;
+            i += SimulationState.CARD_TYPES;
+            for (int tell : tells)
+                data[i++] = tell;
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PossibleCardsKey)) return false;
+            PossibleCardsKey key = (PossibleCardsKey) other;
+            return hash == key.hash && Arrays.equals(data, key.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /*
+    A 64-bit hash of everything in a history that the conventions look at. As a search adds one entry at a time to
+    the same history, we just extend the hash from where we got to last time. Each thread keeps this for the last few
+    histories it has seen (a search often goes back and forth between the root history and the one it is extending);
+    these are held weakly, so that we do not keep old game states alive.
+     */
+    private static final class HistoryFingerprints {
+        private static final int SIZE = 8;
+        @SuppressWarnings("unchecked")
+        private final WeakReference<List<HistoryEntry>>[] histories = new WeakReference[SIZE];
+        private final int[] lengths = new int[SIZE];
+        private final long[] hashes = new long[SIZE];
+        private final long[] lastUsed = new long[SIZE];
+        private long uses;
+
+        long update(List<HistoryEntry> newHistory) {
+            int index = -1;
+            for (int i = 0; i < SIZE; i++) {
+                if (histories[i] != null && histories[i].get() == newHistory) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1 || newHistory.size() < lengths[index]) {
+                if (index == -1) {
+                    index = 0;
+                    for (int i = 1; i < SIZE; i++)
+                        if (lastUsed[i] < lastUsed[index]) index = i;
+                }
+                histories[index] = new WeakReference<>(newHistory);
+                lengths[index] = 0;
+                hashes[index] = 0;
+            }
+            lastUsed[index] = ++uses;
+            long hash = hashes[index];
+            for (int length = lengths[index]; length < newHistory.size(); length++)
+                hash = hash * 1000003L + entryCode(newHistory.get(length));
+            hashes[index] = hash;
+            lengths[index] = newHistory.size();
+            return hash;
+        }
+    }
+
+    /*
+    The packed turns of the last playerCount * 3 entries of a history, and the slot each player most recently drew into
+     */
+    private static final class RecentTurns {
+        private final HistoryEntry last;
+        private final int length;
+        private final int window;
+        private final int[] turns;
+        private final int[] mostRecentSlot;
+
+        /*
+        from (which may be null) is for the first part of history, so only the entries after that are looked at
+         */
+        RecentTurns(RecentTurns from, List<HistoryEntry> history, int playerCount) {
+            int start = from == null ? 0 : from.length;
+            length = history.size();
+            last = length == 0 ? null : history.get(length - 1);
+            window = playerCount * 3;
+            turns = new int[Math.min(length, window)];
+            int firstTurn = length - turns.length;
+            int kept = Math.max(0, start - firstTurn);
+            if (kept > 0)
+                System.arraycopy(from.turns, from.turns.length - kept, turns, 0, kept);
+            if (from == null) {
+                mostRecentSlot = new int[ActionCodec.MAX_PLAYERS];
+                Arrays.fill(mostRecentSlot, -1);
+            } else {
+                mostRecentSlot = from.mostRecentSlot.clone();
+            }
+            for (int i = start; i < length; i++) {
+                int turn = turnCode(history.get(i));
+                if ((turn & 3) == PLAY || (turn & 3) == DISCARD)
+                    mostRecentSlot[(turn >>> 2) & 7] = Integer.numberOfTrailingZeros(turn >>> 5);
+                if (i >= firstTurn)
+                    turns[i - firstTurn] = turn;
+            }
+        }
+
+        boolean startsOf(List<HistoryEntry> history, int playerCount) {
+            return window == playerCount * 3 && length <= history.size() && (length == 0 || history.get(length - 1) == last);
+        }
+    }
+
+    /*
+    A search adds one entry at a time to a history (and copies of a state share the entries of its history), so each
+    thread keeps the RecentTurns of the last few histories it has seen, and builds the next from the longest of these
+    that the new history starts with, so that only the new entries are looked at.
+     */
+    private static final class RecentTurnsCache {
+        private static final int SIZE = 8;
+        private final RecentTurns[] recent = new RecentTurns[SIZE];
+        private final long[] lastUsed = new long[SIZE];
+        private long uses;
+
+        RecentTurns update(List<HistoryEntry> history, int playerCount) {
+            int best = -1;
+            for (int i = 0; i < SIZE; i++) {
+                if (recent[i] != null && recent[i].startsOf(history, playerCount) && (best == -1 || recent[i].length > recent[best].length))
+                    best = i;
+            }
+            if (best != -1) {
+                lastUsed[best] = ++uses;
+                if (recent[best].length == history.size())
+                    return recent[best];
+            }
+            // we keep the one we extended, as the search will come back to it
+            int index = 0;
+            for (int i = 1; i < SIZE; i++)
+                if (lastUsed[i] < lastUsed[index]) index = i;
+            recent[index] = new RecentTurns(best == -1 ? null : recent[best], history, playerCount);
+            lastUsed[index] = ++uses;
+            return recent[index];
+        }
+    }
 }
@@ -1,17 +1,11 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
 
 import com.fossgalaxy.games.fireworks.ai.rule.AbstractDiscardRule;
-import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
-import com.fossgalaxy.games.fireworks.ai.rule.logic.HandUtils;
-import com.fossgalaxy.games.fireworks.state.Card;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.Hand;
 import com.fossgalaxy.games.fireworks.state.actions.Action;
 import com.fossgalaxy.games.fireworks.state.actions.DiscardCard;
 
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by piers on 12/12/16.
  * <p>
@@ -36,14 +30,14 @@ public class DiscardProbablyUselessCard extends AbstractDiscardRule {
 
     @Override
     public Action execute(int playerID, GameState state) {
-        Map<Integer, List<Card>> possibleCards = ConventionUtils.bindBlindCardWithConventions(playerID, state.getHand(playerID), state.getDeck().toList(), state, conv);
+        HandKnowledge knowledge = HandKnowledge.of(playerID, state, conv);
 
         double bestSoFar = threshold;
         int bestSlot = -1;
-        for (Map.Entry<Integer, List<Card>> entry : possibleCards.entrySet()) {
-            double probability = DeckUtils.getProbablity(entry.getValue(), x -> isUseless(x, state));
+        for (int slot : knowledge.getSlots()) {
+            double probability = knowledge.getUselessProbability(slot);
             if(probability >= bestSoFar){
-                bestSlot = entry.getKey();
+                bestSlot = slot;
                 bestSoFar = probability;
             }
         }
@@ -57,8 +51,4 @@ public class DiscardProbablyUselessCard extends AbstractDiscardRule {
         return new DiscardCard(bestSlot);
     }
 
-    private boolean isUseless(Card card, GameState state) {
-        return HandUtils.isSafeToDiscard(state, card.colour, card.value);
-    }
-
 }
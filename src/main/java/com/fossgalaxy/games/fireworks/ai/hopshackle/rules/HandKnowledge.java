@@ -0,0 +1,127 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
+import com.fossgalaxy.games.fireworks.ai.rule.logic.HandUtils;
+import com.fossgalaxy.games.fireworks.state.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/*
+What a player can infer about each card in their own hand at a decision: the possible cards for each slot (from
+ConventionUtils.bindBlindCardWithConventions), and from these the probability that the card is playable, useless
+(safe to discard) or necessary (the last copy of a card that could still be played).
+All the play and discard rules need the same things, so rather than each working them out again, they ask for
+HandKnowledge.of(), which keeps the most recent one for each player on each thread. The probabilities are only
+calculated when first asked for.
+ */
+public class HandKnowledge {
+
+    private static final int[] cardCopies = new int[]{-1, 3, 2, 2, 2, 1};
+    private static final ThreadLocal<HandKnowledge[]> latest = ThreadLocal.withInitial(() -> new HandKnowledge[5]);
+
+    private final GameState state;
+    private final Conventions conv;
+    private final int historySize;
+    private final int discardCount;
+    private final Map<Integer, List<Card>> possibleCards;
+    private final int[] slots;
+    private double[] playable, useless, necessary;
+    private int[] discardsByType;
+
+    private HandKnowledge(GameState state, Conventions conv, Map<Integer, List<Card>> possibleCards) {
+        this.state = state;
+        this.conv = conv;
+        this.possibleCards = possibleCards;
+        historySize = state.getActionHistory().size();
+        discardCount = state.getDiscards().size();
+        // we keep the iteration order of the map, so that ties are broken in the same way as before
+        slots = possibleCards.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static HandKnowledge of(int playerID, GameState state, Conventions conv) {
+        Map<Integer, List<Card>> possibleCards = ConventionUtils.bindBlindCardWithConventions(playerID, state.getHand(playerID), state.getDeck().toList(), state, conv);
+        HandKnowledge[] cache = latest.get();
+        if (playerID >= cache.length) {
+            cache = Arrays.copyOf(cache, playerID + 1);
+            latest.set(cache);
+        }
+        HandKnowledge retValue = cache[playerID];
+        if (retValue == null || !retValue.isFor(state, conv, possibleCards)) {
+            retValue = new HandKnowledge(state, conv, possibleCards);
+            cache[playerID] = retValue;
+        }
+        return retValue;
+    }
+
+    private boolean isFor(GameState state, Conventions conv, Map<Integer, List<Card>> possibleCards) {
+        // the possible cards are cached by ConventionUtils, so are the same instance if the player's information is
+        return this.possibleCards == possibleCards && this.state == state && this.conv == conv
+                && historySize == state.getActionHistory().size() && discardCount == state.getDiscards().size();
+    }
+
+    /*
+    The slots that have possible cards, in the order the rules should consider them
+     */
+    public int[] getSlots() {
+        return slots;
+    }
+
+    public List<Card> getPossibleCards(int slot) {
+        return possibleCards.get(slot);
+    }
+
+    public Map<Integer, List<Card>> getPossibleCards() {
+        return possibleCards;
+    }
+
+    public double getPlayableProbability(int slot) {
+        if (playable == null)
+            playable = probabilities(c -> isPlayable(c, state));
+        return playable[slot];
+    }
+
+    public double getUselessProbability(int slot) {
+        if (useless == null)
+            useless = probabilities(c -> HandUtils.isSafeToDiscard(state, c.colour, c.value));
+        return useless[slot];
+    }
+
+    public double getNecessaryProbability(int slot) {
+        if (necessary == null) {
+            discardsByType = new int[SimulationState.CARD_TYPES];
+            for (Card c : state.getDiscards())
+                discardsByType[SimulationState.code(c)]++;
+            necessary = probabilities(this::isNecessary);
+        }
+        return necessary[slot];
+    }
+
+    private double[] probabilities(Predicate<Card> test) {
+        int maxSlot = 0;
+        for (int slot : slots)
+            maxSlot = Math.max(maxSlot, slot);
+        double[] retValue = new double[maxSlot + 1];
+        for (int slot : slots)
+            retValue[slot] = DeckUtils.getProbablity(possibleCards.get(slot), test);
+        return retValue;
+    }
+
+    public static boolean isPlayable(Card card, GameState state) {
+        return state.getTableValue(card.colour) + 1 == card.value;
+    }
+
+    // Is necessary if this is the last copy of a card that is still needed
+    private boolean isNecessary(Card card) {
+        // Can't be necessary if needed again.
+        if (HandUtils.isSafeToDiscard(state, card.colour, card.value)) {
+            return false;
+        }
+
+        // Quicker to process this one.
+        if (card.value == 5) return true;
+
+        return discardsByType[SimulationState.code(card)] == cardCopies[card.value] - 1;
+    }
+}
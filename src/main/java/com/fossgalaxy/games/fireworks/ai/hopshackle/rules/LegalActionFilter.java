@@ -1,6 +1,8 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
 
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.ActionCodec;
 import com.fossgalaxy.games.fireworks.state.GameState;
+import com.fossgalaxy.games.fireworks.state.Hand;
 import com.fossgalaxy.games.fireworks.state.actions.*;
 
 import java.util.function.Predicate;
@@ -23,4 +25,31 @@ public class LegalActionFilter {
             }
         };
     }
+
+    /*
+    The same test as isLegal(), applied to each of a set of ActionCodec ids in one go
+     */
+    public static long legalMask(long candidates, int playerID, GameState state) {
+        Hand hand = state.getHand(playerID);
+        int occupiedSlots = 0;
+        for (int slot = 0; slot < hand.getSize(); slot++)
+            if (hand.hasCard(slot)) occupiedSlots |= 1 << slot;
+        boolean canDiscard = state.getInfomation() != state.getStartingInfomation();
+        boolean canTell = state.getInfomation() > 0;
+
+        long retValue = 0L;
+        for (long remaining = candidates; remaining != 0L; remaining &= remaining - 1) {
+            int id = Long.numberOfTrailingZeros(remaining);
+            boolean legal;
+            if (id < ActionCodec.DISCARD) {
+                legal = (occupiedSlots & (1 << (id - ActionCodec.PLAY))) != 0;
+            } else if (id < ActionCodec.TELL_COLOUR) {
+                legal = canDiscard && (occupiedSlots & (1 << (id - ActionCodec.DISCARD))) != 0;
+            } else {
+                legal = canTell && ActionCodec.decode(id).isLegal(playerID, state);
+            }
+            if (legal) retValue |= 1L << id;
+        }
+        return retValue;
+    }
 }
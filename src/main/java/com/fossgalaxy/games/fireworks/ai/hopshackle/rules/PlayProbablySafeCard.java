@@ -1,15 +1,11 @@
 package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
 
 import com.fossgalaxy.games.fireworks.ai.rule.AbstractRule;
-import com.fossgalaxy.games.fireworks.ai.rule.logic.DeckUtils;
 import com.fossgalaxy.games.fireworks.state.Card;
 import com.fossgalaxy.games.fireworks.state.GameState;
 import com.fossgalaxy.games.fireworks.state.actions.Action;
 import com.fossgalaxy.games.fireworks.state.actions.PlayCard;
 
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by piers on 08/11/16.
  */
@@ -25,14 +21,14 @@ public class PlayProbablySafeCard extends AbstractRule {
 
     @Override
     public Action execute(int playerID, GameState state) {
-        Map<Integer, List<Card>> possibleCards = ConventionUtils.bindBlindCardWithConventions(playerID, state.getHand(playerID), state.getDeck().toList(), state, conv);
+        HandKnowledge knowledge = HandKnowledge.of(playerID, state, conv);
 
         double bestSoFar = threshold;
         int bestSlot = -1;
-        for (Map.Entry<Integer, List<Card>> entry : possibleCards.entrySet()) {
-            double probability = DeckUtils.getProbablity(entry.getValue(), x -> isPlayable(x, state));
+        for (int slot : knowledge.getSlots()) {
+            double probability = knowledge.getPlayableProbability(slot);
             if (probability >= bestSoFar) {
-                bestSlot = entry.getKey();
+                bestSlot = slot;
                 bestSoFar = probability;
             }
         }
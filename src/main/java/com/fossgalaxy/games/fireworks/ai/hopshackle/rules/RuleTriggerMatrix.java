@@ -0,0 +1,102 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.rules;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.ActionCodec;
+import com.fossgalaxy.games.fireworks.ai.rule.Rule;
+import com.fossgalaxy.games.fireworks.state.GameState;
+import com.fossgalaxy.games.fireworks.state.actions.Action;
+
+import java.util.*;
+
+/*
+The result of executing each of a list of rules once for a player in a state. As well as the Action from each rule,
+we keep for every action (by ActionCodec id) a bitmask of the rules that gave it, so that the question 'which rules
+would have chosen this action?' is just a lookup, and can be asked for as many actions as we like.
+ */
+public class RuleTriggerMatrix {
+
+    private final List<Rule> rules;
+    private final Action[] ruleOutputs;
+    private final long[] rulesByAction = new long[ActionCodec.ACTION_COUNT];
+    private final long actionMask;
+
+    public RuleTriggerMatrix(List<Rule> rules, int agentID, GameState state) {
+        this(rules, execute(rules, agentID, state));
+    }
+
+    /*
+    ruleOutputs has the Action from each rule (null if it did not fire), in the same order as rules
+     */
+    public RuleTriggerMatrix(List<Rule> rules, Action[] ruleOutputs) {
+        if (rules.size() > 64)
+            throw new AssertionError("RuleTriggerMatrix supports at most 64 rules, not " + rules.size());
+        this.rules = rules;
+        this.ruleOutputs = ruleOutputs;
+        long allActions = 0L;
+        for (int i = 0; i < ruleOutputs.length; i++) {
+            if (ruleOutputs[i] != null) {
+                int id = ActionCodec.encode(ruleOutputs[i]);
+                rulesByAction[id] |= 1L << i;
+                allActions |= 1L << id;
+            }
+        }
+        actionMask = allActions;
+    }
+
+    private static Action[] execute(List<Rule> rules, int agentID, GameState state) {
+        Action[] retValue = new Action[rules.size()];
+        for (int i = 0; i < retValue.length; i++)
+            retValue[i] = rules.get(i).execute(agentID, state);
+        return retValue;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /*
+    The Action from the rule at ruleIndex, or null if it did not fire
+     */
+    public Action getAction(int ruleIndex) {
+        return ruleOutputs[ruleIndex];
+    }
+
+    /*
+    Bit i is set if rule i gives action
+     */
+    public long getTriggerMask(Action action) {
+        return action == null ? 0L : rulesByAction[ActionCodec.encode(action)];
+    }
+
+    public boolean triggered(int ruleIndex, Action action) {
+        return (getTriggerMask(action) & (1L << ruleIndex)) != 0;
+    }
+
+    public List<Rule> getRulesThatTriggered(Action action) {
+        long mask = getTriggerMask(action);
+        List<Rule> retValue = new ArrayList<>(Long.bitCount(mask));
+        for (; mask != 0; mask &= mask - 1)
+            retValue.add(rules.get(Long.numberOfTrailingZeros(mask)));
+        return retValue;
+    }
+
+    /*
+    The ActionCodec ids of all the Actions given by the rules
+     */
+    public long getActionMask() {
+        return actionMask;
+    }
+
+    /*
+    The different Actions given by the rules, in the order of the first rule to give each
+     */
+    public List<Action> getDistinctActions() {
+        List<Action> retValue = new ArrayList<>();
+        long seen = 0L;
+        for (int i = 0; i < ruleOutputs.length; i++) {
+            if (ruleOutputs[i] == null || (seen & (1L << i)) != 0) continue;
+            retValue.add(ruleOutputs[i]);
+            seen |= rulesByAction[ActionCodec.encode(ruleOutputs[i])];
+        }
+        return retValue;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.stats;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/*
+A StatsSummary that several threads can add to at once without locking. Each total is held as the bits of a double
+and updated by compare-and-set; a reader may see one total updated before another, which is fine for statistics.
+ */
+public class AtomicStats implements StatsSummary {
+
+    private static final AtomicLongFieldUpdater<AtomicStats> minUpdater = AtomicLongFieldUpdater.newUpdater(AtomicStats.class, "min");
+    private static final AtomicLongFieldUpdater<AtomicStats> maxUpdater = AtomicLongFieldUpdater.newUpdater(AtomicStats.class, "max");
+    private static final AtomicLongFieldUpdater<AtomicStats> sumUpdater = AtomicLongFieldUpdater.newUpdater(AtomicStats.class, "sum");
+    private static final AtomicLongFieldUpdater<AtomicStats> sumSqUpdater = AtomicLongFieldUpdater.newUpdater(AtomicStats.class, "sumSq");
+    private static final AtomicIntegerFieldUpdater<AtomicStats> nUpdater = AtomicIntegerFieldUpdater.newUpdater(AtomicStats.class, "n");
+
+    private volatile long min = Double.doubleToRawLongBits(Double.MAX_VALUE);
+    private volatile long max = Double.doubleToRawLongBits(-Double.MAX_VALUE);
+    private volatile long sum, sumSq;
+    private volatile int n;
+
+    @Override
+    public void add(double number) {
+        accumulate(minUpdater, number, 0);
+        accumulate(maxUpdater, number, 1);
+        accumulate(sumUpdater, number, 2);
+        accumulate(sumSqUpdater, number * number, 2);
+        nUpdater.incrementAndGet(this);
+    }
+
+    /*
+    Adds in all the numbers that were added to other, as if they had been added to this
+     */
+    public void addAll(AtomicStats other) {
+        if (other.getN() == 0) return;
+        accumulate(minUpdater, other.getMin(), 0);
+        accumulate(maxUpdater, other.getMax(), 1);
+        accumulate(sumUpdater, Double.longBitsToDouble(other.sum), 2);
+        accumulate(sumSqUpdater, Double.longBitsToDouble(other.sumSq), 2);
+        nUpdater.addAndGet(this, other.getN());
+    }
+
+    // operation is 0 for min, 1 for max and 2 for sum
+    private void accumulate(AtomicLongFieldUpdater<AtomicStats> updater, double number, int operation) {
+        long current, next;
+        do {
+            current = updater.get(this);
+            double value = Double.longBitsToDouble(current);
+            double newValue = operation == 0 ? Math.min(value, number) : operation == 1 ? Math.max(value, number) : value + number;
+            if (newValue == value && operation != 2) return;
+            next = Double.doubleToRawLongBits(newValue);
+        } while (!updater.compareAndSet(this, current, next));
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public double getMax() {
+        return Double.longBitsToDouble(max);
+    }
+
+    @Override
+    public double getMin() {
+        return Double.longBitsToDouble(min);
+    }
+
+    @Override
+    public double getRange() {
+        return getMax() - getMin();
+    }
+
+    @Override
+    public double getMean() {
+        return Double.longBitsToDouble(sum) / n;
+    }
+
+    @Override
+    public double getStdDev() {
+        double top = Double.longBitsToDouble(sumSq) - (n * getMean() * getMean());
+        top /= n - 1;
+        return Math.sqrt(top);
+    }
+
+    @Override
+    public double getStdErr() {
+        return getStdDev() / Math.sqrt(n);
+    }
+
+    public String toString() {
+        return String.format("min: %f, max: %f, avg: %f, rng: %f ", getMin(), getMax(), getMean(), getRange());
+    }
+}
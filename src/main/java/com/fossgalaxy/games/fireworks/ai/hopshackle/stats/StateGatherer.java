@@ -50,6 +50,34 @@ public abstract class StateGatherer {
         allFeatures.add("ONES_ON_TABLE");
     }
 
+    /*
+    The position of each feature in allFeatures, and so in the arrays passed to the NNs. These are set once the list
+    is complete; for each player (from agentID onwards) there are FEATURES_PER_PLAYER features starting at
+    PLAYER_FEATURES + featureID * FEATURES_PER_PLAYER, in the order _PLAYABLE, _PLAYABLE_PLUS_ONE, _DISCARDABLE,
+    _INFORMATION.
+     */
+    public static final int SCORE = allFeatures.indexOf("SCORE");
+    public static final int INFORMATION = allFeatures.indexOf("INFORMATION");
+    public static final int LIVES = allFeatures.indexOf("LIVES");
+    public static final int DECK_LEFT = allFeatures.indexOf("DECK_LEFT");
+    public static final int PLAYER_FEATURES = allFeatures.indexOf("0_PLAYABLE");
+    public static final int FEATURES_PER_PLAYER = 4;
+    public static final int PLAY_CARD = allFeatures.indexOf("PLAY_CARD");
+    public static final int PLAY_PLAYABLE = allFeatures.indexOf("PLAY_PLAYABLE");
+    public static final int PLAY_COMPLETES_COLOUR = allFeatures.indexOf("PLAY_COMPLETES_COLOUR");
+    public static final int DISCARD_CARD = allFeatures.indexOf("DISCARD_CARD");
+    public static final int DISCARD_IS_USELESS = allFeatures.indexOf("DISCARD_IS_USELESS");
+    public static final int DISCARD_IS_LAST_OF_USEFUL_PAIR = allFeatures.indexOf("DISCARD_IS_LAST_OF_USEFUL_PAIR");
+    public static final int DISCARD_POINTS_FOREGONE = allFeatures.indexOf("DISCARD_POINTS_FOREGONE");
+    public static final int MOVES_LEFT = allFeatures.indexOf("MOVES_LEFT");
+    public static final int UNAVAILABLE_POINTS = allFeatures.indexOf("UNAVAILABLE_POINTS");
+    public static final int FIVES_ON_TABLE = allFeatures.indexOf("FIVES_ON_TABLE");
+    public static final int FOURS_ON_TABLE = allFeatures.indexOf("FOURS_ON_TABLE");
+    public static final int THREES_ON_TABLE = allFeatures.indexOf("THREES_ON_TABLE");
+    public static final int TWOS_ON_TABLE = allFeatures.indexOf("TWOS_ON_TABLE");
+    public static final int ONES_ON_TABLE = allFeatures.indexOf("ONES_ON_TABLE");
+    public static final int FEATURE_COUNT = allFeatures.size();
+
     public List<Rule> allRules;
     public List<String> allTargets;
     protected String fileLocation = "hanabi";
@@ -84,37 +112,75 @@ public abstract class StateGatherer {
 
     public Map<String, Double> extractActionFeatures(Action action, GameState state, int agentID) {
         Map<String, Double> features = new HashMap<>();
-        if (action != null && action instanceof PlayCard) {
+        double[] asArray = new double[FEATURE_COUNT];
+        extractActionFeatures(action, state, agentID, asArray, 0);
+        if (action instanceof PlayCard) {
+            for (int i : new int[]{PLAY_CARD, PLAY_PLAYABLE, PLAY_COMPLETES_COLOUR})
+                features.put(allFeatures.get(i), asArray[i]);
+        } else if (action instanceof DiscardCard) {
+            for (int i : new int[]{DISCARD_CARD, DISCARD_IS_USELESS, DISCARD_IS_LAST_OF_USEFUL_PAIR, DISCARD_POINTS_FOREGONE})
+                features.put(allFeatures.get(i), asArray[i]);
+        }
+        return features;
+    }
+
+    /*
+    Writes the features for action into features (at the positions of allFeatures, starting from offset). This is
+    intended to be called after extractFeatures() on the same array, as only the features for this type of action are
+    written.
+     */
+    public void extractActionFeatures(Action action, GameState state, int agentID, double[] features, int offset) {
+        if (action instanceof PlayCard) {
             double[] probs = probabilities(((PlayCard) action).slot, state, agentID);
-            features.put("PLAY_CARD", 1.0);
-            features.put("PLAY_PLAYABLE", probs[0]);
-            features.put("PLAY_COMPLETES_COLOUR", probs[3]);
-        } else if (action != null && action instanceof DiscardCard) {
+            features[offset + PLAY_CARD] = 1.0;
+            features[offset + PLAY_PLAYABLE] = probs[0];
+            features[offset + PLAY_COMPLETES_COLOUR] = probs[3];
+        } else if (action instanceof DiscardCard) {
             double discardable = probabilities(((DiscardCard) action).slot, state, agentID)[2];
             double[] usefulStats = lastCardOfUsefulPair(((DiscardCard) action).slot, agentID, state);
-            features.put("DISCARD_CARD", 1.0);
-            features.put("DISCARD_IS_USELESS", discardable);
-            features.put("DISCARD_IS_LAST_OF_USEFUL_PAIR", usefulStats[0]);
-            features.put("DISCARD_POINTS_FOREGONE", usefulStats[1]);
+            features[offset + DISCARD_CARD] = 1.0;
+            features[offset + DISCARD_IS_USELESS] = discardable;
+            features[offset + DISCARD_IS_LAST_OF_USEFUL_PAIR] = usefulStats[0];
+            features[offset + DISCARD_POINTS_FOREGONE] = usefulStats[1];
         }
-        return features;
     }
 
     public Map<String, Double> extractFeatures(GameState gameState, int agentID) {
-        Map<String, Double> newTuple = new HashMap();
-        newTuple.put("SCORE", gameState.getScore() / 25.0);
-        newTuple.put("INFORMATION", gameState.getInfomation() / (double) gameState.getStartingInfomation());
-        newTuple.put("LIVES", gameState.getLives() / (double) gameState.getStartingLives());
+        double[] asArray = new double[FEATURE_COUNT];
+        extractFeatures(gameState, agentID, asArray, 0);
+        Map<String, Double> newTuple = new HashMap<>();
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            if (i >= PLAY_CARD && i <= DISCARD_POINTS_FOREGONE) continue;   // action features
+            if (i >= PLAYER_FEATURES + gameState.getPlayerCount() * FEATURES_PER_PLAYER && i < PLAYER_FEATURES + 5 * FEATURES_PER_PLAYER)
+                continue;   // no such player
+            newTuple.put(allFeatures.get(i), asArray[i]);
+        }
+        return newTuple;
+    }
+
+    public void extractFeatures(GameState gameState, int agentID, double[] features) {
+        extractFeatures(gameState, agentID, features, 0);
+    }
+
+    /*
+    Writes all the features of the state (but not of any action) into features, at the positions of allFeatures
+    starting from offset. All other features in this range are set to zero.
+     */
+    public void extractFeatures(GameState gameState, int agentID, double[] features, int offset) {
+        Arrays.fill(features, offset, offset + FEATURE_COUNT, 0.0);
+        features[offset + SCORE] = gameState.getScore() / 25.0;
+        features[offset + INFORMATION] = gameState.getInfomation() / (double) gameState.getStartingInfomation();
+        features[offset + LIVES] = gameState.getLives() / (double) gameState.getStartingLives();
         double cardsInStartingDeck = 50 - gameState.getPlayerCount() * gameState.getHandSize();
         // size of deck included the active player's cards
-        newTuple.put("DECK_LEFT", (gameState.getDeck().getCardsLeft() - cardsNotInHandThatAreInDeck(gameState, agentID)) / cardsInStartingDeck);
-        newTuple.put("MOVES_LEFT", (double) gameState.getMovesLeft() / gameState.getPlayerCount());
-        newTuple.put("UNAVAILABLE_POINTS", pointsAlreadyThrownAway(gameState) / 25.0);
-        newTuple.put("FIVES_ON_TABLE", suitsAtOrHigherThan(5, gameState) / 5.0);
-        newTuple.put("FOURS_ON_TABLE", suitsAtOrHigherThan(4, gameState) / 5.0);
-        newTuple.put("THREES_ON_TABLE", suitsAtOrHigherThan(3, gameState) / 5.0);
-        newTuple.put("TWOS_ON_TABLE", suitsAtOrHigherThan(2, gameState) / 5.0);
-        newTuple.put("ONES_ON_TABLE", suitsAtOrHigherThan(1, gameState) / 5.0);
+        features[offset + DECK_LEFT] = (gameState.getDeck().getCardsLeft() - cardsNotInHandThatAreInDeck(gameState, agentID)) / cardsInStartingDeck;
+        features[offset + MOVES_LEFT] = (double) gameState.getMovesLeft() / gameState.getPlayerCount();
+        features[offset + UNAVAILABLE_POINTS] = pointsAlreadyThrownAway(gameState) / 25.0;
+        features[offset + FIVES_ON_TABLE] = suitsAtOrHigherThan(5, gameState) / 5.0;
+        features[offset + FOURS_ON_TABLE] = suitsAtOrHigherThan(4, gameState) / 5.0;
+        features[offset + THREES_ON_TABLE] = suitsAtOrHigherThan(3, gameState) / 5.0;
+        features[offset + TWOS_ON_TABLE] = suitsAtOrHigherThan(2, gameState) / 5.0;
+        features[offset + ONES_ON_TABLE] = suitsAtOrHigherThan(1, gameState) / 5.0;
 
         for (int featureID = 0; featureID < gameState.getPlayerCount(); featureID++) {
             int featurePlayer = (featureID + agentID) % gameState.getPlayerCount();
@@ -149,15 +215,15 @@ public abstract class StateGatherer {
                 updateOrder(maxPlayablePlusOne, playDiscardProb[1]);
                 updateOrder(maxDiscardable, playDiscardProb[2]);
             }
-            newTuple.put(featureID + "_PLAYABLE", maxPlayable[0]);
-            newTuple.put(featureID + "_PLAYABLE_PLUS_ONE", maxPlayablePlusOne[0]);
-            newTuple.put(featureID + "_DISCARDABLE", maxDiscardable[0]);
-            newTuple.put(featureID + "_INFORMATION", informationForPlayer(gameState, featurePlayer));
+            int playerFeatures = offset + PLAYER_FEATURES + featureID * FEATURES_PER_PLAYER;
+            features[playerFeatures] = maxPlayable[0];
+            features[playerFeatures + 1] = maxPlayablePlusOne[0];
+            features[playerFeatures + 2] = maxDiscardable[0];
+            features[playerFeatures + 3] = informationForPlayer(gameState, featurePlayer);
             if (debug)
                 logger.debug(String.format("Player %d, Playable: %1.2f/%1.2f/%1.2f\tDiscardable: %1.2f/%1.2f/%1.2f",
                         featurePlayer, maxPlayable[0], maxPlayable[1], maxPlayable[2], maxDiscardable[0], maxDiscardable[1], maxDiscardable[2]));
         }
-        return newTuple;
     }
 
     private Map<Integer, List<Card>> getPossibleCardsAssumingHandInDeck(GameState state, int playerID) {
@@ -17,9 +17,9 @@ public class StateGathererActionClassifier extends StateGatherer {
 
     @Override
     public void storeData(MCTSNode node, GameState gameState, int playerID) {
-        double bestScore = node.getBestNode().rolloutScores.getMean();
-        double bestN = node.getBestNode().rolloutScores.getN();
-        double bestVar = Math.pow(node.getBestNode().rolloutScores.getStdDev(), 2);
+        double bestScore = node.getBestNode().getRolloutScores().getMean();
+        double bestN = node.getBestNode().getRolloutScores().getN();
+        double bestVar = Math.pow(node.getBestNode().getRolloutScores().getStdDev(), 2);
         if (bestN < 50) return;
 
         try {
@@ -28,7 +28,7 @@ public class StateGathererActionClassifier extends StateGatherer {
                 double childScore = child.getMeanScore();
                 double childN = child.getVisits();
                 if (childN < 20) continue;
-                double childVar = Math.pow(child.rolloutScores.getStdDev(), 2);
+                double childVar = Math.pow(child.getRolloutScores().getStdDev(), 2);
 
                 if (bestVar == 0.0 || childVar == 0.0) continue;
                 double statistic = (bestScore - childScore) / Math.sqrt(bestVar / bestN + childVar / childN);
@@ -0,0 +1,50 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+/*
+The Java 17 version of DenseKernels (see the Java 8 version in src/main/java for what each method does).
+The Vector API is an incubator module, so is only there if the JVM is started with
+--add-modules jdk.incubator.vector; if it is not (or -Dhopshackle.vector=false is set), this uses the same scalar
+loops as on Java 8. VectorKernels is only loaded if the module is present.
+ */
+public final class DenseKernels {
+
+    private static final boolean VECTORISED = !"false".equals(System.getProperty("hopshackle.vector"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private DenseKernels() {
+    }
+
+    public static boolean isVectorised() {
+        return VECTORISED;
+    }
+
+    public static double dot(double[] weights, int offset, double[] input, int length) {
+        if (VECTORISED) return VectorKernels.dot(weights, offset, input, length);
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static double dot(float[] weights, int offset, float[] input, int length) {
+        if (VECTORISED) return VectorKernels.dot(weights, offset, input, length);
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static double dot(byte[] weights, int offset, float[] input, int length) {
+        if (VECTORISED) return VectorKernels.dot(weights, offset, input, length);
+        return ScalarKernels.dot(weights, offset, input, length);
+    }
+
+    public static void relu(double[] activations, int length) {
+        if (VECTORISED) VectorKernels.relu(activations, length);
+        else ScalarKernels.relu(activations, length);
+    }
+
+    public static void rectifiedTanh(double[] activations, int length) {
+        if (VECTORISED) VectorKernels.rectifiedTanh(activations, length);
+        else ScalarKernels.rectifiedTanh(activations, length);
+    }
+
+    public static void exp(double[] activations, int length) {
+        if (VECTORISED) VectorKernels.exp(activations, length);
+        else ScalarKernels.exp(activations, length);
+    }
+}
@@ -0,0 +1,100 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import jdk.incubator.vector.*;
+
+/*
+DenseKernels using the widest vectors the hardware has, with a scalar loop for whatever is left over at the end
+of each array. The dot product uses fused multiply-adds, so can differ from the scalar one in the last bits.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+    // as many bytes as there are floats in FLOAT_SPECIES, so that one load of weights widens to one vector of floats
+    private static final VectorSpecies<Byte> BYTE_SPECIES = byteSpecies();
+
+    private VectorKernels() {
+    }
+
+    /*
+    null if there is no vector shape that small: with 128-bit vectors (e.g. SSE or NEON) there are four floats, and so
+    four bytes, but the smallest vector is 64 bits. The byte dot product is then the scalar one.
+     */
+    private static VectorSpecies<Byte> byteSpecies() {
+        try {
+            VectorSpecies<Byte> retValue = VectorSpecies.of(byte.class, VectorShape.forBitSize(FLOAT_SPECIES.length() * Byte.SIZE));
+            return retValue.length() == FLOAT_SPECIES.length() ? retValue : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static double dot(double[] weights, int offset, double[] input, int length) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector x = DoubleVector.fromArray(SPECIES, input, i);
+            DoubleVector w = DoubleVector.fromArray(SPECIES, weights, offset + i);
+            sum = x.fma(w, sum);
+        }
+        double retValue = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            retValue += input[i] * weights[offset + i];
+        return retValue;
+    }
+
+    static double dot(float[] weights, int offset, float[] input, int length) {
+        FloatVector sum = FloatVector.zero(FLOAT_SPECIES);
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector x = FloatVector.fromArray(FLOAT_SPECIES, input, i);
+            FloatVector w = FloatVector.fromArray(FLOAT_SPECIES, weights, offset + i);
+            sum = x.fma(w, sum);
+        }
+        float retValue = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            retValue += input[i] * weights[offset + i];
+        return retValue;
+    }
+
+    static double dot(byte[] weights, int offset, float[] input, int length) {
+        if (BYTE_SPECIES == null)
+            return ScalarKernels.dot(weights, offset, input, length);
+        FloatVector sum = FloatVector.zero(FLOAT_SPECIES);
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector x = FloatVector.fromArray(FLOAT_SPECIES, input, i);
+            FloatVector w = (FloatVector) ByteVector.fromArray(BYTE_SPECIES, weights, offset + i)
+                    .convertShape(VectorOperators.B2F, FLOAT_SPECIES, 0);
+            sum = x.fma(w, sum);
+        }
+        float retValue = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            retValue += input[i] * weights[offset + i];
+        return retValue;
+    }
+
+    static void relu(double[] activations, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, activations, i).max(0.0).intoArray(activations, i);
+        for (; i < length; i++)
+            activations[i] = Math.max(0, activations[i]);
+    }
+
+    static void rectifiedTanh(double[] activations, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, activations, i).lanewise(VectorOperators.TANH).max(0.0).intoArray(activations, i);
+        for (; i < length; i++)
+            activations[i] = Math.max(0, Math.tanh(activations[i]));
+    }
+
+    static void exp(double[] activations, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, activations, i).lanewise(VectorOperators.EXP).intoArray(activations, i);
+        for (; i < length; i++)
+            activations[i] = Math.exp(activations[i]);
+    }
+}
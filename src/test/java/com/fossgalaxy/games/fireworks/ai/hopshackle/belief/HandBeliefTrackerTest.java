@@ -0,0 +1,78 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.belief;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.ActionCodec;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.ConventionUtils;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.rules.Conventions;
+import com.fossgalaxy.games.fireworks.ai.iggi.Utils;
+import com.fossgalaxy.games.fireworks.state.*;
+import com.fossgalaxy.games.fireworks.state.actions.Action;
+import com.fossgalaxy.games.fireworks.state.events.GameEvent;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class HandBeliefTrackerTest extends TestCase {
+
+    private static final int[] HAND_SIZE = {-1, -1, 5, 5, 4, 4};
+    private static final Conventions[] CONVENTIONS = {
+            new Conventions("NN"), new Conventions("YN"), new Conventions("NY"), new Conventions("YY")};
+
+    /*
+    Plays seeded games with the real engine, choosing moves at random, and checks at every turn that the tracker gives
+    each player exactly the same possible cards as ConventionUtils does from the history, with and without each of
+    the conventions
+     */
+    public void testMatchesConventionUtilsOverRecordedGames() {
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            for (int seed = 0; seed < 20; seed++) {
+                GameState state = new BasicState(HAND_SIZE[players], players);
+                state.init((long) seed);
+                HandBeliefTracker tracker = new HandBeliefTracker(players);
+                Random rnd = new Random(seed);
+                int player = 0;
+                while (!state.isGameOver()) {
+                    assertTrue(tracker.isSynchronisedWith(state));
+                    for (int p = 0; p < players; p++) {
+                        for (Conventions conv : CONVENTIONS) {
+                            String where = String.format("%d players, seed %d, turn %d, player %d, conventions %b/%b",
+                                    players, seed, state.getTurnNumber(), p, conv.singleTouchIsPlayable, conv.redYellowMeansMostRecentIsPlayable);
+                            assertSamePossibleCards(where, p, state, tracker, conv);
+                        }
+                    }
+
+                    long legal = ActionCodec.toMask(Utils.generateActions(player, state));
+                    int choice = rnd.nextInt(Long.bitCount(legal));
+                    for (int i = 0; i < choice; i++)
+                        legal &= legal - 1;
+                    Action action = ActionCodec.decode(Long.numberOfTrailingZeros(legal));
+                    tracker.onTurn(new ArrayList<GameEvent>(action.apply(player, state)));
+                    player = (player + 1) % players;
+                }
+            }
+        }
+    }
+
+    private static void assertSamePossibleCards(String where, int player, GameState state, HandBeliefTracker tracker, Conventions conv) {
+        Hand hand = state.getHand(player);
+        // as in ParticleBelief, a player's own cards are among those they might hold
+        List<Card> toChooseFrom = state.getDeck().toList();
+        for (int slot = 0; slot < hand.getSize(); slot++) {
+            if (hand.getCard(slot) != null) toChooseFrom.add(hand.getCard(slot));
+        }
+        Map<Integer, List<Card>> expected = ConventionUtils.bindBlindCardWithConventions(player, hand, toChooseFrom, state, conv);
+        Map<Integer, List<Card>> actual = tracker.possibleCards(player, hand.getSize(), toChooseFrom, conv);
+        for (int slot = 0; slot < hand.getSize(); slot++) {
+            if (!hand.hasCard(slot)) continue;
+            assertEquals(where + ", slot " + slot, codes(expected.get(slot)), codes(actual.get(slot)));
+        }
+    }
+
+    private static List<Integer> codes(List<Card> cards) {
+        List<Integer> retValue = new ArrayList<>();
+        for (Card c : cards)
+            retValue.add(SimulationState.code(c));
+        Collections.sort(retValue);
+        return retValue;
+    }
+}
@@ -0,0 +1,102 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchedEvaluatorTest extends TestCase {
+
+    /*
+    Values each row as the sum of its entries, and counts how many times it is called
+     */
+    private static final class SumModel implements NNEvaluator {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public double[][] evaluate(double[][] rows) {
+            calls.incrementAndGet();
+            double[][] retValue = new double[rows.length][1];
+            for (int r = 0; r < rows.length; r++)
+                for (double d : rows[r]) retValue[r][0] += d;
+            return retValue;
+        }
+    }
+
+    private static double[][] rows(int first, int count) {
+        double[][] retValue = new double[count][];
+        for (int r = 0; r < count; r++)
+            retValue[r] = new double[]{first + r, 0.5};
+        return retValue;
+    }
+
+    public void testEachCallerGetsItsOwnResults() throws Exception {
+        SumModel model = new SumModel();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BatchedEvaluator evaluator = new BatchedEvaluator(model, executor, 16);
+            // the same evaluator is used for several searches, as it is for several moves in a game
+            for (int search = 0; search < 3; search++) {
+                evaluator.start();
+                List<Future<Boolean>> callers = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int thread = t;
+                    callers.add(executor.submit(() -> {
+                        for (int call = 0; call < 100; call++) {
+                            int first = thread * 1000 + call;
+                            double[][] result = evaluator.evaluate(rows(first, 1 + call % 5));
+                            if (result.length != 1 + call % 5) return false;
+                            for (int r = 0; r < result.length; r++)
+                                if (result[r][0] != first + r + 0.5) return false;
+                        }
+                        return true;
+                    }));
+                }
+                for (Future<Boolean> caller : callers)
+                    assertTrue(caller.get(10, TimeUnit.SECONDS));
+                evaluator.stop();
+            }
+            // once stopped, the caller values its own rows
+            int callsBefore = model.calls.get();
+            assertEquals(3.5, evaluator.evaluate(rows(3, 1))[0][0], 0.0);
+            assertEquals(callsBefore + 1, model.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testStopDoesNotWaitForAPoll() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BatchedEvaluator evaluator = new BatchedEvaluator(new SumModel(), executor);
+            for (int i = 0; i < 20; i++) {
+                evaluator.start();
+                long start = System.nanoTime();
+                evaluator.stop();
+                assertTrue("stop took " + (System.nanoTime() - start) / 1e6 + "ms", System.nanoTime() - start < 1_000_000_000L);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailureReachesTheCaller() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BatchedEvaluator evaluator = new BatchedEvaluator(rows -> {
+                throw new IllegalStateException("bad model");
+            }, executor);
+            evaluator.start();
+            try {
+                evaluator.evaluate(rows(0, 2));
+                fail("Expected an AssertionError");
+            } catch (AssertionError e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            evaluator.stop();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/*
+The scalar kernels are used on Java 8, and on later versions without the Vector API (or, for the byte dot product, on
+hardware with only 128-bit vectors); DenseKernels is whichever version is in use
+ */
+public class DenseKernelsTest extends TestCase {
+
+    // lengths either side of the unrolled (and vector) loop bounds, so that the loop left over at the end is covered
+    private static final int[] LENGTHS = {0, 1, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 33, 38, 64, 100};
+    private static final int OFFSET = 5;
+
+    private static float[] floats(Random rnd, int length) {
+        float[] retValue = new float[length];
+        for (int i = 0; i < length; i++) retValue[i] = (float) rnd.nextGaussian();
+        return retValue;
+    }
+
+    public void testScalarByteDot() {
+        Random rnd = new Random(1);
+        for (int length : LENGTHS) {
+            byte[] weights = new byte[OFFSET + length];
+            rnd.nextBytes(weights);
+            float[] input = floats(rnd, length);
+            double expected = 0.0;
+            for (int i = 0; i < length; i++)
+                expected += (double) weights[OFFSET + i] * input[i];
+            assertEquals("length " + length, expected, ScalarKernels.dot(weights, OFFSET, input, length), 1e-3);
+            assertEquals("length " + length, expected, DenseKernels.dot(weights, OFFSET, input, length), 1e-3);
+        }
+    }
+
+    public void testScalarFloatDot() {
+        Random rnd = new Random(2);
+        for (int length : LENGTHS) {
+            float[] weights = floats(rnd, OFFSET + length);
+            float[] input = floats(rnd, length);
+            double expected = 0.0;
+            for (int i = 0; i < length; i++)
+                expected += (double) weights[OFFSET + i] * input[i];
+            assertEquals("length " + length, expected, ScalarKernels.dot(weights, OFFSET, input, length), 1e-4);
+            assertEquals("length " + length, expected, DenseKernels.dot(weights, OFFSET, input, length), 1e-4);
+        }
+    }
+
+    public void testDoubleDotAndActivations() {
+        Random rnd = new Random(3);
+        for (int length : LENGTHS) {
+            double[] weights = new double[OFFSET + length], input = new double[length];
+            for (int i = 0; i < weights.length; i++) weights[i] = rnd.nextGaussian();
+            double expected = 0.0;
+            for (int i = 0; i < length; i++) {
+                input[i] = rnd.nextGaussian();
+                expected += weights[OFFSET + i] * input[i];
+            }
+            assertEquals("length " + length, expected, DenseKernels.dot(weights, OFFSET, input, length), 1e-9);
+
+            // only the first length entries are changed
+            double[] activations = new double[length + 1];
+            for (int i = 0; i <= length; i++) activations[i] = rnd.nextGaussian();
+            double[] relu = activations.clone(), tanh = activations.clone(), exp = activations.clone();
+            DenseKernels.relu(relu, length);
+            DenseKernels.rectifiedTanh(tanh, length);
+            DenseKernels.exp(exp, length);
+            for (int i = 0; i < length; i++) {
+                assertEquals(Math.max(0, activations[i]), relu[i], 0.0);
+                assertEquals(Math.max(0, Math.tanh(activations[i])), tanh[i], 1e-12);
+                assertEquals(Math.exp(activations[i]), exp[i], 1e-12 * Math.exp(activations[i]));
+            }
+            assertEquals(activations[length], relu[length], 0.0);
+            assertEquals(activations[length], tanh[length], 0.0);
+            assertEquals(activations[length], exp[length], 0.0);
+        }
+    }
+}
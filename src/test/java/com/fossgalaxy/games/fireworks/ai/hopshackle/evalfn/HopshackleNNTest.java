@@ -0,0 +1,243 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.HopshackleNN.ACTIVATION;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class HopshackleNNTest extends TestCase {
+
+    private static final int INPUTS = 40;
+
+    /*
+    A network with random weights and input normalisation, together with the weights as given to it, so that we can
+    check its compiled forward pass against one done the obvious way
+     */
+    private static final class Network {
+        final ACTIVATION[] layers;
+        final double[][][] weights;
+        final double[][] biases;
+        final double[] means, std;
+        final HopshackleNN nn;
+
+        Network(long seed, ACTIVATION[] layers, int... widths) {
+            Random rnd = new Random(seed);
+            this.layers = layers;
+            weights = new double[layers.length][][];
+            biases = new double[layers.length][];
+            for (int layer = 0; layer < layers.length; layer++) {
+                weights[layer] = new double[widths[layer + 1]][widths[layer]];
+                biases[layer] = new double[widths[layer + 1]];
+                for (int neuron = 0; neuron < widths[layer + 1]; neuron++) {
+                    for (int i = 0; i < widths[layer]; i++)
+                        weights[layer][neuron][i] = rnd.nextGaussian() / Math.sqrt(widths[layer]);
+                    biases[layer][neuron] = 0.1 * rnd.nextGaussian();
+                }
+            }
+            means = new double[widths[0]];
+            std = new double[widths[0]];
+            for (int i = 0; i < widths[0]; i++) {
+                means[i] = rnd.nextGaussian();
+                std[i] = 0.5 + rnd.nextDouble() * 2.0;
+            }
+            nn = new HopshackleNN(layers, weights, biases, means, std);
+        }
+
+        double[] baseline(double[] data) {
+            double[] input = new double[data.length];
+            for (int i = 0; i < data.length; i++)
+                input[i] = (data[i] - means[i]) / std[i];
+            for (int layer = 0; layer < layers.length; layer++) {
+                double[] output = new double[weights[layer].length];
+                for (int neuron = 0; neuron < output.length; neuron++) {
+                    double total = biases[layer][neuron];
+                    for (int i = 0; i < input.length; i++)
+                        total += weights[layer][neuron][i] * input[i];
+                    output[neuron] = total;
+                }
+                switch (layers[layer]) {
+                    case RELU:
+                        for (int i = 0; i < output.length; i++) output[i] = Math.max(0, output[i]);
+                        break;
+                    case RECTIFIED_TANH:
+                        for (int i = 0; i < output.length; i++) output[i] = Math.max(0, Math.tanh(output[i]));
+                        break;
+                    case SOFTMAX:
+                        double total = 0.0;
+                        for (int i = 0; i < output.length; i++) {
+                            output[i] = Math.exp(output[i]);
+                            total += output[i];
+                        }
+                        for (int i = 0; i < output.length; i++) output[i] /= total;
+                        break;
+                }
+                input = output;
+            }
+            return input;
+        }
+    }
+
+    // one output, as used to value a state
+    private static Network valueNetwork(long seed) {
+        return new Network(seed, new ACTIVATION[]{ACTIVATION.RELU, ACTIVATION.RECTIFIED_TANH, ACTIVATION.RELU}, INPUTS, 24, 12, 1);
+    }
+
+    // a softmax over several outputs, as used for the opponent models
+    private static Network policyNetwork(long seed) {
+        return new Network(seed, new ACTIVATION[]{ACTIVATION.RELU, ACTIVATION.SOFTMAX}, INPUTS, 16, 6);
+    }
+
+    private static double[][] randomInputs(long seed, int rows) {
+        Random rnd = new Random(seed);
+        double[][] retValue = new double[rows][INPUTS];
+        for (double[] row : retValue) {
+            // the features are often zero
+            for (int i = 0; i < INPUTS; i++)
+                row[i] = rnd.nextInt(4) == 0 ? 0.0 : rnd.nextGaussian() * 2.0;
+        }
+        return retValue;
+    }
+
+    private static void assertClose(String where, double[] expected, double[] actual, double tolerance) {
+        assertEquals(where, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(where + ", output " + i, expected[i], actual[i], tolerance);
+    }
+
+    public void testProcessMatchesBaseline() {
+        for (long seed = 0; seed < 5; seed++) {
+            for (Network net : new Network[]{valueNetwork(seed), policyNetwork(seed)}) {
+                for (double[] row : randomInputs(seed + 100, 50))
+                    assertClose("seed " + seed, net.baseline(row), net.nn.process(row), 1e-9);
+            }
+        }
+    }
+
+    public void testValueIsFirstOutput() {
+        Network net = valueNetwork(1);
+        for (double[] row : randomInputs(7, 50))
+            assertEquals(net.baseline(row)[0], net.nn.value(row), 1e-9);
+    }
+
+    /*
+    process() returns a new array, while value() and the forward pass reuse scratch buffers: so an earlier result must
+    not be changed by later calls
+     */
+    public void testProcessResultsAreNotOverwritten() {
+        Network net = policyNetwork(2);
+        double[][] rows = randomInputs(8, 20);
+        double[][] results = new double[rows.length][];
+        for (int r = 0; r < rows.length; r++) {
+            results[r] = net.nn.process(rows[r]);
+            net.nn.value(rows[(r + 1) % rows.length]);
+        }
+        for (int r = 0; r < rows.length; r++)
+            assertClose("row " + r, net.baseline(rows[r]), results[r], 1e-9);
+    }
+
+    public void testProcessBatchMatchesProcess() {
+        for (Network net : new Network[]{valueNetwork(3), policyNetwork(3)}) {
+            for (HopshackleNN.Precision precision : HopshackleNN.Precision.values()) {
+                HopshackleNN nn = net.nn.withPrecision(precision);
+                double[][] rows = randomInputs(9, 33);
+                double[][] batch = nn.processBatch(rows);
+                assertEquals(rows.length, batch.length);
+                for (int r = 0; r < rows.length; r++)
+                    assertClose(precision + ", row " + r, nn.process(rows[r]), batch[r], 1e-9);
+            }
+        }
+    }
+
+    public void testLowerPrecisionsAreClose() {
+        for (Network net : new Network[]{valueNetwork(4), policyNetwork(4)}) {
+            HopshackleNN asFloat = net.nn.withPrecision(HopshackleNN.Precision.FLOAT);
+            HopshackleNN asInt8 = net.nn.withPrecision(HopshackleNN.Precision.INT8);
+            for (double[] row : randomInputs(10, 50)) {
+                double[] expected = net.baseline(row);
+                assertClose("FLOAT", expected, asFloat.process(row), 1e-4);
+                assertClose("INT8", expected, asInt8.process(row), 0.05);
+            }
+            assertTrue(asFloat.getWeightBytes() * 2 == net.nn.getWeightBytes());
+            assertTrue(asInt8.getWeightBytes() < asFloat.getWeightBytes());
+        }
+    }
+
+    /*
+    Some features hardly vary, and so have a tiny standard deviation. Folded into the weights this would swamp the
+    others going into each neuron, so INT8 must normalise the inputs instead
+     */
+    public void testInt8WithNearlyConstantInput() {
+        for (Network net : new Network[]{valueNetwork(13), policyNetwork(13)}) {
+            net.std[0] = 1e-5;
+            HopshackleNN asInt8 = new HopshackleNN(net.layers, net.weights, net.biases, net.means, net.std)
+                    .withPrecision(HopshackleNN.Precision.INT8);
+            Random rnd = new Random(13);
+            for (double[] row : randomInputs(13, 50)) {
+                row[0] = net.means[0] + rnd.nextGaussian() * net.std[0];
+                assertClose("INT8", net.baseline(row), asInt8.process(row), 0.05);
+            }
+        }
+    }
+
+    /*
+    With large weights the softmax inputs are far beyond where exp() overflows; the outputs must still be a
+    distribution, and must not change when a constant is added to every output bias
+     */
+    public void testSoftmaxDoesNotOverflow() {
+        Network net = policyNetwork(12);
+        for (double[] neuron : net.weights[1])
+            for (int i = 0; i < neuron.length; i++) neuron[i] *= 1000.0;
+        for (int j = 0; j < net.biases[1].length; j++) net.biases[1][j] += 5000.0;
+        HopshackleNN large = new HopshackleNN(net.layers, net.weights, net.biases, net.means, net.std);
+        for (int j = 0; j < net.biases[1].length; j++) net.biases[1][j] -= 5000.0;
+        HopshackleNN shifted = new HopshackleNN(net.layers, net.weights, net.biases, net.means, net.std);
+        for (HopshackleNN.Precision precision : HopshackleNN.Precision.values()) {
+            for (double[] row : randomInputs(12, 50)) {
+                double[] output = large.withPrecision(precision).process(row);
+                double total = 0.0;
+                for (double p : output) {
+                    assertFalse(precision + " gave " + p, Double.isNaN(p) || p < 0.0 || p > 1.0);
+                    total += p;
+                }
+                assertEquals(precision.toString(), 1.0, total, 1e-9);
+                assertClose(precision.toString(), shifted.withPrecision(precision).process(row), output, 1e-6);
+            }
+        }
+    }
+
+    public void testThreadsDoNotShareScratch() throws InterruptedException {
+        Network net = valueNetwork(5);
+        double[][] rows = randomInputs(11, 200);
+        double[] expected = new double[rows.length];
+        for (int r = 0; r < rows.length; r++)
+            expected[r] = net.baseline(rows[r])[0];
+        boolean[] failed = new boolean[4];
+        Thread[] threads = new Thread[failed.length];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int repeat = 0; repeat < 50; repeat++) {
+                    for (int r = 0; r < rows.length; r++) {
+                        int row = (r + thread * 37) % rows.length;
+                        if (Math.abs(net.nn.value(rows[row]) - expected[row]) > 1e-9)
+                            failed[thread] = true;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertFalse("thread " + t, failed[t]);
+        }
+    }
+
+    public void testWrongInputCountIsRejected() {
+        try {
+            valueNetwork(6).nn.process(new double[INPUTS - 1]);
+        } catch (AssertionError e) {
+            return;
+        }
+        fail("Expected an AssertionError");
+    }
+}
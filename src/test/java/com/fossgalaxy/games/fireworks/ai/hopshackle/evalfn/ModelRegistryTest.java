@@ -0,0 +1,242 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.HopshackleNN.ACTIVATION;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+public class ModelRegistryTest extends TestCase {
+
+    private static final int INPUTS = 12;
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("models");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        File[] files = directory.toFile().listFiles();
+        if (files != null)
+            for (File f : files) f.delete();
+        Files.deleteIfExists(directory);
+    }
+
+    private static HopshackleNN randomNetwork(long seed) {
+        return randomNetwork(seed, 1.0);
+    }
+
+    /*
+    The weights are scaled so that each layer's outputs have a standard deviation of about weightScale
+     */
+    private static HopshackleNN randomNetwork(long seed, double weightScale) {
+        Random rnd = new Random(seed);
+        ACTIVATION[] layers = {ACTIVATION.RELU, ACTIVATION.SOFTMAX};
+        int[] widths = {INPUTS, 8, 3};
+        double[][][] weights = new double[layers.length][][];
+        double[][] biases = new double[layers.length][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            weights[layer] = new double[widths[layer + 1]][widths[layer]];
+            biases[layer] = new double[widths[layer + 1]];
+            for (int neuron = 0; neuron < widths[layer + 1]; neuron++) {
+                for (int i = 0; i < widths[layer]; i++)
+                    weights[layer][neuron][i] = rnd.nextGaussian() * weightScale / Math.sqrt(widths[layer]);
+                biases[layer][neuron] = rnd.nextGaussian();
+            }
+        }
+        double[] means = new double[INPUTS];
+        double[] std = new double[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            means[i] = rnd.nextGaussian();
+            std[i] = 0.5 + rnd.nextDouble();
+        }
+        return new HopshackleNN(layers, weights, biases, means, std);
+    }
+
+    private static double[] input(int seed) {
+        Random rnd = new Random(seed);
+        double[] retValue = new double[INPUTS];
+        for (int i = 0; i < INPUTS; i++) retValue[i] = rnd.nextGaussian();
+        return retValue;
+    }
+
+    private static void assertSameNetwork(HopshackleNN expected, HopshackleNN actual) {
+        assertEquals(expected.getInputCount(), actual.getInputCount());
+        for (int i = 0; i < expected.getInputCount(); i++) {
+            assertEquals(expected.getInputMean(i), actual.getInputMean(i), 0.0);
+            assertEquals(expected.getInputStd(i), actual.getInputStd(i), 0.0);
+        }
+        for (int seed = 0; seed < 20; seed++) {
+            double[] e = expected.process(input(seed)), a = actual.process(input(seed));
+            assertEquals(e.length, a.length);
+            for (int i = 0; i < e.length; i++)
+                assertEquals(e[i], a[i], 0.0);
+        }
+    }
+
+    private static byte[] toBinary(HopshackleNN nn) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        nn.writeBinary(bytes);
+        return bytes.toByteArray();
+    }
+
+    public void testBinaryRoundTrip() throws IOException {
+        HopshackleNN original = randomNetwork(1);
+        byte[] binary = toBinary(original);
+        assertTrue(HopshackleNN.isBinary(ByteBuffer.wrap(binary)));
+        assertSameNetwork(original, HopshackleNN.createFromBinary(ByteBuffer.wrap(binary)));
+        assertSameNetwork(original, HopshackleNN.createFromStream(new ByteArrayInputStream(binary)));
+        // and writing out what was read in gives the same bytes
+        assertTrue(java.util.Arrays.equals(binary, toBinary(HopshackleNN.createFromBinary(ByteBuffer.wrap(binary)))));
+    }
+
+    public void testJSONAndBinaryAgree() throws IOException {
+        HopshackleNN original = randomNetwork(2);
+        Path json = directory.resolve("agree.params");
+        original.writeToFile(json.toString());
+        HopshackleNN fromJSON = HopshackleNN.createFromJSON(new String(Files.readAllBytes(json), "UTF-8"));
+        assertSameNetwork(original, fromJSON);
+        assertSameNetwork(fromJSON, HopshackleNN.createFromBinary(ByteBuffer.wrap(toBinary(fromJSON))));
+    }
+
+    /*
+    We write a different network to the .bin than to the JSON, so that we can tell which one was loaded. The .bin
+    records the hash of this JSON if matching, and otherwise of some other JSON (as when it is left over from an older
+    model); its modification time is set the other way round, to show that this is not what decides
+     */
+    private Path writePair(String name, boolean matching) throws IOException {
+        Path json = directory.resolve(name + ".params");
+        randomNetwork(3).writeToFile(json.toString());
+        byte[] jsonBytes = Files.readAllBytes(json);
+        Path binary = directory.resolve(name + ".bin");
+        long hash = HopshackleNN.sourceHash(matching ? jsonBytes : "{}".getBytes("UTF-8"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        randomNetwork(4).writeBinary(bytes, hash);
+        Files.write(binary, bytes.toByteArray());
+        long jsonTime = Files.getLastModifiedTime(json).toMillis();
+        Files.setLastModifiedTime(binary, FileTime.fromMillis(jsonTime + (matching ? -60000 : 60000)));
+        return json;
+    }
+
+    public void testStaleBinaryIsIgnored() throws IOException {
+        Path json = writePair("stale", false);
+        assertSameNetwork(randomNetwork(3), ModelRegistry.get(json.toString()));
+    }
+
+    public void testMatchingBinaryIsUsed() throws IOException {
+        Path json = writePair("matching", true);
+        assertSameNetwork(randomNetwork(4), ModelRegistry.get(json.toString()));
+    }
+
+    public void testBinaryWithoutSourceIsIgnored() throws IOException {
+        Path json = directory.resolve("unknown.params");
+        randomNetwork(3).writeToFile(json.toString());
+        Files.write(directory.resolve("unknown.bin"), toBinary(randomNetwork(4)));
+        assertSameNetwork(randomNetwork(3), ModelRegistry.get(json.toString()));
+    }
+
+    public void testNamedBinaryIsUsed() throws IOException {
+        Path json = writePair("named", false);
+        assertSameNetwork(randomNetwork(4), ModelRegistry.get(ModelRegistry.binaryLocation(json.toString())));
+    }
+
+    /*
+    Inside a jar every entry has the jar's modification time, so only the hash can tell a matching .bin from a stale one
+     */
+    public void testResourcesInAJar() throws IOException {
+        Path jar = directory.resolve("models.jar");
+        try (java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(Files.newOutputStream(jar))) {
+            for (String name : new String[]{"matching", "stale"}) {
+                Path json = writePair(name, name.equals("matching"));
+                for (Path entry : new Path[]{json, directory.resolve(name + ".bin")}) {
+                    out.putNextEntry(new java.util.jar.JarEntry("models/" + entry.getFileName()));
+                    out.write(Files.readAllBytes(entry));
+                    out.closeEntry();
+                }
+            }
+        }
+        try (java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[]{jar.toUri().toURL()}, null)) {
+            assertSameNetwork(randomNetwork(4), ModelRegistry.loadResource(loader, "models/matching.params"));
+            assertSameNetwork(randomNetwork(3), ModelRegistry.loadResource(loader, "models/stale.params"));
+            assertSameNetwork(randomNetwork(4), ModelRegistry.loadResource(loader, "models/stale.bin"));
+        }
+    }
+
+    public void testConverterRecordsTheSource() throws IOException {
+        Path json = directory.resolve("converted.params");
+        randomNetwork(8).writeToFile(json.toString());
+        ModelConverter.main(new String[]{directory.toString()});
+        ByteBuffer binary = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("converted.bin")));
+        assertEquals(HopshackleNN.sourceHash(Files.readAllBytes(json)), HopshackleNN.sourceHashOf(binary));
+        assertSameNetwork(randomNetwork(8), HopshackleNN.createFromBinary(binary));
+    }
+
+    public void testModelsAreSharedAndPrecisionsKeptApart() throws IOException {
+        Path json = directory.resolve("shared.params");
+        randomNetwork(5).writeToFile(json.toString());
+        HopshackleNN model = ModelRegistry.get(json.toString());
+        assertSame(model, ModelRegistry.get(json.toString()));
+        HopshackleNN asInt8 = ModelRegistry.get(json + "#INT8");
+        assertEquals(HopshackleNN.Precision.INT8, asInt8.getPrecision());
+        assertSame(asInt8, ModelRegistry.get(json.toString(), HopshackleNN.Precision.INT8));
+        assertEquals(HopshackleNN.Precision.DOUBLE, model.getPrecision());
+    }
+
+    /*
+    With very large weights the softmax is nearly one-hot, and the INT8 weights are enough to change which output wins
+     */
+    public void testInaccuratePrecisionIsRejected() throws IOException {
+        Path json = directory.resolve("inaccurate.params");
+        randomNetwork(7, 100.0).writeToFile(json.toString());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            // and a rejected model is not kept, so asking again fails again
+            try {
+                ModelRegistry.get(json + "#INT8");
+                fail("Expected an AssertionError");
+            } catch (AssertionError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("not accurate enough"));
+            }
+        }
+        assertEquals(HopshackleNN.Precision.FLOAT, ModelRegistry.get(json + "#FLOAT").getPrecision());
+        assertEquals(HopshackleNN.Precision.DOUBLE, ModelRegistry.get(json.toString()).getPrecision());
+    }
+
+    /*
+    The low bits of the hash a ConcurrentHashMap uses to choose the bin for a key (for any table of up to 2^16 bins)
+     */
+    private static int bin(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & 0xFFFF;
+    }
+
+    /*
+    Asking for a lower precision first has to load the DOUBLE model as well, which is then shared. We choose a name for
+    which the two keys fall in the same bin of the registry's map, as this is when loading the DOUBLE model from inside
+    computeIfAbsent fails (on Java 9 or later with "Recursive update")
+     */
+    public void testLowerPrecisionBeforeDouble() throws IOException {
+        Path json = null;
+        for (int i = 0; json == null; i++) {
+            Path candidate = directory.resolve("floatFirst" + i + ".params");
+            if (bin(candidate.toString()) == bin(candidate + "#" + HopshackleNN.Precision.FLOAT))
+                json = candidate;
+        }
+        randomNetwork(6).writeToFile(json.toString());
+        HopshackleNN asFloat = ModelRegistry.get(json + "#FLOAT");
+        assertEquals(HopshackleNN.Precision.FLOAT, asFloat.getPrecision());
+        HopshackleNN model = ModelRegistry.get(json.toString());
+        assertEquals(HopshackleNN.Precision.DOUBLE, model.getPrecision());
+        assertSame(asFloat, ModelRegistry.get(json.toString(), HopshackleNN.Precision.FLOAT));
+        for (int seed = 0; seed < 20; seed++) {
+            double[] expected = model.process(input(seed)), actual = asFloat.process(input(seed));
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i], actual[i], 1e-4);
+        }
+    }
+}
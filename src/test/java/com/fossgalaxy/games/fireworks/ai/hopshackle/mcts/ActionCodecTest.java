@@ -0,0 +1,85 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.state.CardColour;
+import com.fossgalaxy.games.fireworks.state.actions.*;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ActionCodecTest extends TestCase {
+
+    public void testIdsFitInALong() {
+        assertTrue(ActionCodec.ACTION_COUNT <= 64);
+        assertEquals(ActionCodec.MAX_HAND_SIZE * 2 + ActionCodec.MAX_PLAYERS * (ActionCodec.COLOURS + ActionCodec.MAX_VALUE),
+                ActionCodec.ACTION_COUNT);
+    }
+
+    public void testEveryIdDecodesToADistinctAction() {
+        Set<Action> seen = new HashSet<>();
+        for (int id = 0; id < ActionCodec.ACTION_COUNT; id++) {
+            Action action = ActionCodec.decode(id);
+            assertNotNull("No action for id " + id, action);
+            assertEquals(id, ActionCodec.encode(action));
+            assertTrue("Duplicate action " + action, seen.add(action));
+        }
+    }
+
+    public void testEncodeDecodeRoundTrip() {
+        for (Action action : allActions()) {
+            int id = ActionCodec.encode(action);
+            assertTrue(id >= 0 && id < ActionCodec.ACTION_COUNT);
+            assertEquals(action, ActionCodec.decode(id));
+            assertSame(ActionCodec.decode(id), ActionCodec.intern(action));
+        }
+    }
+
+    public void testMaskRoundTrip() {
+        List<Action> actions = allActions();
+        long mask = ActionCodec.toMask(actions);
+        assertEquals(ActionCodec.ACTION_COUNT, Long.bitCount(mask));
+        assertEquals(new HashSet<>(actions), new HashSet<>(ActionCodec.fromMask(mask)));
+
+        List<Action> some = new ArrayList<>();
+        some.add(new PlayCard(3));
+        some.add(new TellColour(4, CardColour.WHITE));
+        some.add(new TellValue(4, 5));
+        assertEquals(some, ActionCodec.fromMask(ActionCodec.toMask(some)));
+    }
+
+    public void testAllActionsMask() {
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            int handSize = players < 4 ? 5 : 4;
+            int tells = (players - 1) * (ActionCodec.COLOURS + ActionCodec.MAX_VALUE);
+            for (int player = 0; player < players; player++) {
+                long withDiscards = ActionCodec.allActionsMask(player, players, 7);
+                assertEquals(handSize * 2 + tells, Long.bitCount(withDiscards));
+                long noDiscards = ActionCodec.allActionsMask(player, players, 8);
+                assertEquals(handSize + tells, Long.bitCount(noDiscards));
+                for (Action action : ActionCodec.fromMask(withDiscards)) {
+                    if (action instanceof TellColour)
+                        assertTrue(((TellColour) action).player != player && ((TellColour) action).player < players);
+                    if (action instanceof TellValue)
+                        assertTrue(((TellValue) action).player != player && ((TellValue) action).player < players);
+                }
+            }
+        }
+    }
+
+    private static List<Action> allActions() {
+        List<Action> retValue = new ArrayList<>();
+        for (int slot = 0; slot < ActionCodec.MAX_HAND_SIZE; slot++) {
+            retValue.add(new PlayCard(slot));
+            retValue.add(new DiscardCard(slot));
+        }
+        for (int player = 0; player < ActionCodec.MAX_PLAYERS; player++) {
+            for (CardColour colour : CardColour.values())
+                retValue.add(new TellColour(player, colour));
+            for (int value = 1; value <= ActionCodec.MAX_VALUE; value++)
+                retValue.add(new TellValue(player, value));
+        }
+        return retValue;
+    }
+}
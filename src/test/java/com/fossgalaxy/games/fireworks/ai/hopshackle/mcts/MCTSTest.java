@@ -0,0 +1,173 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.ai.Agent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.evalfn.EvalFnAgent;
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.expansion.SimpleNodeExpansion;
+import com.fossgalaxy.games.fireworks.state.BasicState;
+import com.fossgalaxy.games.fireworks.state.CardColour;
+import com.fossgalaxy.games.fireworks.state.GameState;
+import com.fossgalaxy.games.fireworks.state.HistoryEntry;
+import com.fossgalaxy.games.fireworks.state.actions.*;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MCTSTest extends TestCase {
+
+    /*
+    The tree kept from our last move (we are player 0 of 3): our move, then one by each of the other players, then our
+    next move
+     */
+    private MCTS mcts;
+    private MCTSNode oldRoot, ourMove, nextMove, thirdMove, newRoot, ourNextMove;
+
+    @Override
+    protected void setUp() {
+        mcts = new MCTS(1.0, 10, 3, 100, null);
+        mcts.reuseTree = true;
+        oldRoot = new MCTSNode(null, 2, null, 1.0, 0L, 0, 0.0);
+        ourMove = child(oldRoot, 0, new PlayCard(0), 12);
+        nextMove = child(ourMove, 1, new TellColour(2, CardColour.RED), 8);
+        thirdMove = child(nextMove, 2, new DiscardCard(1), 5);
+        newRoot = thirdMove;
+        ourNextMove = child(newRoot, 0, new TellValue(1, 3), 3);
+        child(ourNextMove, 1, new PlayCard(2), 2);
+        keepTree(oldRoot);
+    }
+
+    private static MCTSNode child(MCTSNode parent, int agentID, Action action, int visits) {
+        MCTSNode child = new MCTSNode(parent, agentID, action, 1.0, 0L, visits, 10.0);
+        parent.addChild(child);
+        return child;
+    }
+
+    // as doMove() leaves it, after a first move by player 2 that was already in the history
+    private void keepTree(MCTSNode root) {
+        mcts.lastRoot = root;
+        mcts.lastHistoryIndex = 1;
+    }
+
+    private static GameState stateWithHistory(HistoryEntry... entries) {
+        List<HistoryEntry> history = Arrays.asList(entries);
+        return new BasicState(5, 3) {
+            @Override
+            public List<HistoryEntry> getActionHistory() {
+                return history;
+            }
+        };
+    }
+
+    private static HistoryEntry entry(int playerID, Action action) {
+        return new HistoryEntry(playerID, action, Collections.emptyList());
+    }
+
+    private static GameState playedAsKept() {
+        return stateWithHistory(entry(2, new TellValue(0, 1)), entry(0, new PlayCard(0)),
+                entry(1, new TellColour(2, CardColour.RED)), entry(2, new DiscardCard(1)));
+    }
+
+    public void testWorkersHaveTheirOwnPolicies() {
+        MCTS mcts = new MCTS(1.0, 10, 3, 100, 4, null);
+        MCTS worker = mcts.copyForWorker();
+
+        assertEquals(1, worker.threads);
+        assertNotSame(mcts.expansionPolicy, worker.expansionPolicy);
+        assertEquals(SimpleNodeExpansion.class, worker.expansionPolicy.getClass());
+        assertNotSame(mcts.rolloutPolicy, worker.rolloutPolicy);
+        assertEquals(RandomEqual.class, worker.rolloutPolicy.getClass());
+        // so a worker still searches on a SimulationState
+        assertTrue(worker.useSimulatedTree());
+    }
+
+    public void testEvalFnRolloutSharesTheModel() {
+        EvalFnAgent rollout = new EvalFnAgent(null, 0.1);
+        MCTS mcts = new MCTS(1.0, 10, 3, 100, 4, rollout);
+        MCTS worker = mcts.copyForWorker();
+
+        assertNotSame(rollout, worker.rolloutPolicy);
+        EvalFnAgent workerRollout = (EvalFnAgent) worker.rolloutPolicy;
+        assertSame(rollout.getEvaluationCache(), workerRollout.getEvaluationCache());
+        assertSame(rollout.getBrain(), workerRollout.getBrain());
+    }
+
+    public void testOtherRolloutPoliciesAreShared() {
+        Agent rollout = new Agent() {
+            @Override
+            public Action doMove(int agentID, GameState state) {
+                return null;
+            }
+        };
+        MCTS mcts = new MCTS(1.0, 10, 3, 100, 4, rollout);
+        assertSame(rollout, mcts.copyForWorker().rolloutPolicy);
+    }
+
+    public void testReusesTheNodeReachedByTheActionsPlayed() {
+        MCTSNode root = mcts.reuseSubtree(0, playedAsKept());
+
+        assertSame(newRoot, root);
+        assertNull(root.parent);
+        assertEquals(5, root.getVisits());
+        assertSame(ourNextMove, root.getChild(new TellValue(1, 3)));
+        // each tree is only reused once
+        assertNull(mcts.lastRoot);
+    }
+
+    public void testDepthsAreFromTheNewRoot() {
+        MCTSNode root = mcts.reuseSubtree(0, playedAsKept());
+
+        assertEquals(0, root.getDepth());
+        assertEquals(1, ourNextMove.getDepth());
+        assertEquals(2, ourNextMove.getChild(new PlayCard(2)).getDepth());
+        // so that nodes added below it (and any discount by depth in backup()) are as for a fresh root
+        MCTSNode added = child(ourNextMove, 1, new DiscardCard(0), 0);
+        assertEquals(2, added.getDepth());
+    }
+
+    public void testBackupStopsAtTheNewRoot() {
+        MCTSNode root = mcts.reuseSubtree(0, playedAsKept());
+        ourNextMove.backup(15.0, null, null);
+
+        assertEquals(4, ourNextMove.getVisits());
+        assertEquals(6, root.getVisits());
+        assertEquals(8, nextMove.getVisits());
+        assertEquals(0, oldRoot.getVisits());
+    }
+
+    public void testSingleAgentTreeSkipsTheOtherPlayers() {
+        MCTSNode root = new MCTSNode(null, 0, null, 1.0, 0L, 0, 0.0);
+        root.singleAgentTree = true;
+        MCTSNode ours = child(root, 0, new PlayCard(0), 12);
+        MCTSNode next = child(ours, 0, new DiscardCard(3), 6);
+        keepTree(root);
+
+        assertSame(ours, mcts.reuseSubtree(0, playedAsKept()));
+        assertEquals(0, ours.getDepth());
+        assertEquals(1, next.getDepth());
+    }
+
+    public void testChildOfAnotherPlayerIsNotReused() {
+        // the last action is in the tree, but as a move by player 0 rather than player 2
+        MCTSNode root = new MCTSNode(null, 2, null, 1.0, 0L, 0, 0.0);
+        MCTSNode ours = child(root, 0, new PlayCard(0), 12);
+        MCTSNode next = child(ours, 1, new TellColour(2, CardColour.RED), 8);
+        child(next, 0, new DiscardCard(1), 5);
+        keepTree(root);
+
+        assertNull(mcts.reuseSubtree(0, playedAsKept()));
+    }
+
+    public void testActionNotInTheTreeGivesAFreshRoot() {
+        GameState state = stateWithHistory(entry(2, new TellValue(0, 1)), entry(0, new PlayCard(0)),
+                entry(1, new TellValue(2, 5)), entry(2, new DiscardCard(1)));
+
+        assertNull(mcts.reuseSubtree(0, state));
+        assertNull(mcts.lastRoot);
+    }
+
+    public void testNothingPlayedSinceOrNoTreeGivesAFreshRoot() {
+        assertNull(mcts.reuseSubtree(0, stateWithHistory(entry(2, new TellValue(0, 1)))));
+        assertNull(mcts.reuseSubtree(0, playedAsKept()));
+    }
+}
@@ -0,0 +1,160 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts;
+
+import com.fossgalaxy.games.fireworks.ai.iggi.Utils;
+import com.fossgalaxy.games.fireworks.state.BasicState;
+import com.fossgalaxy.games.fireworks.state.GameState;
+import com.fossgalaxy.games.fireworks.state.actions.Action;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class SimulationStateTest extends TestCase {
+
+    private static final int[] HAND_SIZE = {-1, -1, 5, 5, 4, 4};
+
+    /*
+    Plays seeded games with the real engine, choosing moves at random, and checks at every step that a SimulationState
+    built from the GameState agrees with it, and still agrees after the same move is applied to both. The card drawn
+    is random in a SimulationState, so after a move we compare only what does not depend on it.
+     */
+    public void testMatchesGameStateMoveByMove() {
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            for (int seed = 0; seed < 20; seed++) {
+                GameState state = new BasicState(HAND_SIZE[players], players);
+                state.init((long) seed);
+                Random rnd = new Random(seed);
+                int player = 0;
+                while (!state.isGameOver()) {
+                    String where = String.format("%d players, seed %d, turn %d", players, seed, state.getTurnNumber());
+                    SimulationState simState = new SimulationState(state);
+                    assertSameCounters(where, state, simState);
+                    long legal = ActionCodec.toMask(Utils.generateActions(player, state));
+                    assertEquals(where, legal, simState.legalActions(player));
+
+                    int choice = rnd.nextInt(Long.bitCount(legal));
+                    for (int i = 0; i < choice; i++)
+                        legal &= legal - 1;
+                    int actionId = Long.numberOfTrailingZeros(legal);
+                    Action action = ActionCodec.decode(actionId);
+                    simState.apply(player, actionId, rnd);
+                    action.apply(player, state);
+
+                    assertSameCounters(where + " after " + action, state, simState);
+                    assertEquals(where + " after " + action, new SimulationState(state).legalActions(player), simState.legalActions(player));
+                    player = (player + 1) % players;
+                }
+            }
+        }
+    }
+
+    private static void assertSameCounters(String where, GameState state, SimulationState simState) {
+        assertEquals(where, state.getScore(), simState.getScore());
+        assertEquals(where, state.getLives(), simState.getLives());
+        assertEquals(where, state.getInfomation(), simState.getInformation());
+        assertEquals(where, state.getDeck().getCardsLeft(), simState.getCardsInDeck());
+        assertEquals(where, state.isGameOver(), simState.isGameOver());
+    }
+
+    /*
+    Random rollouts from the same deal should score the same on average, whether run on the GameState (as
+    RandomEqual would) or on a SimulationState
+     */
+    public void testRolloutScoresMatchGameState() {
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            GameState start = new BasicState(HAND_SIZE[players], players);
+            start.init(47L);
+            Random rnd = new Random(players);
+            int rollouts = 2000;
+            double[] engineScores = new double[rollouts];
+            double[] simScores = new double[rollouts];
+            for (int r = 0; r < rollouts; r++) {
+                GameState state = start.getCopy();
+                state.getDeck().shuffle();
+                int player = 0;
+                while (!state.isGameOver()) {
+                    long legal = ActionCodec.toMask(Utils.generateActions(player, state));
+                    int choice = rnd.nextInt(Long.bitCount(legal));
+                    for (int i = 0; i < choice; i++)
+                        legal &= legal - 1;
+                    ActionCodec.decode(Long.numberOfTrailingZeros(legal)).apply(player, state);
+                    player = (player + 1) % players;
+                }
+                engineScores[r] = state.getScore();
+
+                SimulationState simState = new SimulationState(start);
+                simState.randomRollout(0, Integer.MAX_VALUE, rnd);
+                simScores[r] = simState.getScore();
+            }
+            double engineMean = mean(engineScores), simMean = mean(simScores);
+            double stdErr = Math.sqrt((variance(engineScores, engineMean) + variance(simScores, simMean)) / rollouts);
+            assertEquals(players + " players", engineMean, simMean, 4.0 * stdErr + 1e-6);
+        }
+    }
+
+    private static double mean(double[] values) {
+        double total = 0.0;
+        for (double v : values) total += v;
+        return total / values.length;
+    }
+
+    private static double variance(double[] values, double mean) {
+        double total = 0.0;
+        for (double v : values) total += (v - mean) * (v - mean);
+        return total / (values.length - 1);
+    }
+
+    public void testUndoRestoresWholeGame() {
+        for (int players = 2; players <= ActionCodec.MAX_PLAYERS; players++) {
+            for (int seed = 0; seed < 50; seed++) {
+                SimulationState undone = new SimulationState(players, new Random(seed));
+                SimulationState untouched = new SimulationState(players, new Random(seed));
+                int mark = undone.mark();
+                undone.randomRollout(seed % players, 1000, new Random(seed + 1000));
+                undone.undoTo(mark);
+                assertSameGame(untouched, undone, seed);
+            }
+        }
+    }
+
+    public void testNestedMarks() {
+        for (int seed = 0; seed < 50; seed++) {
+            SimulationState undone = new SimulationState(3, new Random(seed));
+            SimulationState reference = new SimulationState(3, new Random(seed));
+            int outer = undone.mark();
+            undone.randomRollout(0, 6, new Random(seed));
+            reference.randomRollout(0, 6, new Random(seed));
+            int inner = undone.mark();
+            undone.randomRollout(0, 1000, new Random(seed + 1000));
+            undone.undoTo(inner);
+            assertSameGame(reference, undone, seed);
+
+            undone.undoTo(outer);
+            assertSameGame(new SimulationState(3, new Random(seed)), undone, seed);
+        }
+    }
+
+    public void testRolloutIsUnchangedByJournalling() {
+        for (int seed = 0; seed < 50; seed++) {
+            SimulationState journalled = new SimulationState(4, new Random(seed));
+            SimulationState plain = new SimulationState(4, new Random(seed));
+            journalled.mark();
+            assertEquals(plain.randomRollout(1, 1000, new Random(seed)), journalled.randomRollout(1, 1000, new Random(seed)));
+            assertEquals(plain.getScore(), journalled.getScore());
+        }
+    }
+
+    /*
+    Two games are the same if they look the same now, and play out the same way from here for the same random numbers
+     */
+    private static void assertSameGame(SimulationState expected, SimulationState actual, int seed) {
+        assertEquals("seed " + seed, expected.getScore(), actual.getScore());
+        assertEquals("seed " + seed, expected.getInformation(), actual.getInformation());
+        assertEquals("seed " + seed, expected.getLives(), actual.getLives());
+        assertEquals("seed " + seed, expected.getCardsInDeck(), actual.getCardsInDeck());
+        for (int p = 0; p < expected.getPlayerCount(); p++)
+            assertEquals("seed " + seed, expected.legalActions(p), actual.legalActions(p));
+        assertEquals("seed " + seed, expected.randomRollout(0, 1000, new Random(seed)), actual.randomRollout(0, 1000, new Random(seed)));
+        assertEquals("seed " + seed, expected.getScore(), actual.getScore());
+        assertEquals("seed " + seed, expected.getLives(), actual.getLives());
+    }
+}
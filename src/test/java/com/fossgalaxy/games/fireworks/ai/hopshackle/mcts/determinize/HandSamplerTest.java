@@ -0,0 +1,219 @@
+package com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.determinize;
+
+import com.fossgalaxy.games.fireworks.ai.hopshackle.mcts.SimulationState;
+import com.fossgalaxy.games.fireworks.state.Card;
+import com.fossgalaxy.games.fireworks.state.CardColour;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class HandSamplerTest extends TestCase {
+
+    private static final CardColour[] colours = CardColour.values();
+
+    /*
+    On small random problems, the number of consistent deals (and hence feasibility) must agree with brute force
+     */
+    public void testCompletionsMatchBruteForce() {
+        Random rnd = new Random(1);
+        for (int trial = 0; trial < 2000; trial++) {
+            List<Card> deck = randomDeck(rnd, 1 + rnd.nextInt(8), 3 + rnd.nextInt(4));
+            Map<Integer, List<Card>> possible = randomPossibilities(rnd, deck, 1 + rnd.nextInt(4));
+            HandSampler sampler = new HandSampler(possible, deck);
+            long expected = bruteForceDeals(possible, deck);
+            assertEquals("trial " + trial, expected > 0, sampler.isFeasible());
+            assertEquals("trial " + trial, expected, sampler.completions(0, typeCounts(deck)));
+        }
+    }
+
+    /*
+    Every consistent deal of distinct cards should be equally likely, just as when we deal at random and reject
+    inconsistent hands. We compare the frequency of each hand (as card types by slot) from sample() and from
+    rejection sampling against the exact probabilities.
+     */
+    public void testSampleMatchesRejectionSampling() {
+        Random rnd = new Random(2);
+        int draws = 40000;
+        for (int trial = 0; trial < 20; trial++) {
+            List<Card> deck = randomDeck(rnd, 4, 8);
+            Map<Integer, List<Card>> possible = randomPossibilities(rnd, deck, 3);
+            HandSampler sampler = new HandSampler(possible, deck);
+            if (!sampler.isFeasible()) continue;
+            Map<String, Double> exact = exactHandProbabilities(possible, deck);
+
+            Map<String, Integer> sampled = new HashMap<>();
+            Map<String, Integer> rejected = new HashMap<>();
+            for (int i = 0; i < draws; i++) {
+                Map<Integer, Card> hand = sampler.sample(rnd);
+                assertConsistent(possible, hand);
+                sampled.merge(key(hand), 1, Integer::sum);
+                rejected.merge(key(rejectionSample(possible, deck, rnd)), 1, Integer::sum);
+            }
+            for (Map.Entry<String, Double> entry : exact.entrySet()) {
+                double p = entry.getValue();
+                double tolerance = 5.0 * Math.sqrt(p * (1.0 - p) / draws) + 1e-9;
+                assertEquals("sample() " + entry.getKey(), p, sampled.getOrDefault(entry.getKey(), 0) / (double) draws, tolerance);
+                assertEquals("rejection " + entry.getKey(), p, rejected.getOrDefault(entry.getKey(), 0) / (double) draws, tolerance);
+            }
+            assertEquals(exact.keySet(), sampled.keySet());
+        }
+    }
+
+    /*
+    AllPlayerDeterminiser falls back to the grounded possibilities (all cards in the deck that match what the player
+    has been told) if the conventions leave no consistent hand, and throws an AssertionError if even they do not.
+    The player's real cards are in that deck and match what they have been told, so the grounded possibilities
+    always include at least one consistent hand, and the error cannot be reached.
+     */
+    public void testGroundedPossibilitiesAreAlwaysFeasible() {
+        Random rnd = new Random(3);
+        List<Card> fullDeck = new ArrayList<>();
+        int[] copiesOfValue = {3, 2, 2, 2, 1};
+        for (CardColour colour : colours)
+            for (int value = 1; value <= 5; value++)
+                for (int copy = 0; copy < copiesOfValue[value - 1]; copy++)
+                    fullDeck.add(new Card(value, colour));
+
+        for (int trial = 0; trial < 2000; trial++) {
+            List<Card> deck = new ArrayList<>(fullDeck);
+            Collections.shuffle(deck, rnd);
+            // cards already out of the deck, and so not available
+            deck.subList(0, rnd.nextInt(40)).clear();
+            int handSize = 4 + rnd.nextInt(2);
+            List<Card> hand = new ArrayList<>(deck.subList(0, Math.min(handSize, deck.size())));
+            Map<Integer, List<Card>> grounded = new HashMap<>();
+            for (int slot = 0; slot < hand.size(); slot++) {
+                Card real = hand.get(slot);
+                // what the player has been told: a set of colours and of values that include the real ones
+                int colourMask = (1 << real.colour.ordinal()) | rnd.nextInt(1 << colours.length);
+                int valueMask = (1 << (real.value - 1)) | rnd.nextInt(1 << 5);
+                List<Card> matching = new ArrayList<>();
+                for (Card c : deck)
+                    if ((colourMask & (1 << c.colour.ordinal())) != 0 && (valueMask & (1 << (c.value - 1))) != 0)
+                        matching.add(c);
+                grounded.put(slot, matching);
+            }
+            HandSampler sampler = new HandSampler(grounded, deck);
+            assertTrue("trial " + trial, sampler.isFeasible());
+            assertConsistent(grounded, sampler.sample(rnd));
+        }
+    }
+
+    private static List<Card> randomDeck(Random rnd, int types, int size) {
+        List<Card> retValue = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int type = rnd.nextInt(types);
+            retValue.add(new Card(type % 5 + 1, colours[type / 5]));
+        }
+        return retValue;
+    }
+
+    private static Map<Integer, List<Card>> randomPossibilities(Random rnd, List<Card> deck, int slots) {
+        Map<Integer, List<Card>> retValue = new HashMap<>();
+        for (int slot = 0; slot < slots; slot++) {
+            int allowed = rnd.nextInt(1 << 10);
+            List<Card> cards = new ArrayList<>();
+            for (Card c : deck)
+                if ((allowed & (1 << SimulationState.code(c) % 10)) != 0)
+                    cards.add(c);
+            if (cards.isEmpty()) cards.add(deck.get(rnd.nextInt(deck.size())));
+            retValue.put(slot, cards);
+        }
+        return retValue;
+    }
+
+    private static int[] typeCounts(List<Card> deck) {
+        int[] retValue = new int[SimulationState.CARD_TYPES];
+        for (Card c : deck) retValue[SimulationState.code(c)]++;
+        return retValue;
+    }
+
+    private static boolean allows(List<Card> possible, Card card) {
+        for (Card c : possible)
+            if (SimulationState.code(c) == SimulationState.code(card)) return true;
+        return false;
+    }
+
+    /*
+    The number of ways to give each slot a different card from the deck, out of its possible cards
+     */
+    private static long bruteForceDeals(Map<Integer, List<Card>> possible, List<Card> deck) {
+        List<Integer> slots = new ArrayList<>(possible.keySet());
+        return countDeals(slots, 0, possible, deck, new boolean[deck.size()]);
+    }
+
+    private static long countDeals(List<Integer> slots, int index, Map<Integer, List<Card>> possible, List<Card> deck, boolean[] used) {
+        if (index == slots.size()) return 1;
+        long retValue = 0;
+        for (int i = 0; i < deck.size(); i++) {
+            if (used[i] || !allows(possible.get(slots.get(index)), deck.get(i))) continue;
+            used[i] = true;
+            retValue += countDeals(slots, index + 1, possible, deck, used);
+            used[i] = false;
+        }
+        return retValue;
+    }
+
+    private static Map<String, Double> exactHandProbabilities(Map<Integer, List<Card>> possible, List<Card> deck) {
+        Map<String, Double> retValue = new HashMap<>();
+        List<Integer> slots = new ArrayList<>(possible.keySet());
+        Collections.sort(slots);
+        addDeals(slots, 0, possible, deck, new boolean[deck.size()], new TreeMap<>(), retValue);
+        double total = 0.0;
+        for (double count : retValue.values()) total += count;
+        for (Map.Entry<String, Double> entry : retValue.entrySet())
+            entry.setValue(entry.getValue() / total);
+        return retValue;
+    }
+
+    private static void addDeals(List<Integer> slots, int index, Map<Integer, List<Card>> possible, List<Card> deck,
+                                 boolean[] used, Map<Integer, Card> hand, Map<String, Double> counts) {
+        if (index == slots.size()) {
+            counts.merge(key(hand), 1.0, Double::sum);
+            return;
+        }
+        int slot = slots.get(index);
+        for (int i = 0; i < deck.size(); i++) {
+            if (used[i] || !allows(possible.get(slot), deck.get(i))) continue;
+            used[i] = true;
+            hand.put(slot, deck.get(i));
+            addDeals(slots, index + 1, possible, deck, used, hand, counts);
+            hand.remove(slot);
+            used[i] = false;
+        }
+    }
+
+    /*
+    Deals cards from a shuffled deck until a consistent hand comes up
+     */
+    private static Map<Integer, Card> rejectionSample(Map<Integer, List<Card>> possible, List<Card> deck, Random rnd) {
+        List<Card> shuffled = new ArrayList<>(deck);
+        while (true) {
+            Collections.shuffle(shuffled, rnd);
+            Map<Integer, Card> hand = new HashMap<>();
+            int next = 0;
+            for (int slot : possible.keySet()) {
+                Card card = shuffled.get(next++);
+                if (!allows(possible.get(slot), card)) break;
+                hand.put(slot, card);
+            }
+            if (hand.size() == possible.size()) return hand;
+        }
+    }
+
+    private static void assertConsistent(Map<Integer, List<Card>> possible, Map<Integer, Card> hand) {
+        assertEquals(possible.keySet(), hand.keySet());
+        Set<Card> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<Integer, Card> entry : hand.entrySet()) {
+            assertTrue(allows(possible.get(entry.getKey()), entry.getValue()));
+            assertTrue("card dealt twice", distinct.add(entry.getValue()));
+        }
+    }
+
+    private static String key(Map<Integer, Card> hand) {
+        StringBuilder retValue = new StringBuilder();
+        for (int slot : new TreeSet<>(hand.keySet()))
+            retValue.append(slot).append('=').append(SimulationState.code(hand.get(slot))).append(' ');
+        return retValue.toString();
+    }
+}